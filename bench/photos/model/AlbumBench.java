@@ -0,0 +1,82 @@
+package photos.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times filling a big album one photo at a time and all at once with addPhotos(),
+ * and taking photos out of it from the front and from the back.
+ * @author Klever and Shrij
+ */
+public class AlbumBench {
+    
+    private static final int PHOTOS = 100_000;
+    private static final int REMOVALS = 1000;
+    private static final int REPS = 7;
+    
+    /**
+     * Runs it on a 100,000 photo album.
+     * @param args Not used
+     */
+    public static void main(String[] args) {
+        double[] addOne = new double[REPS];
+        double[] addAll = new double[REPS];
+        double[] removeFront = new double[REPS];
+        double[] removeBack = new double[REPS];
+        for (int rep = -2; rep < REPS; rep++) { // The first two warm up
+            List<Photo> photos = photos();
+            Album album = new User("bench").createAlbum("one by one");
+            long start = System.nanoTime();
+            for (Photo photo : photos) {
+                album.addPhoto(photo);
+            }
+            double one = (System.nanoTime() - start) / 1_000_000.0;
+            
+            start = System.nanoTime();
+            for (int i = 0; i < REMOVALS; i++) {
+                album.removePhoto(photos.get(i));
+            }
+            double front = (System.nanoTime() - start) / 1_000_000.0;
+            
+            start = System.nanoTime();
+            for (int i = PHOTOS - 1; i >= PHOTOS - REMOVALS; i--) {
+                album.removePhoto(photos.get(i));
+            }
+            double back = (System.nanoTime() - start) / 1_000_000.0;
+            
+            List<Photo> more = photos();
+            Album bulk = new User("bench").createAlbum("all at once");
+            start = System.nanoTime();
+            bulk.addPhotos(more);
+            double all = (System.nanoTime() - start) / 1_000_000.0;
+            
+            if (rep >= 0) {
+                addOne[rep] = one;
+                addAll[rep] = all;
+                removeFront[rep] = front;
+                removeBack[rep] = back;
+            }
+        }
+        System.out.printf("add %d one by one      %7.1f ms%n", PHOTOS, median(addOne));
+        System.out.printf("add %d with addPhotos  %7.1f ms%n", PHOTOS, median(addAll));
+        System.out.printf("remove %d from the front  %7.1f ms%n", REMOVALS, median(removeFront));
+        System.out.printf("remove %d from the back   %7.1f ms%n", REMOVALS, median(removeBack));
+    }
+    
+    private static List<Photo> photos() {
+        Random random = new Random(42);
+        List<Photo> photos = new ArrayList<>(PHOTOS);
+        for (int i = 0; i < PHOTOS; i++) {
+            photos.add(Bench.photo(random, i, 120, 1, 50));
+        }
+        return photos;
+    }
+    
+    private static double median(double[] times) {
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
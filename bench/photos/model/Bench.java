@@ -0,0 +1,170 @@
+package photos.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Shared pieces for the benchmarks in bench/: a made-up photo library to run them on,
+ * plus timing and heap helpers.
+ * The library comes out the same every run (fixed seed), so numbers from different runs line up.
+ * Each benchmark is in the model package so it can use the same package-private methods the app does.
+ *
+ * Build and run one with (from the project folder):
+ *   javac -d bin -cp src bench/photos/model/*.java
+ *   java -cp bin photos.model.CodecBench
+ * @author Klever and Shrij
+ */
+final class Bench {
+    
+    private static final String[] MONTHS = {
+        "01 January", "02 February", "03 March", "04 April", "05 May", "06 June",
+        "07 July", "08 August", "09 September", "10 October", "11 November", "12 December"
+    };
+    private static final String[] WORDS = {
+        "beach", "sunset", "family", "dinner", "birthday", "hike", "snow", "park", "city", "night",
+        "dog", "cat", "wedding", "road", "trip", "lake", "garden", "concert", "game", "party"
+    };
+    private static final String[] TAG_NAMES = { "location", "person", "event" };
+    private static final long START_MILLIS = 1_420_070_400_000L; // 2015-01-01
+    
+    /**
+     * One benchmark step, run over and over by millis().
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+    
+    private Bench() {
+        // Only static helpers in here
+    }
+    
+    /**
+     * Makes a user with albums full of photos, spread over folders like a camera import would be
+     * ("/home/photographer/Pictures/Camera Roll/2015/07 July/"), each with a short caption,
+     * a date a minute after the last, and some tags.
+     * @param username The username
+     * @param albums How many albums
+     * @param photosPerAlbum How many photos in each album (every album has its own photos)
+     * @param folders How many folders the photos are spread over
+     * @param tagsPerPhoto How many tags each photo has (up to 3, one per tag name)
+     * @param tagValues How many different values each tag name has
+     * @return The user
+     */
+    static User library(String username, int albums, int photosPerAlbum, int folders, int tagsPerPhoto, int tagValues) {
+        Random random = new Random(42);
+        User user = new User(username);
+        for (String tagName : TAG_NAMES) {
+            user.addTagType(tagName);
+        }
+        int next = 0;
+        for (int a = 0; a < albums; a++) {
+            Album album = user.createAlbum("Album " + a);
+            List<Photo> photos = new ArrayList<>(photosPerAlbum);
+            for (int i = 0; i < photosPerAlbum; i++) {
+                photos.add(photo(random, next++, folders, tagsPerPhoto, tagValues));
+            }
+            album.addPhotos(photos);
+        }
+        return user;
+    }
+    
+    /**
+     * Makes one photo the way library() does, not attached to any user.
+     * @param random Where the caption words and tag values come from
+     * @param number The photo's number, which picks its folder, file name and date
+     * @param folders How many folders photos are spread over
+     * @param tagsPerPhoto How many tags it gets (up to 3)
+     * @param tagValues How many different values each tag name has
+     * @return The photo
+     */
+    static Photo photo(Random random, int number, int folders, int tagsPerPhoto, int tagValues) {
+        return photo(random, number, folders, tagsPerPhoto, tagValues, null);
+    }
+    
+    /**
+     * Makes one photo the way library() does, numbering its tags in a given dictionary.
+     * @param random Where the caption words and tag values come from
+     * @param number The photo's number, which picks its folder, file name and date
+     * @param folders How many folders photos are spread over
+     * @param tagsPerPhoto How many tags it gets (up to 3)
+     * @param tagValues How many different values each tag name has
+     * @param dictionary The tag dictionary to use, or null for one of the photo's own
+     * @return The photo
+     */
+    static Photo photo(Random random, int number, int folders, int tagsPerPhoto, int tagValues, TagDictionary dictionary) {
+        Photo photo = new Photo(folder(number % folders) + "IMG_" + number + ".jpg",
+                                caption(random), START_MILLIS + number * 60_000L, dictionary);
+        for (int t = 0; t < Math.min(tagsPerPhoto, TAG_NAMES.length); t++) {
+            photo.addTag(new Tag(TAG_NAMES[t], TAG_NAMES[t] + " " + random.nextInt(tagValues)));
+        }
+        return photo;
+    }
+    
+    /**
+     * Gets the path of one of the made-up folders, ending in a separator.
+     * @param folder Which folder
+     * @return The folder path
+     */
+    static String folder(int folder) {
+        return "/home/photographer/Pictures/Camera Roll/" + (2015 + folder / MONTHS.length) + "/"
+            + MONTHS[folder % MONTHS.length] + (folder >= 120 ? " " + folder : "") + "/";
+    }
+    
+    private static String caption(Random random) {
+        return WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(1000);
+    }
+    
+    /**
+     * Times a task: runs it a few times to warm up, then the given number of times, and takes the median.
+     * @param reps How many timed runs
+     * @param task The task
+     * @return The median time of one run in milliseconds
+     * @throws Exception If the task fails
+     */
+    static double millis(int reps, Task task) throws Exception {
+        for (int i = 0; i < Math.max(2, reps / 2); i++) {
+            task.run();
+        }
+        double[] times = new double[reps];
+        for (int i = 0; i < reps; i++) {
+            long start = System.nanoTime();
+            task.run();
+            times[i] = (System.nanoTime() - start) / 1_000_000.0;
+        }
+        Arrays.sort(times);
+        return times[reps / 2];
+    }
+    
+    /**
+     * Gets how much of the heap is in use, after a few garbage collections so only reachable objects count.
+     * @return Bytes in use
+     */
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+    
+    /**
+     * Formats a byte count in KB or MB, whichever reads better.
+     * @param bytes The count
+     * @return Something like "758.2 KB"
+     */
+    static String size(long bytes) {
+        return bytes >= 10L << 20
+            ? String.format("%.1f MB", bytes / 1048576.0)
+            : String.format("%.1f KB", bytes / 1024.0);
+    }
+}
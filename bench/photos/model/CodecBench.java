@@ -0,0 +1,57 @@
+package photos.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compares UserCodec with the Java serialization user files used to be written in:
+ * file size, and how long it takes to write a user out and read them back.
+ * @author Klever and Shrij
+ */
+public class CodecBench {
+    
+    /**
+     * Runs the comparison on a 1,000 and a 20,000 photo library.
+     * @param args Not used
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("photos    format         size        encode     decode");
+        run(10, 100);
+        run(50, 400);
+    }
+    
+    private static void run(int albums, int photosPerAlbum) throws Exception {
+        User user = Bench.library("bench", albums, photosPerAlbum, 120, 3, 400);
+        byte[] codec = UserCodec.encode(user);
+        byte[] serialized = serialize(user);
+        int reps = 15;
+        
+        double codecEncode = Bench.millis(reps, () -> UserCodec.encode(user));
+        double codecDecode = Bench.millis(reps, () -> UserCodec.decode(new ByteArrayInputStream(codec)));
+        double serialEncode = Bench.millis(reps, () -> serialize(user));
+        double serialDecode = Bench.millis(reps, () -> {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                in.readObject();
+            }
+        });
+        
+        int photos = albums * photosPerAlbum;
+        print(photos, "UserCodec", codec.length, codecEncode, codecDecode);
+        print(photos, "serialization", serialized.length, serialEncode, serialDecode);
+    }
+    
+    private static byte[] serialize(User user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(user);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static void print(int photos, String format, int size, double encode, double decode) {
+        System.out.printf("%-9d %-14s %-11s %6.1f ms  %6.1f ms%n", photos, format, Bench.size(size), encode, decode);
+    }
+}
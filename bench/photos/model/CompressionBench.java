@@ -0,0 +1,39 @@
+package photos.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Compares the codecs user files can be saved with: how small the file gets, how long compressing
+ * takes, and how long reading the user back takes (uncompressing and decoding, like FileStore does).
+ * @author Klever and Shrij
+ */
+public class CompressionBench {
+    
+    /**
+     * Runs the comparison on a 20,000 photo user.
+     * @param args Not used
+     */
+    public static void main(String[] args) throws Exception {
+        byte[] data = UserCodec.encode(Bench.library("bench", 50, 400, 120, 3, 400));
+        Bench.millis(30, () -> UserCodec.decode(new ByteArrayInputStream(data))); // So the first codec doesn't pay for the JIT
+        System.out.println("codec        size        compress   read back");
+        run("none", data, Compression.Codec.NONE, 0);
+        run("lz", data, Compression.Codec.LZ, 0);
+        for (int level : new int[] { 1, 6, 9 }) {
+            run("deflate -" + level, data, Compression.Codec.DEFLATE, level);
+        }
+    }
+    
+    private static void run(String name, byte[] data, Compression.Codec codec, int level) throws Exception {
+        byte[] file = Compression.compress(data, codec, level);
+        double compress = Bench.millis(15, () -> Compression.compress(data, codec, level));
+        double read = Bench.millis(15, () -> {
+            try (InputStream in = Compression.decompress(new BufferedInputStream(new ByteArrayInputStream(file)))) {
+                UserCodec.decode(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+            }
+        });
+        System.out.printf("%-12s %-10s %7.1f ms  %7.1f ms%n", name, Bench.size(file.length), compress, read);
+    }
+}
@@ -0,0 +1,44 @@
+package photos.model;
+
+import java.util.Calendar;
+
+/**
+ * Measures what a photo's date costs on the heap now that it's a long, next to the Calendar
+ * every photo used to keep.
+ * @author Klever and Shrij
+ */
+public class DateBench {
+    
+    private static final int PHOTOS = 1_000_000;
+    
+    // Static so the JIT can't decide they're dead before the heap is measured
+    private static Photo[] photos;
+    private static Calendar[] dates;
+    
+    /**
+     * Runs it on a million photos that all share one path string and one caption.
+     * @param args Not used
+     */
+    public static void main(String[] args) {
+        String path = Bench.folder(0) + "IMG_0001.jpg";
+        long start = 1_420_070_400_000L;
+        
+        long before = Bench.usedHeap();
+        photos = new Photo[PHOTOS];
+        for (int i = 0; i < PHOTOS; i++) {
+            photos[i] = new Photo(path, "", start + i * 60_000L);
+        }
+        long photoHeap = Bench.usedHeap() - before;
+        System.out.printf("Photo with a long date  %d bytes a photo%n", photoHeap / PHOTOS - 4); // Less its array slot
+        photos = null;
+        
+        before = Bench.usedHeap();
+        dates = new Calendar[PHOTOS];
+        for (int i = 0; i < PHOTOS; i++) {
+            dates[i] = Calendar.getInstance();
+            dates[i].setTimeInMillis(start + i * 60_000L);
+        }
+        long calendarHeap = Bench.usedHeap() - before;
+        System.out.printf("a Calendar each         %d bytes a photo more%n", calendarHeap / PHOTOS - 4);
+    }
+}
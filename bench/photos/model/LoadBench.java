@@ -0,0 +1,98 @@
+package photos.model;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Times loading every user the ways DataManager.loadAllUsers() can: one after another,
+ * on a fixed pool with a thread per CPU, and on a virtual thread per user.
+ * Each user file is read and decoded the way a UserCodec snapshot is loaded.
+ * The files are written to a temp folder first, so they're in the OS cache like after a recent save.
+ * @author Klever and Shrij
+ */
+public class LoadBench {
+    
+    /**
+     * Runs the comparison for 1, 100 and 1000 users of 200 photos each.
+     * @param args Not used
+     */
+    public static void main(String[] args) throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        System.out.println("CPUs: " + cpus);
+        System.out.println("users   serial      fixed pool   virtual threads");
+        for (int count : new int[] { 1, 100, 1000 }) {
+            run(count, cpus);
+        }
+    }
+    
+    private static void run(int count, int cpus) throws Exception {
+        File dir = Files.createTempDirectory("loadbench").toFile();
+        try {
+            List<File> files = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String username = "user" + i;
+                File file = new File(dir, username + ".dat");
+                Files.write(file.toPath(), UserCodec.encode(Bench.library(username, 4, 50, 12, 2, 50)));
+                files.add(file);
+            }
+            
+            int reps = count >= 1000 ? 5 : 15;
+            double serial = Bench.millis(reps, () -> {
+                List<User> loaded = new ArrayList<>(); // Kept like the pools keep theirs, so GC costs the same
+                for (File file : files) {
+                    loaded.add(read(file));
+                }
+            });
+            double fixed = Bench.millis(reps, () -> {
+                ExecutorService pool = Executors.newFixedThreadPool(Math.min(cpus, files.size()));
+                try {
+                    load(pool, files);
+                } finally {
+                    pool.shutdown();
+                }
+            });
+            double virtual = Bench.millis(reps, () -> {
+                try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                    load(pool, files);
+                }
+            });
+            System.out.printf("%-7d %7.1f ms  %8.1f ms  %9.1f ms%n", count, serial, fixed, virtual);
+        } finally {
+            delete(dir);
+        }
+    }
+    
+    private static void load(ExecutorService pool, List<File> files) throws Exception {
+        List<Future<User>> tasks = new ArrayList<>();
+        for (File file : files) {
+            tasks.add(pool.submit(() -> read(file)));
+        }
+        for (Future<User> task : tasks) {
+            task.get();
+        }
+    }
+    
+    private static User read(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return UserCodec.decode(in);
+        }
+    }
+    
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
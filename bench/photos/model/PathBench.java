@@ -0,0 +1,59 @@
+package photos.model;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what photo paths cost now that each photo keeps its user's shared folder string plus a file name:
+ * the heap a loaded user takes, next to what a full path String for every photo would add,
+ * the UserCodec file size, and how long findPhoto(String) takes.
+ * @author Klever and Shrij
+ */
+public class PathBench {
+    
+    private static final int ALBUMS = 2;
+    private static final int PHOTOS_PER_ALBUM = 250_000;
+    private static final int FOLDERS = 120;
+    
+    // Static so the JIT can't decide they're dead before the heap is measured
+    private static byte[] encoded;
+    private static User user;
+    private static String[] paths;
+    
+    /**
+     * Runs it on 500,000 photos spread over 120 folders.
+     * @param args Not used
+     * @throws Exception If the user can't be encoded or decoded
+     */
+    public static void main(String[] args) throws Exception {
+        encoded = UserCodec.encode(Bench.library("bench", ALBUMS, PHOTOS_PER_ALBUM, FOLDERS, 2, 50));
+        System.out.printf("UserCodec file                %s%n", Bench.size(encoded.length));
+        
+        long before = Bench.usedHeap();
+        user = UserCodec.decode(new ByteArrayInputStream(encoded));
+        long userHeap = Bench.usedHeap() - before;
+        System.out.printf("user after UserCodec load     %s%n", Bench.size(userHeap));
+        
+        List<Photo> photos = new ArrayList<>();
+        for (Album album : user.getAlbums()) {
+            photos.addAll(album.getPhotos());
+        }
+        before = Bench.usedHeap();
+        paths = new String[photos.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = photos.get(i).getFilePath();
+        }
+        long pathHeap = Bench.usedHeap() - before;
+        System.out.printf("a full path String each       %s more%n", Bench.size(pathHeap));
+        
+        double millis = Bench.millis(5, () -> {
+            for (String path : paths) {
+                if (user.findPhoto(path) == null) {
+                    throw new IllegalStateException("lost " + path);
+                }
+            }
+        });
+        System.out.printf("findPhoto(String)             %.2f us a lookup%n", millis * 1000 / paths.length);
+    }
+}
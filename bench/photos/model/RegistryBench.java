@@ -0,0 +1,70 @@
+package photos.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Loads a user the way an old file left them: several albums, each with its own copy of the same photos.
+ * Measures the heap with every copy kept (as before the user's photo registry) and after attaching
+ * the albums to the user folds them into one Photo per file.
+ * The copies number their tags in the user's dictionary from the start, so only the extra Photo objects
+ * make the difference.
+ * @author Klever and Shrij
+ */
+public class RegistryBench {
+    
+    private static final int ALBUMS = 4;
+    private static final int PHOTOS = 100_000;
+    
+    // Static so the JIT can't decide they're dead before the heap is measured
+    private static List<Album> albums;
+    private static User user;
+    
+    /**
+     * Runs it on 4 albums of the same 100,000 photos.
+     * @param args Not used
+     */
+    public static void main(String[] args) {
+        long before = Bench.usedHeap();
+        user = new User("bench");
+        albums = copies(user.getTagDictionary());
+        long copiesHeap = Bench.usedHeap() - before;
+        System.out.printf("%d albums, a copy each   %,9d Photo objects  %s%n",
+                          ALBUMS, distinctPhotos(albums), Bench.size(copiesHeap));
+        
+        long start = System.nanoTime();
+        for (Album album : albums) {
+            user.restoreAlbum(album);
+        }
+        double attach = (System.nanoTime() - start) / 1_000_000.0;
+        albums = null;
+        long sharedHeap = Bench.usedHeap() - before;
+        System.out.printf("attached to the user      %,9d Photo objects  %s  (attaching took %.1f ms)%n",
+                          distinctPhotos(user.getAlbums()), Bench.size(sharedHeap), attach);
+    }
+    
+    private static List<Album> copies(TagDictionary dictionary) {
+        List<Album> copies = new ArrayList<>(ALBUMS);
+        for (int a = 0; a < ALBUMS; a++) {
+            Random random = new Random(42); // Same seed, so every album gets the same files, captions and tags
+            List<Photo> photos = new ArrayList<>(PHOTOS);
+            for (int i = 0; i < PHOTOS; i++) {
+                photos.add(Bench.photo(random, i, 120, 2, 50, dictionary));
+            }
+            copies.add(new Album("Album " + a, photos));
+        }
+        return copies;
+    }
+    
+    private static int distinctPhotos(List<Album> albums) {
+        Set<Photo> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Album album : albums) {
+            seen.addAll(album.getPhotos());
+        }
+        return seen.size();
+    }
+}
@@ -0,0 +1,103 @@
+package photos.model;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures what tags cost now that photos keep them as ids from their user's TagDictionary:
+ * heap per photo, and how fast hasTag() answers. For comparison it does the same with the old layout,
+ * a HashSet with its own Tag objects for every photo.
+ * @author Klever and Shrij
+ */
+public class TagBench {
+    
+    private static final int PHOTOS = 200_000;
+    private static final int LOOKUPS = 10_000_000;
+    private static final String[] NAMES = { "location", "person", "event" };
+    
+    private static long hits; // Read by nobody, it's only there so the lookups can't be optimized away
+    
+    /**
+     * Runs it on 200,000 photos with 3 tags each, out of 400 values for each tag name.
+     * @param args Not used
+     */
+    public static void main(String[] args) throws Exception {
+        // The same random lookups for both layouts: a photo, a tag name and a value
+        Random random = new Random(7);
+        int[] photoAt = new int[4096];
+        String[] nameAt = new String[photoAt.length];
+        String[] valueAt = new String[photoAt.length];
+        for (int i = 0; i < photoAt.length; i++) {
+            photoAt[i] = random.nextInt(PHOTOS);
+            nameAt[i] = NAMES[random.nextInt(NAMES.length)];
+            valueAt[i] = nameAt[i] + " " + random.nextInt(400);
+        }
+        
+        System.out.println("layout        tag heap a photo   hasTag");
+        runDictionary(photoAt, nameAt, valueAt);
+        runHashSet(photoAt, nameAt, valueAt);
+    }
+    
+    /**
+     * Tag ids from the user's TagDictionary, what Photo does now.
+     * The tag heap is the difference between the library with and without tags.
+     */
+    private static void runDictionary(int[] photoAt, String[] nameAt, String[] valueAt) throws Exception {
+        long before = Bench.usedHeap();
+        User untagged = Bench.library("bench", 50, PHOTOS / 50, 120, 0, 400);
+        long untaggedHeap = Bench.usedHeap() - before;
+        untagged = null; // Let it go before measuring the next one
+        
+        before = Bench.usedHeap();
+        User user = Bench.library("bench", 50, PHOTOS / 50, 120, 3, 400);
+        long heap = Bench.usedHeap() - before;
+        
+        List<Photo> photos = new ArrayList<>(PHOTOS);
+        for (Album album : user.getAlbums()) {
+            photos.addAll(album.getPhotos());
+        }
+        double millis = Bench.millis(5, () -> {
+            for (int i = 0; i < LOOKUPS; i++) {
+                int k = i & (photoAt.length - 1);
+                if (photos.get(photoAt[k]).hasTag(nameAt[k], valueAt[k])) {
+                    hits++;
+                }
+            }
+        });
+        print("TagDictionary", (heap - untaggedHeap) / PHOTOS, millis);
+    }
+    
+    /**
+     * The old layout: a HashSet of separate Tag objects on every photo, looked up with a new Tag.
+     */
+    private static void runHashSet(int[] photoAt, String[] nameAt, String[] valueAt) throws Exception {
+        Random random = new Random(42);
+        long before = Bench.usedHeap();
+        List<Set<Tag>> photos = new ArrayList<>(PHOTOS);
+        for (int p = 0; p < PHOTOS; p++) {
+            Set<Tag> tags = new HashSet<>();
+            for (String name : NAMES) {
+                tags.add(new Tag(new String(name), name + " " + random.nextInt(400)));
+            }
+            photos.add(tags);
+        }
+        long heap = Bench.usedHeap() - before;
+        
+        double millis = Bench.millis(5, () -> {
+            for (int i = 0; i < LOOKUPS; i++) {
+                int k = i & (photoAt.length - 1);
+                if (photos.get(photoAt[k]).contains(new Tag(nameAt[k], valueAt[k]))) {
+                    hits++;
+                }
+            }
+        });
+        print("HashSet<Tag>", heap / PHOTOS - 4, millis); // Less the list's slot for the set
+    }
+    
+    private static void print(String layout, long bytesPerPhoto, double millis) {
+        System.out.printf("%-13s %4d bytes          %.1f M lookups/s%n", layout, bytesPerPhoto, LOOKUPS / millis / 1000);
+    }
+}
@@ -23,8 +23,10 @@ public class Photos34 extends Application {
             primaryStage.show();
             
             // Seting up close request handler to save data when the application is closed
+            // flush() waits for the background writer so nothing is lost on exit
             primaryStage.setOnCloseRequest(event -> {
                 DataManager.getInstance().saveData();
+                DataManager.getInstance().flush();
             });
         } catch (Exception e) {
             e.printStackTrace();
@@ -1,9 +1,8 @@
 package photos.controller;
 
 import java.io.IOException;
+import java.util.List;
 
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -21,13 +20,23 @@ import photos.model.DataManager;
 /**
  * Controller for the admin panel.
  * In charge of creating, listing, and deleting users.
+ * Users are shown a page at a time and filtered as you type, so big user lists stay quick.
  * @author Klever and Shrij
  */
 public class AdminController {
     
+    // How many usernames to show at first, and to add each time Show More is clicked
+    private static final int PAGE_SIZE = 100;
+    
     @FXML
     private ListView<String> userListView;
     
+    @FXML
+    private TextField filterField;
+    
+    @FXML
+    private Button showMoreButton;
+    
     @FXML
     private TextField usernameField;
     
@@ -46,16 +55,38 @@ public class AdminController {
      */
     @FXML
     public void initialize() {
+        filterField.textProperty().addListener((obs, oldText, newText) -> refreshUserList());
         refreshUserList();
     }
     
     /**
      * Updates the user list with current data.
+     * Starts over from the first page of usernames matching the filter.
      */
     private void refreshUserList() {
+        userListView.getItems().clear();
+        loadNextPage();
+    }
+    
+    /**
+     * Shows the next page of usernames.
+     */
+    @FXML
+    public void handleShowMore(ActionEvent event) {
+        loadNextPage();
+    }
+    
+    /**
+     * Adds the next page of matching usernames to the list.
+     * Asks for one extra to know whether there's anything left for Show More.
+     */
+    private void loadNextPage() {
         Admin admin = DataManager.getInstance().getAdmin();
-        ObservableList<String> usernames = FXCollections.observableArrayList(admin.getUsernames());
-        userListView.setItems(usernames);
+        String prefix = filterField.getText().trim();
+        List<String> page = admin.findUsernames(prefix, userListView.getItems().size(), PAGE_SIZE + 1);
+        boolean more = page.size() > PAGE_SIZE;
+        userListView.getItems().addAll(more ? page.subList(0, PAGE_SIZE) : page);
+        showMoreButton.setDisable(!more);
     }
     
     /**
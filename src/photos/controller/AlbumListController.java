@@ -24,6 +24,7 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
 import javafx.stage.Stage;
 import photos.model.Album;
+import photos.model.Change;
 import photos.model.DataManager;
 import photos.model.User;
 
@@ -101,7 +102,7 @@ public class AlbumListController {
             showAlert("Success", "Album created successfully", AlertType.INFORMATION);
             albumNameField.clear();
             refreshAlbumList();
-            DataManager.getInstance().saveData(); // Save changes
+            DataManager.getInstance().recordChange(user, Change.createAlbum(albumName)); // Save changes
         } else {
             showAlert("Error", "Album already exists", AlertType.ERROR);
         }
@@ -133,10 +134,11 @@ public class AlbumListController {
                 return;
             }
             
-            if (user.renameAlbum(album.getName(), newName)) {
+            String oldName = album.getName();
+            if (user.renameAlbum(oldName, newName)) {
                 showAlert("Success", "Album renamed successfully", AlertType.INFORMATION);
                 refreshAlbumList();
-                DataManager.getInstance().saveData(); // Save changes
+                DataManager.getInstance().recordChange(user, Change.renameAlbum(oldName, newName)); // Save changes
             } else {
                 showAlert("Error", "Failed to rename album. Name may already be in use.", AlertType.ERROR);
             }
@@ -158,7 +160,7 @@ public class AlbumListController {
         if (user.deleteAlbum(album.getName())) {
             showAlert("Success", "Album deleted successfully", AlertType.INFORMATION);
             refreshAlbumList();
-            DataManager.getInstance().saveData(); // Save changes
+            DataManager.getInstance().recordChange(user, Change.deleteAlbum(album.getName())); // Save changes
         } else {
             showAlert("Error", "Failed to delete album", AlertType.ERROR);
         }
@@ -257,6 +259,7 @@ public class AlbumListController {
         private Label nameLabel;
         private Label photoCountLabel;
         private Label dateRangeLabel;
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy"); // Reused for every render
         
         public AlbumListCell() {
             container = new VBox(5);
@@ -278,8 +281,7 @@ public class AlbumListController {
                 nameLabel.setText(album.getName());
                 photoCountLabel.setText("Photos: " + album.getPhotoCount());
                 
-                // Format date range
-                SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+                // Format date range (the album keeps these up to date, so no scanning here)
                 Calendar earliest = album.getEarliestDate();
                 Calendar latest = album.getLatestDate();
                 
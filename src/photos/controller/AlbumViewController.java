@@ -3,6 +3,7 @@ package photos.controller;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -26,6 +27,7 @@ import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import photos.model.Album;
+import photos.model.Change;
 import photos.model.DataManager;
 import photos.model.Photo;
 import photos.model.Tag;
@@ -123,7 +125,7 @@ public class AlbumViewController {
                 // Add selection handler
                 photoBox.setOnMouseClicked(event -> {
                     selectedPhoto = photo;
-                    currentPhotoIndex = album.getPhotos().indexOf(photo);
+                    currentPhotoIndex = album.indexOf(photo);
                     
                     // Highlight selected photo
                     for (int i = 0; i < photoFlowPane.getChildren().size(); i++) {
@@ -162,7 +164,7 @@ public class AlbumViewController {
      * Updates the slideshow navigation buttons based on current position.
      */
     private void updateSlideshowButtons() {
-        int size = album.getPhotos().size();
+        int size = album.getPhotoCount();
         
         if (size == 0) {
             slideshowBackButton.setDisable(true);
@@ -188,11 +190,15 @@ public class AlbumViewController {
         File selectedFile = fileChooser.showOpenDialog(addPhotoButton.getScene().getWindow());
         if (selectedFile != null) {
             try {
-                Photo photo = new Photo(selectedFile);
+                // Reuse the photo if it's already in another album, so both albums share its caption and tags
+                Photo photo = user.findPhoto(selectedFile.getAbsolutePath());
+                if (photo == null) {
+                    photo = new Photo(selectedFile);
+                }
                 if (album.addPhoto(photo)) {
                     refreshPhotoView();
                     showAlert("Success", "Photo added successfully", AlertType.INFORMATION);
-                    DataManager.getInstance().saveData();
+                    DataManager.getInstance().recordChange(user, Change.addPhoto(album, photo));
                 } else {
                     showAlert("Error", "Photo already exists in this album", AlertType.ERROR);
                 }
@@ -214,11 +220,11 @@ public class AlbumViewController {
         }
         
         if (album.removePhoto(selectedPhoto)) {
+            DataManager.getInstance().recordChange(user, Change.removePhoto(album, selectedPhoto));
             selectedPhoto = null;
             currentPhotoIndex = -1;
             refreshPhotoView();
             showAlert("Success", "Photo removed successfully", AlertType.INFORMATION);
-            DataManager.getInstance().saveData();
         } else {
             showAlert("Error", "Failed to remove photo", AlertType.ERROR);
         }
@@ -242,9 +248,9 @@ public class AlbumViewController {
         Optional<String> result = dialog.showAndWait();
         if (result.isPresent()) {
             selectedPhoto.setCaption(result.get());
+            DataManager.getInstance().recordChange(user, Change.setCaption(album, selectedPhoto));
             refreshPhotoView();
             showAlert("Success", "Caption updated successfully", AlertType.INFORMATION);
-            DataManager.getInstance().saveData();
         }
     }
     
@@ -289,7 +295,7 @@ public class AlbumViewController {
     public void handleSlideshowBack(ActionEvent event) {
         if (currentPhotoIndex > 0) {
             currentPhotoIndex--;
-            selectedPhoto = album.getPhotos().get(currentPhotoIndex);
+            selectedPhoto = album.getPhoto(currentPhotoIndex);
             
             // Update selection in UI
             refreshPhotoView();
@@ -305,9 +311,9 @@ public class AlbumViewController {
      */
     @FXML
     public void handleSlideshowForward(ActionEvent event) {
-        if (currentPhotoIndex < album.getPhotos().size() - 1) {
+        if (currentPhotoIndex < album.getPhotoCount() - 1) {
             currentPhotoIndex++;
-            selectedPhoto = album.getPhotos().get(currentPhotoIndex);
+            selectedPhoto = album.getPhoto(currentPhotoIndex);
             
             // Update selection in UI
             refreshPhotoView();
@@ -354,7 +360,7 @@ public class AlbumViewController {
             
             if (destAlbum.addPhoto(selectedPhoto)) {
                 showAlert("Success", "Photo copied successfully", AlertType.INFORMATION);
-                DataManager.getInstance().saveData();
+                DataManager.getInstance().recordChange(user, Change.addPhoto(destAlbum, selectedPhoto));
             } else {
                 showAlert("Error", "Photo already exists in the destination album", AlertType.ERROR);
             }
@@ -396,11 +402,12 @@ public class AlbumViewController {
             Album destAlbum = user.getAlbum(destAlbumName);
             
             if (destAlbum.addPhoto(selectedPhoto) && album.removePhoto(selectedPhoto)) {
+                DataManager.getInstance().recordChanges(user, Arrays.asList(
+                    Change.addPhoto(destAlbum, selectedPhoto), Change.removePhoto(album, selectedPhoto)));
                 selectedPhoto = null;
                 currentPhotoIndex = -1;
                 refreshPhotoView();
                 showAlert("Success", "Photo moved successfully", AlertType.INFORMATION);
-                DataManager.getInstance().saveData();
             } else {
                 showAlert("Error", "Failed to move photo", AlertType.ERROR);
             }
@@ -448,6 +455,7 @@ public class AlbumViewController {
             
             tagType = newTypeResult.get().trim();
             if (user.addTagType(tagType)) {
+                DataManager.getInstance().recordChange(user, Change.addTagType(tagType));
                 showAlert("Success", "New tag type added", AlertType.INFORMATION);
             } else {
                 showAlert("Error", "Tag type already exists", AlertType.ERROR);
@@ -472,7 +480,7 @@ public class AlbumViewController {
         Tag tag = new Tag(tagType, tagValue);
         if (selectedPhoto.addTag(tag)) {
             showAlert("Success", "Tag added successfully", AlertType.INFORMATION);
-            DataManager.getInstance().saveData();
+            DataManager.getInstance().recordChange(user, Change.addTag(album, selectedPhoto, tag));
         } else {
             showAlert("Error", "Tag already exists for this photo", AlertType.ERROR);
         }
@@ -516,7 +524,7 @@ public class AlbumViewController {
             
             if (selectedPhoto.removeTag(tagToRemove)) {
                 showAlert("Success", "Tag removed successfully", AlertType.INFORMATION);
-                DataManager.getInstance().saveData();
+                DataManager.getInstance().recordChange(user, Change.removeTag(album, selectedPhoto, tagToRemove));
             } else {
                 showAlert("Error", "Failed to remove tag", AlertType.ERROR);
             }
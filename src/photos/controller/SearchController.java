@@ -4,13 +4,19 @@ import java.io.IOException;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
 import javafx.collections.FXCollections;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -21,6 +27,7 @@ import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.DatePicker;
 import javafx.scene.control.Label;
@@ -34,25 +41,44 @@ import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
+import javafx.stage.Window;
 import photos.model.Album;
+import photos.model.Change;
 import photos.model.DataManager;
 import photos.model.Photo;
+import photos.model.PhotoQuery;
 import photos.model.Tag;
 import photos.model.User;
 
 /**
  * Controller for the search view.
- * Being able to search photos by date range or tags.
+ * Being able to search photos by date range, tags, caption words or a typed-in query.
+ *
+ * Searches run on a background thread and the results come into the pane a batch at a time.
+ * With "Search as you type" on, every change to the search fields starts one once typing stops for a moment,
+ * and a newer change cancels it (the model stops a cancelled search between steps).
+ * The user's data isn't thread safe, so only one thread uses it at a time. Anything the FX thread does with it
+ * (making an album, going back to the albums) is queued on the search thread, which hands it to the FX thread
+ * and waits until it's done. So it runs between searches, and the FX thread itself never waits for a search.
  * @author Klever and Shrij
  */
 public class SearchController {
     
+    private static final long LIVE_SEARCH_DELAY_MILLIS = 250; // How long typing has to stop before a live search starts
+    private static final int RESULT_BATCH_SIZE = 40;           // Thumbnails added to the results pane at a time in a live search
+    
     @FXML
     private RadioButton dateSearchRadio;
     
     @FXML
     private RadioButton tagSearchRadio;
     
+    @FXML
+    private RadioButton captionSearchRadio;
+    
+    @FXML
+    private RadioButton querySearchRadio;
+    
     @FXML
     private ToggleGroup searchTypeGroup;
     
@@ -68,6 +94,18 @@ public class SearchController {
     @FXML
     private VBox tagSearchPane;
     
+    @FXML
+    private VBox captionSearchPane;
+    
+    @FXML
+    private TextField captionField;
+    
+    @FXML
+    private VBox querySearchPane;
+    
+    @FXML
+    private TextField queryField;
+    
     @FXML
     private ComboBox<String> tagTypeComboBox;
     
@@ -101,6 +139,9 @@ public class SearchController {
     @FXML
     private Button createAlbumButton;
     
+    @FXML
+    private CheckBox liveSearchCheckBox;
+    
     @FXML
     private FlowPane resultsFlowPane;
     
@@ -109,6 +150,9 @@ public class SearchController {
     
     private User user;
     private List<Photo> searchResults = new ArrayList<>();
+    private ScheduledExecutorService searchExecutor; // Runs searches, one at a time
+    private Future<?> currentSearch;                 // The search that's waiting or running, if any
+    private long searchId;                           // Goes up whenever a search is cancelled, so its results get ignored (FX thread only)
     
     /**
      * Initializes the controller with user data.
@@ -123,8 +167,45 @@ public class SearchController {
         // Set up tag type combo boxes
         refreshTagTypes();
         
+        // Hidden search panes shouldn't take up room
+        dateSearchPane.managedProperty().bind(dateSearchPane.visibleProperty());
+        tagSearchPane.managedProperty().bind(tagSearchPane.visibleProperty());
+        captionSearchPane.managedProperty().bind(captionSearchPane.visibleProperty());
+        querySearchPane.managedProperty().bind(querySearchPane.visibleProperty());
+        
         // Default to date search
         handleSearchTypeChange(null);
+        
+        // Searches run on their own thread so typing never waits on them (a daemon, like the persistence writer)
+        searchExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "photos-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        // Stop it once this view isn't showing anymore, whether the window closed or the scene changed
+        backButton.sceneProperty()
+            .flatMap(Scene::windowProperty)
+            .flatMap(Window::showingProperty)
+            .orElse(false)
+            .addListener((observable, wasShowing, showing) -> {
+                if (!showing) {
+                    searchExecutor.shutdownNow();
+                }
+            });
+        
+        // Any change to what's being searched for starts a new live search
+        ChangeListener<Object> searchChanged = (observable, oldValue, newValue) -> scheduleLiveSearch();
+        searchTypeGroup.selectedToggleProperty().addListener(searchChanged);
+        tagSearchTypeGroup.selectedToggleProperty().addListener(searchChanged);
+        fromDatePicker.valueProperty().addListener(searchChanged);
+        toDatePicker.valueProperty().addListener(searchChanged);
+        tagTypeComboBox.valueProperty().addListener(searchChanged);
+        tagValueField.textProperty().addListener(searchChanged);
+        secondTagTypeComboBox.valueProperty().addListener(searchChanged);
+        secondTagValueField.textProperty().addListener(searchChanged);
+        captionField.textProperty().addListener(searchChanged);
+        queryField.textProperty().addListener(searchChanged);
     }
     
     /**
@@ -142,17 +223,14 @@ public class SearchController {
     }
     
     /**
-     * Being able to change between date and tag search.
+     * Being able to change between date, tag, caption and query search.
      */
     @FXML
     public void handleSearchTypeChange(ActionEvent event) {
-        if (dateSearchRadio.isSelected()) {
-            dateSearchPane.setVisible(true);
-            tagSearchPane.setVisible(false);
-        } else {
-            dateSearchPane.setVisible(false);
-            tagSearchPane.setVisible(true);
-        }
+        dateSearchPane.setVisible(dateSearchRadio.isSelected());
+        tagSearchPane.setVisible(tagSearchRadio.isSelected());
+        captionSearchPane.setVisible(captionSearchRadio.isSelected());
+        querySearchPane.setVisible(querySearchRadio.isSelected());
     }
     
     /**
@@ -168,165 +246,284 @@ public class SearchController {
      */
     @FXML
     public void handleSearch(ActionEvent event) {
-        resultsFlowPane.getChildren().clear();
-        searchResults.clear();
+        cancelSearch();
         
-        if (dateSearchRadio.isSelected()) {
-            searchByDate();
+        Supplier<List<Photo>> search = prepareSearch(true);
+        if (search == null) {
+            searchResults = new ArrayList<>();
+            resultsFlowPane.getChildren().clear();
+            displayResults(searchResults);
+            createAlbumButton.setDisable(true);
+            return;
+        }
+        startSearch(search, 0);
+    }
+    
+    /**
+     * Turning search as you type on or off.
+     */
+    @FXML
+    public void handleLiveSearchChange(ActionEvent event) {
+        if (liveSearchCheckBox.isSelected()) {
+            scheduleLiveSearch();
         } else {
-            searchByTags();
+            cancelSearch();
         }
+    }
+    
+    /**
+     * Starts a search for what's in the fields now, once typing stops for a moment.
+     * Any older search that's still waiting or running is cancelled, and its results never show up.
+     */
+    private void scheduleLiveSearch() {
+        if (!liveSearchCheckBox.isSelected()) {
+            return;
+        }
+        cancelSearch();
         
-        displayResults();
-        
-        // Enable/disable create album button based on results
-        createAlbumButton.setDisable(searchResults.isEmpty());
+        // Nothing to search for yet (or the query is half typed), so leave the last results up
+        Supplier<List<Photo>> search = prepareSearch(false);
+        if (search == null) {
+            return;
+        }
+        startSearch(search, LIVE_SEARCH_DELAY_MILLIS);
     }
     
     /**
-     * Performs a search by date range.
+     * Starts a search on the search thread.
+     * @param search The search to run
+     * @param delayMillis How long to wait before starting it
      */
-    private void searchByDate() {
+    private void startSearch(Supplier<List<Photo>> search, long delayMillis) {
+        if (searchExecutor.isShutdown()) {
+            return; // Leaving this view
+        }
+        long id = searchId;
+        currentSearch = searchExecutor.schedule(() -> runSearch(id, search), delayMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Runs a search on the search thread and hands the results to the FX thread a batch at a time.
+     * It waits for each batch to be shown before sending the next, so a big result doesn't flood the FX thread,
+     * and it stops as soon as it's cancelled.
+     */
+    private void runSearch(long id, Supplier<List<Photo>> search) {
+        List<Photo> found;
+        try {
+            found = search.get();
+        } catch (CancellationException e) {
+            return; // A newer search took over
+        } catch (RuntimeException e) {
+            System.err.println("Search failed: " + e.getMessage());
+            return;
+        }
+        try {
+            for (int start = 0; start == 0 || start < found.size(); start += RESULT_BATCH_SIZE) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                int from = start;
+                List<Photo> batch = found.subList(from, Math.min(found.size(), from + RESULT_BATCH_SIZE));
+                CountDownLatch shown = new CountDownLatch(1);
+                Platform.runLater(() -> {
+                    try {
+                        showResults(id, found, batch, from == 0);
+                    } finally {
+                        shown.countDown();
+                    }
+                });
+                shown.await();
+            }
+        } catch (InterruptedException e) {
+            // A newer search took over
+        }
+    }
+    
+    /**
+     * Adds a batch of search results to the results pane, unless a newer search has started since.
+     */
+    private void showResults(long id, List<Photo> found, List<Photo> batch, boolean first) {
+        if (id != searchId) {
+            return;
+        }
+        if (first) {
+            // The whole result is ready, so an album can be made from it while the thumbnails are still coming in
+            searchResults = found;
+            resultsFlowPane.getChildren().clear();
+            createAlbumButton.setDisable(found.isEmpty());
+        }
+        displayResults(batch);
+    }
+    
+    /**
+     * Cancels the search that's waiting or running, if there is one.
+     */
+    private void cancelSearch() {
+        searchId++;
+        if (currentSearch != null) {
+            currentSearch.cancel(true);
+            currentSearch = null;
+        }
+    }
+    
+    /**
+     * Cancels any search, then runs something that uses the user's data on the FX thread once the search thread
+     * is out of it. The search thread waits while it runs, so no newer search can start in the middle,
+     * and the FX thread doesn't wait for anything.
+     * @param action What to run on the FX thread
+     */
+    private void runBetweenSearches(Runnable action) {
+        cancelSearch();
+        if (searchExecutor.isShutdown()) {
+            return; // Leaving this view
+        }
+        searchExecutor.execute(() -> {
+            CountDownLatch done = new CountDownLatch(1);
+            Platform.runLater(() -> {
+                try {
+                    action.run();
+                } finally {
+                    done.countDown();
+                }
+            });
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                // Shutting down, the action still runs on the FX thread
+            }
+        });
+    }
+    
+    /**
+     * Reads the search fields for the selected kind of search.
+     * @param showErrors Whether to tell the user what's wrong with the fields (not while they're still typing)
+     * @return The search to run, or null if the fields don't make a search yet
+     */
+    private Supplier<List<Photo>> prepareSearch(boolean showErrors) {
+        if (dateSearchRadio.isSelected()) {
+            return prepareDateSearch(showErrors);
+        } else if (tagSearchRadio.isSelected()) {
+            return prepareTagSearch(showErrors);
+        } else if (captionSearchRadio.isSelected()) {
+            return prepareCaptionSearch(showErrors);
+        } else {
+            return prepareQuerySearch(showErrors);
+        }
+    }
+    
+    /**
+     * Prepares a search by date range.
+     */
+    private Supplier<List<Photo>> prepareDateSearch(boolean showErrors) {
         LocalDate fromDate = fromDatePicker.getValue();
         LocalDate toDate = toDatePicker.getValue();
         
-        if (fromDate == null || toDate == null) {
-            showAlert("Error", "Please select both From and To dates", AlertType.ERROR);
-            return;
+        // Either one can be left empty to search everything before or after the other
+        if (fromDate == null && toDate == null) {
+            return fail(showErrors, "Please select a From date, a To date, or both");
         }
         
-        if (fromDate.isAfter(toDate)) {
-            showAlert("Error", "From date must be before To date", AlertType.ERROR);
-            return;
+        if (fromDate != null && toDate != null && fromDate.isAfter(toDate)) {
+            return fail(showErrors, "From date must be before To date");
         }
         
-        // Convert LocalDate to Calendar for comparison
-        Calendar fromCal = localDateToCalendar(fromDate);
-        Calendar toCal = localDateToCalendar(toDate);
+        // Convert LocalDate to epoch ms for comparison
+        long fromMillis = fromDate != null ? startOfDayMillis(fromDate) : Long.MIN_VALUE;
         
         // Add one day to include the end date in search results
-        toCal.add(Calendar.DAY_OF_MONTH, 1);
+        long toMillis = toDate != null ? startOfDayMillis(toDate.plusDays(1)) : Long.MAX_VALUE;
         
-        // Search for photos in the date range
-        for (Album album : user.getAlbums()) {
-            for (Photo photo : album.getPhotos()) {
-                Calendar photoDate = photo.getDateTime();
-                
-                if ((photoDate.after(fromCal) || photoDate.equals(fromCal)) && 
-                    (photoDate.before(toCal))) {
-                    if (!searchResults.contains(photo)) {
-                        searchResults.add(photo);
-                    }
-                }
-            }
-        }
+        // Search for photos in the date range (oldest first, and each photo only once even if it's in several albums)
+        return () -> user.findPhotosTakenBetween(fromMillis, toMillis);
     }
     
     /**
-     * Converts a LocalDate to Calendar.
+     * Converts a LocalDate to the epoch ms of midnight at its start, in the local time zone.
      */
-    private Calendar localDateToCalendar(LocalDate localDate) {
-        Date date = Date.from(localDate.atStartOfDay(ZoneId.systemDefault()).toInstant());
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(date);
-        calendar.set(Calendar.HOUR_OF_DAY, 0);
-        calendar.set(Calendar.MINUTE, 0);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-        return calendar;
+    private long startOfDayMillis(LocalDate localDate) {
+        return localDate.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
     
     /**
-     * Performs a search by tags.
+     * Prepares a search by tags.
      */
-    private void searchByTags() {
+    private Supplier<List<Photo>> prepareTagSearch(boolean showErrors) {
         String tagType = tagTypeComboBox.getValue();
         String tagValue = tagValueField.getText().trim();
         
         if (tagType == null || tagValue.isEmpty()) {
-            showAlert("Error", "Please select a tag type and enter a value", AlertType.ERROR);
-            return;
+            return fail(showErrors, "Please select a tag type and enter a value");
         }
         
         if (singleTagRadio.isSelected()) {
             // Single tag search
-            searchBySingleTag(tagType, tagValue);
+            return () -> user.findPhotosWithAllTags(List.of(new Tag(tagType, tagValue)));
+        }
+        
+        // Conjunction or disjunction search
+        String secondTagType = secondTagTypeComboBox.getValue();
+        String secondTagValue = secondTagValueField.getText().trim();
+        
+        if (secondTagType == null || secondTagValue.isEmpty()) {
+            return fail(showErrors, "Please select a second tag type and enter a value");
+        }
+        
+        List<Tag> tags = List.of(new Tag(tagType, tagValue), new Tag(secondTagType, secondTagValue));
+        if (conjunctionRadio.isSelected()) {
+            // AND search
+            return () -> user.findPhotosWithAllTags(tags);
         } else {
-            // Conjunction or disjunction search
-            String secondTagType = secondTagTypeComboBox.getValue();
-            String secondTagValue = secondTagValueField.getText().trim();
-            
-            if (secondTagType == null || secondTagValue.isEmpty()) {
-                showAlert("Error", "Please select a second tag type and enter a value", AlertType.ERROR);
-                return;
-            }
-            
-            if (conjunctionRadio.isSelected()) {
-                // AND search
-                searchByConjunction(tagType, tagValue, secondTagType, secondTagValue);
-            } else {
-                // OR search
-                searchByDisjunction(tagType, tagValue, secondTagType, secondTagValue);
-            }
+            // OR search
+            return () -> user.findPhotosWithAnyTag(tags);
         }
     }
     
     /**
-     * Searches for photos with a single tag.
+     * Prepares a search for words in captions, best matches first.
      */
-    private void searchBySingleTag(String tagType, String tagValue) {
-        Tag searchTag = new Tag(tagType, tagValue);
-        
-        for (Album album : user.getAlbums()) {
-            for (Photo photo : album.getPhotos()) {
-                if (photo.getTags().contains(searchTag) && !searchResults.contains(photo)) {
-                    searchResults.add(photo);
-                }
-            }
+    private Supplier<List<Photo>> prepareCaptionSearch(boolean showErrors) {
+        String text = captionField.getText().trim();
+        if (text.isEmpty()) {
+            return fail(showErrors, "Please enter some words to search for");
         }
+        return () -> user.findPhotosWithCaption(text);
     }
     
     /**
-     * Searches for photos with both tags (AND).
+     * Prepares a search with a typed-in query, like person=alice AND NOT location=paris.
      */
-    private void searchByConjunction(String tagType1, String tagValue1, String tagType2, String tagValue2) {
-        Tag searchTag1 = new Tag(tagType1, tagValue1);
-        Tag searchTag2 = new Tag(tagType2, tagValue2);
+    private Supplier<List<Photo>> prepareQuerySearch(boolean showErrors) {
+        String text = queryField.getText().trim();
+        if (text.isEmpty()) {
+            return fail(showErrors, "Please enter a query");
+        }
         
-        for (Album album : user.getAlbums()) {
-            for (Photo photo : album.getPhotos()) {
-                Set<Tag> photoTags = photo.getTags();
-                if (photoTags.contains(searchTag1) && photoTags.contains(searchTag2) && 
-                    !searchResults.contains(photo)) {
-                    searchResults.add(photo);
-                }
-            }
+        PhotoQuery query;
+        try {
+            query = PhotoQuery.parse(text);
+        } catch (IllegalArgumentException e) {
+            return fail(showErrors, "Invalid query: " + e.getMessage());
         }
+        return () -> query.run(user);
     }
     
     /**
-     * Searches for photos with either tag (OR).
+     * Shows why the fields don't make a search, if asked to.
+     * @return null, for returning from the prepare methods
      */
-    private void searchByDisjunction(String tagType1, String tagValue1, String tagType2, String tagValue2) {
-        Tag searchTag1 = new Tag(tagType1, tagValue1);
-        Tag searchTag2 = new Tag(tagType2, tagValue2);
-        
-        for (Album album : user.getAlbums()) {
-            for (Photo photo : album.getPhotos()) {
-                Set<Tag> photoTags = photo.getTags();
-                if ((photoTags.contains(searchTag1) || photoTags.contains(searchTag2)) && 
-                    !searchResults.contains(photo)) {
-                    searchResults.add(photo);
-                }
-            }
+    private Supplier<List<Photo>> fail(boolean showErrors, String message) {
+        if (showErrors) {
+            showAlert("Error", message, AlertType.ERROR);
         }
+        return null;
     }
     
     /**
-     * Displays search results in the UI.
+     * Adds search results to the results pane.
+     * @param photos The photos to show (if there are none and the pane is empty, it says so)
      */
-    private void displayResults() {
-        if (searchResults.isEmpty()) {
+    private void displayResults(List<Photo> photos) {
+        if (photos.isEmpty() && resultsFlowPane.getChildren().isEmpty()) {
             Label noResultsLabel = new Label("No matching photos found");
             noResultsLabel.setStyle("-fx-font-size: 16px;");
             resultsFlowPane.getChildren().add(noResultsLabel);
@@ -334,7 +531,7 @@ public class SearchController {
         }
         
         // Display thumbnails of matching photos
-        for (Photo photo : searchResults) {
+        for (Photo photo : photos) {
             try {
                 // Create thumbnail
                 ImageView imageView = createThumbnail(photo);
@@ -362,7 +559,8 @@ public class SearchController {
      * Creates a thumbnail for a photo.
      */
     private ImageView createThumbnail(Photo photo) {
-        Image image = new Image("file:" + photo.getFilePath(), 150, 150, true, true);
+        // Loaded in the background, so a page of results doesn't wait on decoding every image
+        Image image = new Image("file:" + photo.getFilePath(), 150, 150, true, true, true);
         ImageView imageView = new ImageView(image);
         imageView.setFitWidth(150);
         imageView.setFitHeight(150);
@@ -375,6 +573,7 @@ public class SearchController {
      */
     @FXML
     public void handleCreateAlbum(ActionEvent event) {
+        cancelSearch(); // So the results can't change while the name is being typed
         if (searchResults.isEmpty()) {
             showAlert("Error", "No search results to create album from", AlertType.ERROR);
             return;
@@ -394,20 +593,30 @@ public class SearchController {
                 return;
             }
             
-            Album album = user.createAlbum(albumName);
-            if (album == null) {
-                showAlert("Error", "An album with this name already exists", AlertType.ERROR);
-                return;
-            }
-            
-            // Add all search results to the new album
-            for (Photo photo : searchResults) {
-                album.addPhoto(photo);
-            }
-            
-            DataManager.getInstance().saveData();
-            showAlert("Success", "Album created with " + searchResults.size() + " photos", AlertType.INFORMATION);
+            List<Photo> photos = searchResults;
+            runBetweenSearches(() -> createAlbum(albumName, photos));
+        }
+    }
+    
+    /**
+     * Makes a new album out of search results (FX thread, between searches).
+     */
+    private void createAlbum(String albumName, List<Photo> photos) {
+        Album album = user.createAlbum(albumName);
+        if (album == null) {
+            showAlert("Error", "An album with this name already exists", AlertType.ERROR);
+            return;
+        }
+        
+        // Add all search results to the new album
+        List<Change> changes = new ArrayList<>();
+        changes.add(Change.createAlbum(albumName));
+        for (Photo photo : album.addPhotos(photos)) {
+            changes.add(Change.addPhoto(album, photo));
         }
+        
+        DataManager.getInstance().recordChanges(user, changes);
+        showAlert("Success", "Album created with " + photos.size() + " photos", AlertType.INFORMATION);
     }
     
     /**
@@ -415,6 +624,15 @@ public class SearchController {
      */
     @FXML
     public void handleBack(ActionEvent event) {
+        // The album list uses the user's data on the FX thread, so make sure no search is still in it
+        runBetweenSearches(this::showAlbumList);
+    }
+    
+    /**
+     * Switches the window to the album list (FX thread, between searches).
+     * Leaving this scene shuts the search thread down.
+     */
+    private void showAlbumList() {
         try {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/photos/view/albumList.fxml"));
             Parent root = loader.load();
@@ -1,32 +1,54 @@
 package photos.model;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Admin class to manage users in the photo album app.
  * Separate from regular users since admin has special powers.
+ * Usernames are kept in a hash set for quick checks and a sorted set for listing them a page at a time,
+ * so a site with lots of accounts doesn't have to go through all of them.
  * @author Klever and Shrij
  */
 public class Admin implements Serializable {
     // For serialization
     private static final long serialVersionUID = 1L;
     
+    // Old admin.dat files have the usernames as a List, so that's still how they're saved
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("usernames", List.class)
+    };
+    
     // Special username constant that won't change
     private static final String ADMIN_USERNAME = "admin";
     
-    // List of all regular usernames in the system
-    private final List<String> usernames;
+    // All regular usernames in the system, hashed for lookups and sorted for listing
+    private transient Set<String> usernames;
+    private transient TreeSet<String> sortedUsernames;
+    
+    // Goes up every time the user list changes, so DataManager can skip saving an unchanged admin
+    private transient long version;
     
     /**
      * Creates a new Admin with empty user list.
      * Adds stock user by default since we need that per the specs.
      */
     public Admin() {
-        this.usernames = new ArrayList<>();
+        this.usernames = new HashSet<>();
+        this.sortedUsernames = new TreeSet<>();
         
         // Add stock user by default
         this.usernames.add("stock");
+        this.sortedUsernames.add("stock");
     }
     
     /**
@@ -39,10 +61,51 @@ public class Admin implements Serializable {
     
     /**
      * Gets all regular usernames in the system.
-     * @return Copy of the usernames list
+     * @return A read-only view of the usernames in sorted order, which follows later changes
+     */
+    public Collection<String> getUsernames() {
+        return Collections.unmodifiableSortedSet(sortedUsernames);
+    }
+    
+    /**
+     * Gets one page of the usernames that start with a prefix, in sorted order.
+     * Only goes through the usernames it skips and returns, not the whole list.
+     * @param prefix What the usernames have to start with (case sensitive), or "" for all of them
+     * @param offset How many matching usernames to skip
+     * @param limit The most usernames to return
+     * @return The page of usernames
+     */
+    public List<String> findUsernames(String prefix, int offset, int limit) {
+        List<String> page = new ArrayList<>(Math.min(limit, 256));
+        int skipped = 0;
+        for (String username : sortedUsernames.tailSet(prefix, true)) {
+            if (!username.startsWith(prefix) || page.size() >= limit) {
+                break;
+            }
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                page.add(username);
+            }
+        }
+        return page;
+    }
+    
+    /**
+     * Counts the regular users.
+     * @return The number of usernames
+     */
+    public int getUserCount() {
+        return usernames.size();
+    }
+    
+    /**
+     * Checks if a regular user with this name exists.
+     * @param username The username to look for
+     * @return true if the user exists
      */
-    public List<String> getUsernames() {
-        return new ArrayList<>(usernames);
+    public boolean hasUsername(String username) {
+        return usernames.contains(username);
     }
     
     /**
@@ -52,8 +115,10 @@ public class Admin implements Serializable {
      */
     public boolean addUsername(String username) {
         // Don't allow adding the admin username as a regular user
-        if (!usernames.contains(username) && !username.equals(ADMIN_USERNAME)) {
-            return usernames.add(username);
+        if (!username.equals(ADMIN_USERNAME) && usernames.add(username)) {
+            sortedUsernames.add(username);
+            version++;
+            return true;
         }
         return false;
     }
@@ -64,6 +129,44 @@ public class Admin implements Serializable {
      * @return true if removed, false if not found
      */
     public boolean removeUsername(String username) {
-        return usernames.remove(username);
+        if (usernames.remove(username)) {
+            sortedUsernames.remove(username);
+            version++;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the change counter for the user list.
+     * @return The number of changes made since the admin was loaded
+     */
+    long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Saves the usernames as a List, the same as before they were kept in sets.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("usernames", new ArrayList<>(sortedUsernames));
+        out.writeFields();
+    }
+    
+    /**
+     * Reads the usernames back into the sets.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        usernames = new HashSet<>();
+        sortedUsernames = new TreeSet<>();
+        List<?> saved = (List<?>) fields.get("usernames", null);
+        if (saved != null) {
+            for (Object username : saved) {
+                usernames.add((String) username);
+                sortedUsernames.add((String) username);
+            }
+        }
     }
-}
\ No newline at end of file
+}
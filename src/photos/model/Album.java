@@ -1,9 +1,17 @@
 package photos.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 /**
  * Album class to store and organize photos.
@@ -15,7 +23,11 @@ public class Album implements Serializable {
     private static final long serialVersionUID = 1L;
     
     private String name;         // What the user named this album
-    private final List<Photo> photos;  // All the photos inside this album
+    private final List<Photo> photos;  // All the photos inside this album (null where one was removed, until compact())
+    private transient HashMap<Photo, Integer> positions; // Where each photo is in photos, for quick checks and removal
+    private transient int holes;       // How many nulls removed photos left in photos
+    private transient User owner;      // User this album belongs to, so edits mark them as modified
+    private transient AlbumStats stats; // Date range and tag counts, kept up to date as photos change
     
     /**
      * Creates a new empty album.
@@ -24,6 +36,20 @@ public class Album implements Serializable {
     public Album(String name) {
         this.name = name;
         this.photos = new ArrayList<>(); // Start with empty list, user will add photos later
+        this.positions = new HashMap<>();
+        this.stats = new AlbumStats();
+    }
+    
+    /**
+     * Rebuilds an album from saved data.
+     * The photos come straight from a file we wrote, so they're trusted to have no duplicates.
+     * @param name The album name
+     * @param photos The photos in order
+     */
+    Album(String name, List<Photo> photos) {
+        this.name = name;
+        this.photos = new ArrayList<>(photos);
+        countPhotos();
     }
     
     /**
@@ -36,17 +62,80 @@ public class Album implements Serializable {
     /**
      * Changes the album name.
      * Users might want to rename their albums later.
+     * If the album belongs to a user this goes through User.renameAlbum(), so their name lookup stays right.
+     * @throws IllegalArgumentException If the user already has another album with this name
      */
     public void setName(String name) {
+        if (owner == null) {
+            rename(name);
+        } else if (!name.equals(this.name) && !owner.renameAlbum(this.name, name)) {
+            throw new IllegalArgumentException("An album named " + name + " already exists");
+        }
+    }
+    
+    /**
+     * Changes the name without checking with the owner. Only User.renameAlbum() should call this.
+     * @param name The new name
+     */
+    void rename(String name) {
         this.name = name;
+        changed();
     }
     
     /**
-     * Gives you a copy of the photos list.
-     * Using a new ArrayList to prevent outside code from messing with our actual list.
+     * Gives you the photos list.
+     * It's a read-only view so outside code can't mess with our actual list, and nothing gets copied.
+     * The view follows later changes, so copy it first if you need to add or remove photos while going through it.
      */
     public List<Photo> getPhotos() {
-        return new ArrayList<>(photos);
+        return new PhotoList();
+    }
+    
+    /**
+     * The read-only view getPhotos() hands out. Closes up the gaps removed photos left the first time it's read.
+     */
+    private class PhotoList extends AbstractList<Photo> implements RandomAccess {
+        @Override
+        public Photo get(int index) {
+            return getPhoto(index);
+        }
+        
+        @Override
+        public int size() {
+            return getPhotoCount();
+        }
+    }
+    
+    /**
+     * Gets the photo at a position, for stepping through the album in order.
+     * @param index The position, from 0
+     * @return The photo
+     */
+    public Photo getPhoto(int index) {
+        compact();
+        return photos.get(index);
+    }
+    
+    /**
+     * Finds where a photo is in the album.
+     * @param photo The photo
+     * @return Its position, or -1 if it isn't in the album
+     */
+    public int indexOf(Photo photo) {
+        if (!positions.containsKey(photo)) {
+            return -1;
+        }
+        compact();
+        return positions.get(photo);
+    }
+    
+    /**
+     * Checks whether a photo is in this album.
+     * @param photo The photo
+     * @return true if it is
+     */
+    public boolean contains(Photo photo) {
+        return positions.containsKey(photo);
     }
     
     /**
@@ -54,7 +143,7 @@ public class Album implements Serializable {
      * Faster than getting the whole list and checking its size.
      */
     public int getPhotoCount() {
-        return photos.size();
+        return photos.size() - holes;
     }
     
     /**
@@ -62,20 +151,7 @@ public class Album implements Serializable {
      * Returns null for empty albums since there's no earliest date.
      */
     public Calendar getEarliestDate() {
-        if (photos.isEmpty()) {
-            return null;
-        }
-        
-        // Start with the first photo's date
-        Calendar earliest = photos.get(0).getDateTime();
-        // Check all other photos to find the earliest
-        for (int i = 1; i < photos.size(); i++) {
-            Calendar current = photos.get(i).getDateTime();
-            if (current.before(earliest)) {
-                earliest = current;
-            }
-        }
-        return earliest;
+        return toCalendar(stats.getEarliest());
     }
     
     /**
@@ -83,18 +159,29 @@ public class Album implements Serializable {
      * Basically the opposite of getEarliestDate().
      */
     public Calendar getLatestDate() {
-        if (photos.isEmpty()) {
+        return toCalendar(stats.getLatest());
+    }
+    
+    /**
+     * Counts how many photos in this album have each tag.
+     * Kept up to date as photos and tags change, so it's cheap to call.
+     * @return A read-only map from tag to number of photos. Tags no photo has aren't in it
+     */
+    public Map<Tag, Integer> getTagCounts() {
+        return stats.getTagCounts();
+    }
+    
+    /**
+     * Makes a Calendar for showing a time.
+     * @return The Calendar, or null if there's no time
+     */
+    private static Calendar toCalendar(Long timeMillis) {
+        if (timeMillis == null) {
             return null;
         }
-        
-        Calendar latest = photos.get(0).getDateTime();
-        for (int i = 1; i < photos.size(); i++) {
-            Calendar current = photos.get(i).getDateTime();
-            if (current.after(latest)) {
-                latest = current;
-            }
-        }
-        return latest;
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMillis);
+        return calendar;
     }
     
     /**
@@ -102,17 +189,205 @@ public class Album implements Serializable {
      * Makes sure we don't add duplicates - specs say no dupes allowed.
      */
     public boolean addPhoto(Photo photo) {
-        if (!photos.contains(photo)) {
-            return photos.add(photo);
+        if (owner != null) {
+            photo = owner.canonicalPhoto(photo); // Share the user's Photo if they already have this file
+        }
+        if (positions.putIfAbsent(photo, photos.size()) == null) {
+            photos.add(photo);
+            linkPhoto(photo);
+            changed();
+            return true;
         }
         return false;
     }
     
+    /**
+     * Adds a bunch of photos at once, in order, skipping any already here (or repeated in the list).
+     * One pass over the photos, so it's fine for thousands of them.
+     * @param toAdd The photos to add
+     * @return The photos that were actually added, in order
+     */
+    public List<Photo> addPhotos(Collection<Photo> toAdd) {
+        List<Photo> added = new ArrayList<>();
+        for (Photo photo : toAdd) {
+            if (owner != null) {
+                photo = owner.canonicalPhoto(photo);
+            }
+            if (positions.putIfAbsent(photo, photos.size()) == null) {
+                photos.add(photo);
+                linkPhoto(photo);
+                added.add(photo);
+            }
+        }
+        if (!added.isEmpty()) {
+            changed();
+        }
+        return added;
+    }
+    
     /**
      * Kicks a photo out of this album.
+     * Its place is just emptied, so nothing after it has to shift. The gaps are closed up in one go
+     * when they get to be half the list, or when the photos are next read by position.
      */
     public boolean removePhoto(Photo photo) {
-        return photos.remove(photo);
+        Integer position = positions.remove(photo);
+        if (position != null) {
+            Photo removed = photos.set(position, null); // Might not be the same object as photo, just the same file
+            holes++;
+            while (!photos.isEmpty() && photos.get(photos.size() - 1) == null) {
+                photos.remove(photos.size() - 1);
+                holes--;
+            }
+            if (holes > 16 && holes > photos.size() / 2) {
+                compact();
+            }
+            removed.removeAlbum(this);
+            stats.remove(removed);
+            if (owner != null) {
+                owner.unregisterPhoto(removed);
+            }
+            changed();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Links this album (and its photos) to the user that owns it.
+     * @param owner The user
+     */
+    void setOwner(User owner) {
+        this.owner = owner;
+        compact();
+        boolean replaced = false;
+        for (int i = 0; i < photos.size(); i++) {
+            Photo photo = photos.get(i);
+            Photo shared = owner.registerPhoto(photo);
+            if (shared != photo) {
+                // Old files can have separate copies of the same file in different albums, keep just one
+                photo.removeAlbum(this);
+                shared.addAlbum(this);
+                photos.set(i, shared);
+                replaced = true;
+            }
+            shared.setOwner(owner);
+        }
+        if (replaced) {
+            recount();
+        }
+    }
+    
+    /**
+     * Unlinks this album from its user and photos once it's been deleted,
+     * so renaming it or changing its photos' tags doesn't touch the user anymore.
+     */
+    void detach() {
+        compact();
+        for (Photo photo : photos) {
+            photo.removeAlbum(this);
+            owner.unregisterPhoto(photo);
+        }
+        owner = null;
+    }
+    
+    /**
+     * Updates the tag counts when one of the album's photos gets a tag.
+     * @param tag The tag
+     */
+    void tagAdded(Tag tag) {
+        stats.tagAdded(tag);
+    }
+    
+    /**
+     * Updates the tag counts when one of the album's photos loses a tag.
+     * @param tag The tag
+     */
+    void tagRemoved(Tag tag) {
+        stats.tagRemoved(tag);
+    }
+    
+    /**
+     * Closes up the gaps removed photos left, moving the rest down in order.
+     */
+    private void compact() {
+        if (holes == 0) {
+            return;
+        }
+        int next = 0;
+        for (int i = 0; i < photos.size(); i++) {
+            Photo photo = photos.get(i);
+            if (photo != null) {
+                if (i != next) {
+                    photos.set(next, photo);
+                    positions.put(photo, next);
+                }
+                next++;
+            }
+        }
+        photos.subList(next, photos.size()).clear();
+        holes = 0;
+    }
+    
+    /**
+     * Hooks up a photo that was just added: owner, back link and stats.
+     */
+    private void linkPhoto(Photo photo) {
+        if (owner != null) {
+            photo.setOwner(owner);
+            owner.registerPhoto(photo);
+        }
+        photo.addAlbum(this);
+        stats.add(photo);
+    }
+    
+    /**
+     * Builds the photo positions and stats from scratch and links the photos to this album.
+     */
+    private void countPhotos() {
+        for (Photo photo : photos) {
+            photo.addAlbum(this);
+        }
+        recount();
+    }
+    
+    /**
+     * Builds the photo positions and stats from scratch.
+     */
+    private void recount() {
+        positions = new HashMap<>(photos.size() * 4 / 3 + 1);
+        for (int i = 0; i < photos.size(); i++) {
+            positions.putIfAbsent(photos.get(i), i);
+        }
+        stats = new AlbumStats();
+        for (Photo photo : photos) {
+            stats.add(photo);
+        }
+    }
+    
+    /**
+     * Closes up the gaps first, so saved albums never have any.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        compact();
+        out.defaultWriteObject();
+    }
+    
+    /**
+     * Rebuilds the photo positions and stats after loading, since those aren't saved.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        countPhotos();
+    }
+    
+    /**
+     * Lets the owning user know this album changed.
+     */
+    private void changed() {
+        if (owner != null) {
+            owner.markChanged();
+        }
     }
     
     /**
@@ -0,0 +1,84 @@
+package photos.model;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running totals for an album: its date range and how many photos have each tag.
+ * The album updates these as photos come and go, and photos update them when their tags change,
+ * so the album list can show them without going through every photo.
+ * @author Klever and Shrij
+ */
+class AlbumStats {
+    
+    private final TreeMap<Long, Integer> times = new TreeMap<>(); // Photo time -> how many photos have it
+    private final Map<Tag, Integer> tagCounts = new HashMap<>();  // Tag -> how many photos have it
+    
+    /**
+     * Counts a photo that was just added to the album.
+     * @param photo The photo
+     */
+    void add(Photo photo) {
+        times.merge(photo.getTimeMillis(), 1, Integer::sum);
+        for (Tag tag : photo.getTags()) {
+            tagAdded(tag);
+        }
+    }
+    
+    /**
+     * Stops counting a photo that was just taken out of the album.
+     * @param photo The photo
+     */
+    void remove(Photo photo) {
+        decrement(times, photo.getTimeMillis());
+        for (Tag tag : photo.getTags()) {
+            tagRemoved(tag);
+        }
+    }
+    
+    /**
+     * Counts a tag that was just put on one of the album's photos.
+     * @param tag The tag
+     */
+    void tagAdded(Tag tag) {
+        tagCounts.merge(tag, 1, Integer::sum);
+    }
+    
+    /**
+     * Stops counting a tag that was just taken off one of the album's photos.
+     * @param tag The tag
+     */
+    void tagRemoved(Tag tag) {
+        decrement(tagCounts, tag);
+    }
+    
+    /**
+     * Gets the earliest photo time.
+     * @return The time in epoch ms, or null if the album is empty
+     */
+    Long getEarliest() {
+        return times.isEmpty() ? null : times.firstKey();
+    }
+    
+    /**
+     * Gets the latest photo time.
+     * @return The time in epoch ms, or null if the album is empty
+     */
+    Long getLatest() {
+        return times.isEmpty() ? null : times.lastKey();
+    }
+    
+    /**
+     * Gets how many photos have each tag. Tags no photo has aren't in it.
+     * @return A read-only view that stays up to date
+     */
+    Map<Tag, Integer> getTagCounts() {
+        return Collections.unmodifiableMap(tagCounts);
+    }
+    
+    private static <K> void decrement(Map<K, Integer> counts, K key) {
+        counts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+    }
+}
@@ -0,0 +1,436 @@
+package photos.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The words in the captions of a PhotoTable's photos, for caption searches.
+ * For each word it keeps the rows of the photos whose caption has it, so finding a word is one lookup
+ * instead of going through every caption, and several words are set operations on those rows.
+ *
+ * A word is a run of letters and digits, lowercased, so "Beach," "beach" and "BEACH" are all the same word.
+ * Searches can also ask for words that start with something (bea*), which goes through the words in
+ * sorted order, and for words right next to each other ("sunset beach"), which finds the photos with
+ * all of them first and then checks the order in just those captions.
+ *
+ * A word goes once no caption has it anymore, so edits and deletes don't leave words behind.
+ * Not thread safe, same as the rest of a user's data.
+ * @author Klever and Shrij
+ */
+class CaptionIndex {
+    
+    private static final int INSERT_MAX = 64; // Up to this many new words get slotted into the sorted list one by one instead of merged
+    
+    private final PhotoTable table;
+    private final Map<String, RowBitmap> rowsByWord = new HashMap<>(); // Word -> rows of the captions with it
+    private String[] sortedWords;        // Every word in rowsByWord in order, for prefixes (null until the first prefix search)
+    private final Set<String> newWords = new HashSet<>();  // Words added since sortedWords was last brought up to date
+    private final Set<String> goneWords = new HashSet<>(); // Words taken out since then, still in sortedWords
+    private int[] lengths = new int[16]; // How many words each row's caption has, for ranking
+    
+    /**
+     * Makes an empty index for a table.
+     * @param table The table whose captions go in it
+     */
+    CaptionIndex(PhotoTable table) {
+        this.table = table;
+    }
+    
+    /**
+     * Adds the words of a row's caption.
+     * @param row The row
+     * @param caption The caption (null counts as no words)
+     */
+    void add(int row, String caption) {
+        List<String> words = words(caption);
+        if (row >= lengths.length) {
+            lengths = Arrays.copyOf(lengths, Math.max(row + 1, lengths.length * 2));
+        }
+        lengths[row] = words.size();
+        for (String word : words) {
+            RowBitmap rows = rowsByWord.get(word);
+            if (rows == null) {
+                rows = new RowBitmap();
+                rowsByWord.put(word, rows);
+                if (sortedWords != null && !goneWords.remove(word)) {
+                    newWords.add(word);
+                }
+            }
+            rows.add(row);
+        }
+    }
+    
+    /**
+     * Takes out the words of a row's caption, and any word that no other caption has.
+     * @param row The row
+     * @param caption The caption it was added with
+     */
+    void remove(int row, String caption) {
+        for (String word : words(caption)) {
+            RowBitmap rows = rowsByWord.get(word);
+            if (rows != null) {
+                rows.remove(row);
+                if (rows.isEmpty()) {
+                    rowsByWord.remove(word);
+                    if (sortedWords != null && !newWords.remove(word)) {
+                        goneWords.add(word);
+                    }
+                }
+            }
+        }
+        lengths[row] = 0;
+    }
+    
+    /**
+     * Gets the rows whose captions match a search.
+     * @param query The search
+     * @return The rows (don't change it, it can be the index's own copy)
+     */
+    RowBitmap rows(Query query) {
+        if (query.terms.isEmpty()) {
+            return new RowBitmap();
+        }
+        RowBitmap rows = null;
+        for (Term term : query.terms) {
+            PhotoTable.checkCancelled();
+            RowBitmap termRows = rows(term);
+            rows = rows == null ? termRows : RowBitmap.and(rows, termRows);
+            if (rows.isEmpty()) {
+                break;
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Guesses how many captions match a search, from how many have its rarest word.
+     * @param query The search
+     * @return About how many match (never fewer)
+     */
+    int estimate(Query query) {
+        int least = query.terms.isEmpty() ? 0 : Integer.MAX_VALUE;
+        for (Term term : query.terms) {
+            for (int i = 0; i < term.words.length; i++) {
+                least = Math.min(least, i == term.words.length - 1 && term.prefix
+                    ? countStartingWith(term.words[i]) : rowsWithWord(term.words[i]).cardinality());
+            }
+        }
+        return least;
+    }
+    
+    /**
+     * Finds the photos whose captions match a search, best matches first.
+     * Every photo found has all the search terms, so the ranking is:
+     * - photos where a prefix term is a whole word (bea* finding "bea") before ones where it's just the start of one,
+     * - then shorter captions, since the search words are more of what the caption is about,
+     * - then by row.
+     * @param query The search
+     * @return The photos
+     */
+    List<Photo> find(Query query) {
+        RowBitmap rows = rows(query);
+        List<RowBitmap> exactRows = new ArrayList<>(); // For each prefix term, the rows that have it with a whole last word
+        for (Term term : query.terms) {
+            if (term.prefix) {
+                exactRows.add(rows(new Term(term.words, false)));
+            }
+        }
+        
+        PhotoTable.checkCancelled();
+        
+        // Sort by one long per photo: prefix misses in the top bits, then caption length, then row
+        long[] keys = new long[rows.cardinality()];
+        int[] count = { 0 };
+        rows.forEach(row -> {
+            long misses = 0;
+            for (RowBitmap exact : exactRows) {
+                if (!exact.contains(row)) {
+                    misses++;
+                }
+            }
+            keys[count[0]++] = Math.min(misses, 0xFF) << 55 | (long) Math.min(lengths[row], 0xFFFFFF) << 31 | row;
+        });
+        Arrays.sort(keys);
+        
+        List<Photo> found = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            found.add(table.get((int) (key & Integer.MAX_VALUE)));
+        }
+        return found;
+    }
+    
+    /**
+     * Gets the rows whose captions have one search term.
+     */
+    private RowBitmap rows(Term term) {
+        int last = term.words.length - 1;
+        
+        // Every word has to be there, rarest first, then the ones that have them in order are checked directly
+        RowBitmap[] wordRows = new RowBitmap[term.words.length];
+        for (int i = 0; i <= last; i++) {
+            wordRows[i] = i == last && term.prefix ? rowsStartingWith(term.words[i]) : rowsWithWord(term.words[i]);
+        }
+        Arrays.sort(wordRows, (a, b) -> Integer.compare(a.cardinality(), b.cardinality()));
+        RowBitmap rows = wordRows[0];
+        for (int i = 1; i < wordRows.length && !rows.isEmpty(); i++) {
+            rows = RowBitmap.and(rows, wordRows[i]);
+        }
+        if (term.words.length == 1) {
+            return rows;
+        }
+        RowBitmap inOrder = new RowBitmap();
+        rows.forEach(row -> {
+            if (term.matches(words(table.get(row).getCaption()))) {
+                inOrder.add(row);
+            }
+        });
+        return inOrder;
+    }
+    
+    private RowBitmap rowsWithWord(String word) {
+        RowBitmap rows = rowsByWord.get(word);
+        return rows != null ? rows : new RowBitmap();
+    }
+    
+    /**
+     * Gets the rows whose captions have a word starting with a prefix.
+     */
+    private RowBitmap rowsStartingWith(String prefix) {
+        String[] words = getSortedWords();
+        int first = lowerBound(words, prefix);
+        int end = first;
+        while (end < words.length && words[end].startsWith(prefix)) {
+            end++;
+        }
+        if (end - first <= 1) {
+            return first < end ? rowsWithWord(words[first]) : new RowBitmap();
+        }
+        
+        // A caption can have several of the words, so put all their rows in one sorted list and skip repeats
+        // (putting each word's rows together one at a time would copy the result over and over)
+        int[] rows = new int[16];
+        int count = 0;
+        for (int i = first; i < end; i++) {
+            RowBitmap wordRows = rowsWithWord(words[i]);
+            if (count + wordRows.cardinality() > rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(count + wordRows.cardinality(), rows.length * 2));
+            }
+            int[] into = rows;
+            int[] at = { count };
+            wordRows.forEach(row -> into[at[0]++] = row);
+            count = at[0];
+        }
+        Arrays.sort(rows, 0, count);
+        RowBitmap found = new RowBitmap();
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || rows[i] != rows[i - 1]) {
+                found.add(rows[i]);
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Adds up how many captions have each word starting with a prefix (a caption with two of them counts twice).
+     */
+    private int countStartingWith(String prefix) {
+        String[] words = getSortedWords();
+        long count = 0;
+        for (int i = lowerBound(words, prefix); i < words.length && words[i].startsWith(prefix); i++) {
+            count += rowsWithWord(words[i]).cardinality();
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Gets every word in order, sorting them the first time they're needed.
+     * Loading a user adds a lot of words at once, and most users never search by prefix,
+     * so the sorted list isn't made until then. After that, words taken out since are dropped in one pass,
+     * a few words added since are slotted in where they go, and a lot of them are sorted on their own
+     * and merged in, in one pass.
+     */
+    private String[] getSortedWords() {
+        if (sortedWords != null && !goneWords.isEmpty()) {
+            String[] kept = new String[sortedWords.length - goneWords.size()];
+            int k = 0;
+            for (String word : sortedWords) {
+                if (!goneWords.contains(word)) {
+                    kept[k++] = word;
+                }
+            }
+            sortedWords = kept;
+            goneWords.clear();
+        }
+        if (sortedWords == null) {
+            sortedWords = rowsByWord.keySet().toArray(new String[0]);
+            Arrays.sort(sortedWords);
+        } else if (newWords.size() <= INSERT_MAX) {
+            for (String word : newWords) {
+                int at = lowerBound(sortedWords, word);
+                String[] words = new String[sortedWords.length + 1];
+                System.arraycopy(sortedWords, 0, words, 0, at);
+                words[at] = word;
+                System.arraycopy(sortedWords, at, words, at + 1, sortedWords.length - at);
+                sortedWords = words;
+            }
+            newWords.clear();
+        } else {
+            String[] added = newWords.toArray(new String[0]);
+            Arrays.sort(added);
+            String[] merged = new String[sortedWords.length + added.length];
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < merged.length; k++) {
+                merged[k] = j == added.length || (i < sortedWords.length && sortedWords[i].compareTo(added[j]) < 0)
+                    ? sortedWords[i++] : added[j++];
+            }
+            sortedWords = merged;
+            newWords.clear();
+        }
+        return sortedWords;
+    }
+    
+    /**
+     * Finds the first word at or after the given one.
+     */
+    private static int lowerBound(String[] words, String word) {
+        int low = 0;
+        int high = words.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (words[mid].compareTo(word) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Splits text into words: runs of letters and digits, lowercased.
+     * @param text The text (null counts as no words)
+     * @return The words, in order, repeats included
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>(text == null ? 0 : 8);
+        if (text == null) {
+            return words;
+        }
+        int i = 0;
+        while (i < text.length()) {
+            int start = i;
+            while (i < text.length() && Character.isLetterOrDigit(text.codePointAt(i))) {
+                i += Character.charCount(text.codePointAt(i));
+            }
+            if (i > start) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            } else {
+                i += Character.charCount(text.codePointAt(i));
+            }
+        }
+        return words;
+    }
+    
+    /**
+     * A caption search: words that all have to be in the caption.
+     * Quoted words have to be right next to each other in that order, and a * at the end of a word
+     * (or of the last word in quotes) matches any word starting with it.
+     * Words joined by other characters, like sunset-beach, have to be next to each other too, the same as in quotes.
+     */
+    static final class Query {
+        private final List<Term> terms = new ArrayList<>();
+        
+        /**
+         * Reads a search. It can't be invalid: a missing closing quote just runs to the end,
+         * and anything without letters or digits is left out.
+         * @param text The search as typed
+         * @return The search
+         */
+        static Query parse(String text) {
+            Query query = new Query();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '"') {
+                    int end = text.indexOf('"', i + 1);
+                    end = end < 0 ? text.length() : end;
+                    query.addTerm(text.substring(i + 1, end));
+                    i = end + 1;
+                } else {
+                    int end = i;
+                    while (end < text.length() && !Character.isWhitespace(text.charAt(end)) && text.charAt(end) != '"') {
+                        end++;
+                    }
+                    query.addTerm(text.substring(i, end));
+                    i = end;
+                }
+            }
+            return query;
+        }
+        
+        /**
+         * Checks a caption directly, without an index.
+         * @param caption The caption
+         * @return true if it has every term
+         */
+        boolean matches(String caption) {
+            if (terms.isEmpty()) {
+                return false;
+            }
+            List<String> words = words(caption);
+            for (Term term : terms) {
+                if (!term.matches(words)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private void addTerm(String text) {
+            List<String> words = words(text);
+            if (!words.isEmpty()) {
+                terms.add(new Term(words.toArray(new String[0]), text.trim().endsWith("*")));
+            }
+        }
+    }
+    
+    /**
+     * One or more words that have to be next to each other, the last one maybe just the start of a word.
+     */
+    private static final class Term {
+        private final String[] words;
+        private final boolean prefix;
+        
+        Term(String[] words, boolean prefix) {
+            this.words = words;
+            this.prefix = prefix;
+        }
+        
+        /**
+         * Checks whether a caption's words have this term somewhere.
+         */
+        boolean matches(List<String> captionWords) {
+            int last = words.length - 1;
+            for (int start = 0; start + last < captionWords.size(); start++) {
+                int i = 0;
+                while (i < last && captionWords.get(start + i).equals(words[i])) {
+                    i++;
+                }
+                if (i == last && (prefix ? captionWords.get(start + last).startsWith(words[last])
+                        : captionWords.get(start + last).equals(words[last]))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package photos.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single edit to a user's library.
+ * These get appended to the user's change journal so a click only writes a few bytes
+ * instead of the whole .dat file. Replaying them on top of the last snapshot gives back the library.
+ * @author Klever and Shrij
+ */
+public class Change {
+    
+    /**
+     * The kinds of edits the app can make.
+     * Don't reorder these - the ordinal is what gets written to the journal.
+     */
+    public enum Type {
+        CREATE_ALBUM, DELETE_ALBUM, RENAME_ALBUM,
+        ADD_PHOTO, REMOVE_PHOTO, SET_CAPTION,
+        ADD_TAG, REMOVE_TAG, ADD_TAG_TYPE
+    }
+    
+    // Set on the type byte of records whose strings are length-prefixed UTF-8 (UserCodec.writeString).
+    // Records written before that used writeUTF(), which can't take more than 64 KB, and are still read.
+    private static final int UTF8_STRINGS = 0x80;
+    
+    private final Type type;
+    private final String albumName;  // Album the change applies to (or the tag type for ADD_TAG_TYPE)
+    private final String filePath;   // Photo the change applies to, if any
+    private final String text;       // New album name, caption or tag name depending on the type
+    private final String value;      // Tag value for tag changes
+    private final long timeMillis;   // Photo date for ADD_PHOTO
+    private final List<Tag> tags;    // Photo tags for ADD_PHOTO
+    
+    private Change(Type type, String albumName, String filePath, String text, String value,
+                   long timeMillis, List<Tag> tags) {
+        this.type = type;
+        this.albumName = albumName;
+        this.filePath = filePath;
+        this.text = text;
+        this.value = value;
+        this.timeMillis = timeMillis;
+        this.tags = tags;
+    }
+    
+    /**
+     * A new empty album was created.
+     */
+    public static Change createAlbum(String name) {
+        return new Change(Type.CREATE_ALBUM, name, null, null, null, 0, null);
+    }
+    
+    /**
+     * An album was deleted.
+     */
+    public static Change deleteAlbum(String name) {
+        return new Change(Type.DELETE_ALBUM, name, null, null, null, 0, null);
+    }
+    
+    /**
+     * An album was renamed.
+     */
+    public static Change renameAlbum(String oldName, String newName) {
+        return new Change(Type.RENAME_ALBUM, oldName, null, newName, null, 0, null);
+    }
+    
+    /**
+     * A photo was added (or copied/moved) into an album.
+     * Carries the photo's caption, date and tags so replay doesn't need the file on disk.
+     */
+    public static Change addPhoto(Album album, Photo photo) {
+        return new Change(Type.ADD_PHOTO, album.getName(), photo.getFilePath(), photo.getCaption(), null,
+                          photo.getTimeMillis(), new ArrayList<>(photo.getTags()));
+    }
+    
+    /**
+     * A photo was removed from an album.
+     */
+    public static Change removePhoto(Album album, Photo photo) {
+        return new Change(Type.REMOVE_PHOTO, album.getName(), photo.getFilePath(), null, null, 0, null);
+    }
+    
+    /**
+     * A photo's caption was changed. Records the caption the photo has now.
+     */
+    public static Change setCaption(Album album, Photo photo) {
+        return new Change(Type.SET_CAPTION, album.getName(), photo.getFilePath(), photo.getCaption(), null, 0, null);
+    }
+    
+    /**
+     * A tag was added to a photo.
+     */
+    public static Change addTag(Album album, Photo photo, Tag tag) {
+        return new Change(Type.ADD_TAG, album.getName(), photo.getFilePath(), tag.getName(), tag.getValue(), 0, null);
+    }
+    
+    /**
+     * A tag was removed from a photo.
+     */
+    public static Change removeTag(Album album, Photo photo, Tag tag) {
+        return new Change(Type.REMOVE_TAG, album.getName(), photo.getFilePath(), tag.getName(), tag.getValue(), 0, null);
+    }
+    
+    /**
+     * The user defined a new tag type.
+     */
+    public static Change addTagType(String tagType) {
+        return new Change(Type.ADD_TAG_TYPE, tagType, null, null, null, 0, null);
+    }
+    
+    /**
+     * Gets what kind of change this is.
+     * @return The change type
+     */
+    public Type getType() {
+        return type;
+    }
+    
+    /*
+     * Raw fields, for storage backends that apply changes to their own records
+     * instead of replaying them on a loaded User. What each one means depends on the type (see the fields).
+     */
+    
+    String getAlbumName() {
+        return albumName;
+    }
+    
+    String getFilePath() {
+        return filePath;
+    }
+    
+    String getText() {
+        return text;
+    }
+    
+    String getValue() {
+        return value;
+    }
+    
+    long getTimeMillis() {
+        return timeMillis;
+    }
+    
+    List<Tag> getTags() {
+        return tags;
+    }
+    
+    /**
+     * Applies this change to a user.
+     * Replaying isn't safe to repeat (a delete and re-create of the same album name would hit the
+     * wrong album the second time), so a journal is only ever replayed on the snapshot generation it
+     * was started on (see ChangeJournal). Every case does nothing when its target is gone.
+     * @param user The user to apply the change to
+     */
+    void apply(User user) {
+        if (type == Type.ADD_TAG_TYPE) {
+            user.addTagType(albumName);
+            return;
+        }
+        if (type == Type.CREATE_ALBUM) {
+            user.createAlbum(albumName);
+            return;
+        }
+        if (type == Type.DELETE_ALBUM) {
+            user.deleteAlbum(albumName);
+            return;
+        }
+        if (type == Type.RENAME_ALBUM) {
+            user.renameAlbum(albumName, text);
+            return;
+        }
+        
+        Album album = user.getAlbum(albumName);
+        if (album == null) {
+            return;
+        }
+        
+        if (type == Type.ADD_PHOTO) {
+            // Reuse the photo if another album already has it, so copies stay shared like they were in memory
+            Photo photo = user.findPhoto(filePath);
+            if (photo == null) {
+                photo = new Photo(filePath, text, timeMillis, user.getTagDictionary());
+                for (Tag tag : tags) {
+                    photo.addTag(tag);
+                }
+            }
+            album.addPhoto(photo);
+            return;
+        }
+        
+        Photo photo = user.findPhoto(filePath);
+        if (photo == null || !album.contains(photo)) {
+            return;
+        }
+        switch (type) {
+            case REMOVE_PHOTO:
+                album.removePhoto(photo);
+                break;
+            case SET_CAPTION:
+                photo.setCaption(text);
+                break;
+            case ADD_TAG:
+                photo.addTag(new Tag(text, value));
+                break;
+            case REMOVE_TAG:
+                photo.removeTag(new Tag(text, value));
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Writes this change as one journal record.
+     * @param out The journal stream
+     * @throws IOException If the write fails
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(UTF8_STRINGS | type.ordinal());
+        UserCodec.writeString(out, albumName);
+        switch (type) {
+            case RENAME_ALBUM:
+                UserCodec.writeString(out, text);
+                break;
+            case ADD_PHOTO:
+                UserCodec.writeString(out, filePath);
+                UserCodec.writeString(out, text);
+                out.writeLong(timeMillis);
+                out.writeInt(tags.size());
+                for (Tag tag : tags) {
+                    UserCodec.writeString(out, tag.getName());
+                    UserCodec.writeString(out, tag.getValue());
+                }
+                break;
+            case REMOVE_PHOTO:
+                UserCodec.writeString(out, filePath);
+                break;
+            case SET_CAPTION:
+                UserCodec.writeString(out, filePath);
+                UserCodec.writeString(out, text);
+                break;
+            case ADD_TAG:
+            case REMOVE_TAG:
+                UserCodec.writeString(out, filePath);
+                UserCodec.writeString(out, text);
+                UserCodec.writeString(out, value);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Reads one journal record written by write(), or by an older build that still used writeUTF().
+     * @param in The journal stream
+     * @return The change
+     * @throws IOException If the record is cut off or unreadable
+     */
+    static Change read(DataInputStream in) throws IOException {
+        int first = in.readUnsignedByte();
+        boolean utf8 = (first & UTF8_STRINGS) != 0;
+        int ordinal = first & ~UTF8_STRINGS;
+        if (ordinal >= Type.values().length) {
+            throw new IOException("Unknown change type " + ordinal);
+        }
+        Type type = Type.values()[ordinal];
+        String albumName = readString(in, utf8);
+        switch (type) {
+            case RENAME_ALBUM:
+                return new Change(type, albumName, null, readString(in, utf8), null, 0, null);
+            case ADD_PHOTO: {
+                String filePath = readString(in, utf8);
+                String caption = readString(in, utf8);
+                long timeMillis = in.readLong();
+                int tagCount = in.readInt();
+                List<Tag> tags = new ArrayList<>(tagCount);
+                for (int i = 0; i < tagCount; i++) {
+                    tags.add(new Tag(readString(in, utf8), readString(in, utf8)));
+                }
+                return new Change(type, albumName, filePath, caption, null, timeMillis, tags);
+            }
+            case REMOVE_PHOTO:
+                return new Change(type, albumName, readString(in, utf8), null, null, 0, null);
+            case SET_CAPTION:
+                return new Change(type, albumName, readString(in, utf8), readString(in, utf8), null, 0, null);
+            case ADD_TAG:
+            case REMOVE_TAG:
+                return new Change(type, albumName, readString(in, utf8), readString(in, utf8), readString(in, utf8), 0, null);
+            default:
+                return new Change(type, albumName, null, null, null, 0, null);
+        }
+    }
+    
+    private static String readString(DataInputStream in, boolean utf8) throws IOException {
+        return utf8 ? UserCodec.readString(in) : in.readUTF();
+    }
+}
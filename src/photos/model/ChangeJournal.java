@@ -0,0 +1,178 @@
+package photos.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of changes for one user, kept next to their .dat snapshot.
+ * The snapshot plus the journal is the user's current library.
+ *
+ * Layout:
+ *   magic "PHJ" + version byte
+ *   generation (long) of the snapshot the journal was started on top of
+ *   records: payload length (int), the change (see Change.write), CRC32 of the payload (int)
+ *
+ * The length and checksum are what let replay tell exactly where the last good record ends,
+ * so a half-written or damaged tail can be cut off before anything else is appended.
+ * The generation lets a journal left over from before the latest snapshot (say its delete was lost
+ * in a crash) be told apart from the current one, since replaying it again isn't safe.
+ * @author Klever and Shrij
+ */
+class ChangeJournal {
+    
+    private static final byte[] MAGIC = { 'P', 'H', 'J' };
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+    
+    /**
+     * How far a journal's good records go, as found by replay().
+     */
+    static class Tail {
+        long length;     // Bytes up to the end of the last good record (0 if there's no complete header)
+        long generation; // Snapshot generation from the header
+        int records;     // Good records
+    }
+    
+    private ChangeJournal() {
+        // Only static helpers in here
+    }
+    
+    /**
+     * Gets the header a new journal file starts with.
+     * @param generation The generation of the snapshot the journal goes on top of
+     * @return The header bytes
+     */
+    static byte[] header(long generation) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).put((byte) VERSION).putLong(generation);
+        return header.array();
+    }
+    
+    /**
+     * Encodes changes as journal records, ready to be appended to the end of a journal file.
+     * @param changes The changes, in order
+     * @return The records
+     * @throws IOException If a change can't be written
+     */
+    static byte[] encode(List<Change> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(changes.size() * 72);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        CRC32 crc = new CRC32();
+        for (Change change : changes) {
+            record.reset();
+            change.write(recordOut);
+            recordOut.flush();
+            byte[] payload = record.toByteArray();
+            crc.reset();
+            crc.update(payload);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Replays a journal file on top of a user.
+     * Stops at the first record that's cut off or fails its checksum (say the app died mid-write);
+     * everything before it still counts, and the returned tail says where it ended.
+     * A journal from an older generation than the snapshot is already in it, so nothing is replayed
+     * and the tail comes back empty (the next append starts the journal over).
+     * @param journalFile The journal file
+     * @param snapshotGeneration The generation of the snapshot the user was loaded from
+     * @param user The user loaded from the snapshot, or null to only check the journal
+     * @return Where the good records end
+     * @throws IOException If the file can't be opened or isn't a journal
+     */
+    static Tail replay(File journalFile, long snapshotGeneration, User user) throws IOException {
+        Tail tail = new Tail();
+        long fileLength = journalFile.length();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile)))) {
+            byte[] header = new byte[HEADER_SIZE];
+            try {
+                in.readFully(header);
+            } catch (EOFException e) {
+                return tail; // Empty, or died while the header was being written
+            }
+            if (header[0] != MAGIC[0] || header[1] != MAGIC[1] || header[2] != MAGIC[2] || header[3] != VERSION) {
+                throw new IOException(journalFile.getName() + " is not a journal this version can read");
+            }
+            tail.generation = ByteBuffer.wrap(header, MAGIC.length + 1, 8).getLong();
+            if (tail.generation < snapshotGeneration) {
+                System.err.println("Journal " + journalFile.getName() + " is older than its snapshot, ignoring it");
+                return new Tail();
+            }
+            if (tail.generation > snapshotGeneration) {
+                // The snapshot it was started on didn't make it to disk, this is still the newest there is
+                System.err.println("Journal " + journalFile.getName() + " is newer than its snapshot (generation "
+                                   + tail.generation + " after " + snapshotGeneration + ")");
+            }
+            tail.length = HEADER_SIZE;
+            
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break; // Clean end of the journal (a few stray bytes of a length stay out of the tail too)
+                }
+                try {
+                    if (length < 0 || length > fileLength - tail.length - 8) {
+                        throw new IOException("bad record length " + length);
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    int checksum = in.readInt();
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("checksum mismatch");
+                    }
+                    Change change = Change.read(new DataInputStream(new ByteArrayInputStream(payload)));
+                    if (user != null) {
+                        change.apply(user);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Journal " + journalFile.getName() + " is damaged after record "
+                                       + tail.records + " (" + e.getMessage() + "), the rest is ignored");
+                    break;
+                }
+                tail.records++;
+                tail.length += 8 + length;
+            }
+        }
+        return tail;
+    }
+    
+    /**
+     * Reads just the generation from a journal's header.
+     * @param journalFile The journal file
+     * @return The generation, or 0 if there's no journal (or it has no header)
+     */
+    static long readGeneration(File journalFile) {
+        try (FileInputStream in = new FileInputStream(journalFile)) {
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            if (header.length < HEADER_SIZE || header[0] != MAGIC[0] || header[1] != MAGIC[1] || header[2] != MAGIC[2]) {
+                return 0;
+            }
+            return ByteBuffer.wrap(header, MAGIC.length + 1, 8).getLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
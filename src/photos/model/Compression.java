@@ -0,0 +1,355 @@
+package photos.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional compression for the admin and user files.
+ * A compressed file starts with one byte saying which codec wrote it. Files from before this
+ * start with 0xAC (Java serialization) or 'P' (UserCodec) instead, so they're read as they are.
+ *
+ * Codecs (-Dphotos.compression=...):
+ *   none    - header byte and the raw data (default)
+ *   deflate - java.util.zip at -Dphotos.compression.level (1-9, or -1 for zlib's own default; default 6)
+ *   lz      - a small LZ77 codec, much faster than deflate but doesn't shrink things as much
+ * @author Klever and Shrij
+ */
+class Compression {
+    
+    /**
+     * The codecs. The id is the header byte, so don't change them.
+     */
+    enum Codec {
+        NONE(1), DEFLATE(2), LZ(3);
+        
+        final int id;
+        
+        Codec(int id) {
+            this.id = id;
+        }
+        
+        static Codec parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown compression " + name + ", using none");
+                return NONE;
+            }
+        }
+    }
+    
+    // Deflate level used when photos.compression.level isn't set or isn't one Deflater takes
+    static final int DEFAULT_LEVEL = 6;
+    
+    // LZ blocks are compressed on their own, so a reader only ever needs one in memory
+    private static final int LZ_BLOCK = 64 * 1024;
+    private static final int LZ_MIN_MATCH = 4;
+    private static final int LZ_HASH_BITS = 14;
+    
+    private Compression() {
+        // Only static helpers in here
+    }
+    
+    /**
+     * Reads a deflate level setting, so a bad one doesn't blow up the first save.
+     * @param value The setting, or null if it isn't set
+     * @return The level, or DEFAULT_LEVEL if it's missing or not between -1 and 9
+     */
+    static int parseLevel(String value) {
+        if (value == null) {
+            return DEFAULT_LEVEL;
+        }
+        try {
+            int level = Integer.parseInt(value.trim());
+            if (level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION) {
+                return level;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the warning below
+        }
+        System.err.println("Unknown compression level " + value + ", using " + DEFAULT_LEVEL);
+        return DEFAULT_LEVEL;
+    }
+    
+    /**
+     * Compresses a whole file's contents, header byte included.
+     * @param data The file contents
+     * @param codec The codec to use
+     * @param level The deflate level (ignored by the other codecs)
+     * @return What to write to disk
+     */
+    static byte[] compress(byte[] data, Codec codec, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 16);
+        bytes.write(codec.id);
+        switch (codec) {
+            case DEFLATE: {
+                Deflater deflater = new Deflater(level);
+                try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater, 8192)) {
+                    out.write(data);
+                } finally {
+                    deflater.end();
+                }
+                break;
+            }
+            case LZ:
+                for (int offset = 0; offset < data.length; offset += LZ_BLOCK) {
+                    int length = Math.min(LZ_BLOCK, data.length - offset);
+                    byte[] block = lzCompress(data, offset, length);
+                    writeVarInt(bytes, length);
+                    writeVarInt(bytes, block.length);
+                    bytes.write(block);
+                }
+                break;
+            default:
+                bytes.write(data);
+                break;
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Wraps a file's stream so reading from it gives the uncompressed contents.
+     * Files without a codec header (written before compression existed) come through untouched.
+     * @param in The file stream. Must support mark/reset
+     * @return A stream of the uncompressed contents
+     */
+    static InputStream decompress(InputStream in) throws IOException {
+        in.mark(1);
+        int header = in.read();
+        if (header == Codec.NONE.id) {
+            return in;
+        }
+        if (header == Codec.DEFLATE.id) {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end(); // Not done for us when we pass our own Inflater
+                    }
+                }
+            };
+        }
+        if (header == Codec.LZ.id) {
+            return new LzInputStream(in);
+        }
+        in.reset(); // No header, an old file
+        return in;
+    }
+    
+    /**
+     * Reads LZ blocks one at a time as they're needed.
+     */
+    private static class LzInputStream extends InputStream {
+        private final InputStream in;
+        private byte[] block = new byte[0];
+        private int position;
+        
+        LzInputStream(InputStream in) {
+            this.in = in;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return block[position++] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, block.length - position);
+            System.arraycopy(block, position, b, off, n);
+            position += n;
+            return n;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+        
+        private boolean fill() throws IOException {
+            while (position == block.length) {
+                int length = readVarInt(in, true);
+                if (length < 0) {
+                    return false;
+                }
+                byte[] compressed = new byte[readVarInt(in, false)];
+                int read = in.readNBytes(compressed, 0, compressed.length);
+                if (read != compressed.length) {
+                    throw new EOFException("Compressed file is cut off");
+                }
+                block = lzDecompress(compressed, length);
+                position = 0;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Compresses one block. Each sequence is a token byte (literal count in the high 4 bits,
+     * match length - 4 in the low 4, with 15 meaning more length bytes follow), the literals,
+     * then a 2-byte offset back to the match. The last sequence has literals only.
+     */
+    static byte[] lzCompress(byte[] src, int start, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+        int[] table = new int[1 << LZ_HASH_BITS]; // Last position (+1) each 4-byte prefix was seen at
+        int end = start + length;
+        int literalStart = start;
+        int i = start;
+        while (i + LZ_MIN_MATCH <= end) {
+            int hash = hash(src, i);
+            int candidate = table[hash] - 1;
+            table[hash] = i + 1;
+            if (candidate >= start && i - candidate <= 0xFFFF && same4(src, candidate, i)) {
+                int matchLength = LZ_MIN_MATCH;
+                while (i + matchLength < end && src[candidate + matchLength] == src[i + matchLength]) {
+                    matchLength++;
+                }
+                writeSequence(out, src, literalStart, i - literalStart, i - candidate, matchLength);
+                i += matchLength;
+                literalStart = i;
+            } else {
+                i++;
+            }
+        }
+        writeSequence(out, src, literalStart, end - literalStart, 0, 0);
+        return out.toByteArray();
+    }
+    
+    /**
+     * Undoes lzCompress().
+     * @param src The compressed block
+     * @param length How long the block is uncompressed
+     * @throws IOException If the block is corrupt
+     */
+    static byte[] lzDecompress(byte[] src, int length) throws IOException {
+        byte[] dst = new byte[length];
+        int d = 0;
+        int s = 0;
+        try {
+            while (s < src.length) {
+                int token = src[s++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[s++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, s, dst, d, literals);
+                s += literals;
+                d += literals;
+                if (s >= src.length) {
+                    break; // Last sequence, no match
+                }
+                
+                int offset = (src[s++] & 0xFF) | (src[s++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[s++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += LZ_MIN_MATCH;
+                if (offset == 0 || offset > d || d + matchLength > length) {
+                    throw new IOException("Corrupt compressed block");
+                }
+                for (int k = 0; k < matchLength; k++) {
+                    dst[d] = dst[d - offset]; // Byte by byte, the match can overlap what it's copying
+                    d++;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt compressed block");
+        }
+        if (d != length) {
+            throw new IOException("Compressed block is the wrong size");
+        }
+        return dst;
+    }
+    
+    private static void writeSequence(ByteArrayOutputStream out, byte[] src, int literalStart, int literals,
+                                      int offset, int matchLength) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - LZ_MIN_MATCH;
+        out.write((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+        if (literals >= 15) {
+            writeLength(out, literals - 15);
+        }
+        out.write(src, literalStart, literals);
+        if (matchLength == 0) {
+            return;
+        }
+        out.write(offset & 0xFF);
+        out.write(offset >>> 8);
+        if (matchCode >= 15) {
+            writeLength(out, matchCode - 15);
+        }
+    }
+    
+    private static void writeLength(ByteArrayOutputStream out, int length) {
+        while (length >= 255) {
+            out.write(255);
+            length -= 255;
+        }
+        out.write(length);
+    }
+    
+    private static int hash(byte[] b, int i) {
+        int v = (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+        return (v * 0x9E3779B1) >>> (32 - LZ_HASH_BITS);
+    }
+    
+    private static boolean same4(byte[] b, int i, int j) {
+        return b[i] == b[j] && b[i + 1] == b[j + 1] && b[i + 2] == b[j + 2] && b[i + 3] == b[j + 3];
+    }
+    
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    /**
+     * Reads a varint, or returns -1 at a clean end of stream if that's allowed there.
+     */
+    private static int readVarInt(InputStream in, boolean endAllowed) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0 && endAllowed) {
+                    return -1;
+                }
+                throw new EOFException("Compressed file is cut off");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt compressed file");
+    }
+}
@@ -1,13 +1,22 @@
 package photos.model;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Manages data persistence for the photo album application.
@@ -15,12 +24,50 @@ import java.util.Map;
  */
 public class DataManager {
     private static final String DATA_DIR = "data";
-    private static final String ADMIN_FILE = DATA_DIR + File.separator + "admin.dat";
-    private static final String USER_DIR = DATA_DIR + File.separator + "users";
+    
+    // How long the background writer waits to gather up more saves, in ms (-Dphotos.save.debounce=...)
+    private static final long SAVE_DEBOUNCE_MS = Long.getLong("photos.save.debounce", 200);
+    
+    // How many users to keep in memory once they've been loaded (-Dphotos.cache.users=...)
+    private static final int USER_CACHE_SIZE = Integer.getInteger("photos.cache.users", 16);
+    
+    // Which users to load at startup (-Dphotos.load=...):
+    //   lazy     - only when someone logs in (default)
+    //   all      - everyone, one after another
+    //   parallel - everyone, several files at a time
+    private static final String LOAD_MODE = System.getProperty("photos.load", "lazy");
+    
+    // When saves wait for the disk (-Dphotos.fsync=...):
+    //   always   - every batch of writes (default)
+    //   interval - at most once every photos.fsync.interval ms
+    //   never    - leave it to the OS
+    private static final String FSYNC_POLICY = System.getProperty("photos.fsync", "always");
+    private static final long FSYNC_INTERVAL_MS = Long.getLong("photos.fsync.interval", 1000);
+    
+    // How the files store compresses admin.dat and the user files (-Dphotos.compression=...):
+    //   none    - no compression (default)
+    //   deflate - smallest files, at photos.compression.level 1 (fastest) to 9 (smallest)
+    //   lz      - quick to write and read, not as small as deflate
+    private static final String COMPRESSION = System.getProperty("photos.compression", "none");
+    private static final int COMPRESSION_LEVEL = Compression.parseLevel(System.getProperty("photos.compression.level"));
+    
+    // Where data is kept (-Dphotos.storage=...):
+    //   files - a .dat file (and journal) per user under data/users (default)
+    //   paged - every user in one paged file, data/photos.db, updated record by record
+    //   jdbc  - an embedded SQL database at photos.jdbc.url (its driver has to be on the classpath)
+    private static final String STORAGE = System.getProperty("photos.storage", "files");
+    private static final String PAGED_FILE = DATA_DIR + File.separator + "photos.db";
+    private static final String JDBC_URL = System.getProperty("photos.jdbc.url", "jdbc:sqlite:data/photos.sqlite");
     
     private Admin admin;
-    private Map<String, User> users;
+    private Map<String, User> users;           // Users loaded so far, least recently used first
+    private Map<String, Long> savedVersions;   // Each user's change counter as of their last snapshot or journal write
+    private PersistenceService persistence;
+    private UserStore store;
+    private long savedAdminVersion = -1;       // Admin's change counter as of the last save (-1 = never saved)
     private User currentUser;
+    private boolean allUsersResident;          // Set once every user is loaded, turns off eviction
+    private double lastLoadAllMillis;          // How long the last loadAllUsers() took
     
     private static DataManager instance;
     
@@ -39,11 +86,23 @@ public class DataManager {
      * Private constructor to enforce singleton pattern.
      */
     private DataManager() {
-        users = new HashMap<>();
+        users = new LinkedHashMap<>(16, 0.75f, true);
+        savedVersions = new HashMap<>();
         
         // Create directories if they don't exist
         new File(DATA_DIR).mkdirs();
-        new File(USER_DIR).mkdirs();
+        
+        if (!STORAGE.equals("files")) {
+            try {
+                store = openStore(STORAGE);
+            } catch (Exception e) {
+                System.err.println("Error opening " + STORAGE + " storage, using the per-user files: " + e.getMessage());
+            }
+        }
+        if (store == null) {
+            store = openFileStore();
+        }
+        persistence = new PersistenceService(store, SAVE_DEBOUNCE_MS);
         
         loadData();
     }
@@ -75,7 +134,7 @@ public class DataManager {
             return true;
         }
         
-        User user = users.get(username);
+        User user = getUser(username);
         if (user != null) {
             currentUser = user;
             return true;
@@ -85,19 +144,47 @@ public class DataManager {
     
     /**
      * Logs out the current user and saves all data.
+     * Waits for the writes to finish so nothing is lost if the app is closed right after.
      */
     public void logout() {
         saveData();
+        flush();
         currentUser = null;
     }
     
     /**
      * Gets a user by username.
+     * Users are only read from disk the first time they're asked for.
      * @param username The username
      * @return The user, or null if no such user exists
      */
     public User getUser(String username) {
-        return users.get(username);
+        User user = users.get(username);
+        if (user == null && admin.hasUsername(username)) {
+            user = loadUser(username);
+            evictUsers();
+        }
+        return user;
+    }
+    
+    /**
+     * Drops users from memory until the cache is back under its limit.
+     * Only users with nothing unsaved are dropped (a failed write counts as unsaved),
+     * and never the logged-in user, so they can always be read back from disk exactly as they were.
+     */
+    private void evictUsers() {
+        if (allUsersResident) {
+            return;
+        }
+        Iterator<User> it = users.values().iterator();
+        while (users.size() > USER_CACHE_SIZE && it.hasNext()) {
+            User user = it.next();
+            String username = user.getUsername();
+            if (user != currentUser && !isDirty(user) && !persistence.isPending(username)
+                && !persistence.hasFailed(username)) {
+                it.remove();
+            }
+        }
     }
     
     /**
@@ -106,7 +193,7 @@ public class DataManager {
      * @return The newly created user, or null if a user with the same username already exists
      */
     public User createUser(String username) {
-        if (users.containsKey(username) || username.equals(Admin.getAdminUsername())) {
+        if (admin.hasUsername(username) || username.equals(Admin.getAdminUsername())) {
             return null;
         }
         
@@ -127,14 +214,11 @@ public class DataManager {
             return false; // Cannot delete stock user
         }
         
-        User user = users.remove(username);
-        if (user != null) {
-            admin.removeUsername(username);
-            // Delete user file
-            File userFile = getUserFile(username);
-            if (userFile.exists()) {
-                userFile.delete();
-            }
+        if (admin.removeUsername(username)) {
+            users.remove(username);
+            // Delete user file and journal
+            persistence.enqueueDelete(username);
+            savedVersions.remove(username);
             saveAdmin();
             return true;
         }
@@ -142,20 +226,51 @@ public class DataManager {
     }
     
     /**
-     * Loads all data from disk.
+     * Records a change to a user's library.
+     * Only the change itself gets appended to the user's journal (in the background),
+     * so this is cheap no matter how big the library is. Once the journal gets long
+     * enough it's compacted back into the user's .dat file.
+     * @param user The user whose library changed
+     * @param change The change that was made
+     */
+    public void recordChange(User user, Change change) {
+        recordChanges(user, Collections.singletonList(change));
+    }
+    
+    /**
+     * Records a batch of changes to a user's library in one journal write.
+     * @param user The user whose library changed
+     * @param changes The changes that were made, in order
+     */
+    public void recordChanges(User user, List<Change> changes) {
+        if (user == null || changes.isEmpty()) {
+            return;
+        }
+        
+        String username = user.getUsername();
+        persistence.enqueueChanges(username, changes);
+        savedVersions.put(username, user.getVersion());
+        if (store.needsCompaction(username)) {
+            persistence.enqueueCompaction(username);
+        }
+    }
+    
+    /**
+     * Loads the data needed at startup.
+     * That's just the admin (for the list of usernames) and the stock user;
+     * everyone else is loaded when they log in.
      */
     private void loadData() {
         loadAdmin();
         
-        // Load users
-        if (admin != null) {
-            for (String username : admin.getUsernames()) {
-                loadUser(username);
-            }
+        if (LOAD_MODE.equals("all")) {
+            loadAllUsers(false);
+        } else if (LOAD_MODE.equals("parallel")) {
+            loadAllUsers(true);
         }
         
         // Create stock user and album if they don't exist
-        if (!users.containsKey("stock")) {
+        if (getUser("stock") == null) {
             User stockUser = new User("stock");
             users.put("stock", stockUser);
             
@@ -219,16 +334,26 @@ public class DataManager {
     
     /**
      * Loads the admin from disk.
+     * The first time a new storage backend is used, whatever is in the per-user files is copied into it.
      */
     private void loadAdmin() {
-        File adminFile = new File(ADMIN_FILE);
-        if (adminFile.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(adminFile))) {
-                admin = (Admin) ois.readObject();
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("Error loading admin: " + e.getMessage());
-                admin = new Admin();
+        try {
+            admin = store.readAdmin();
+            if (admin == null && !(store instanceof FileStore)) {
+                FileStore files = openFileStore();
+                if (files.exists()) {
+                    MigrateStorage.copy(files, store);
+                    admin = store.readAdmin();
+                }
             }
+        } catch (Exception e) {
+            System.err.println("Error loading admin: " + e.getMessage());
+            admin = new Admin();
+            return;
+        }
+        
+        if (admin != null) {
+            savedAdminVersion = admin.getVersion();
         } else {
             admin = new Admin();
             saveAdmin();
@@ -236,63 +361,214 @@ public class DataManager {
     }
     
     /**
-     * Loads a user from disk.
-     * @param username The username of the user to load
+     * Loads every user into memory and keeps them there, for admin reports and jobs that go across users.
+     * @param parallel true to read several user files at once, false to read them one after another
      */
-    private void loadUser(String username) {
-        File userFile = getUserFile(username);
-        if (userFile.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(userFile))) {
-                User user = (User) ois.readObject();
+    public void loadAllUsers(boolean parallel) {
+        long start = System.nanoTime();
+        List<String> toLoad = new ArrayList<>();
+        for (String username : admin.getUsernames()) {
+            if (!users.containsKey(username)) {
+                toLoad.add(username);
+            }
+        }
+        
+        allUsersResident = true;
+        if (parallel && toLoad.size() > 1) {
+            loadUsersInParallel(toLoad);
+        } else {
+            for (String username : toLoad) {
+                loadUser(username);
+            }
+        }
+        
+        lastLoadAllMillis = (System.nanoTime() - start) / 1_000_000.0;
+    }
+    
+    /**
+     * Gets how long the last loadAllUsers() took, eager and parallel startup included.
+     * @return The load time in milliseconds (0 if every user was never loaded at once)
+     */
+    public double getLastLoadAllMillis() {
+        return lastLoadAllMillis;
+    }
+    
+    /**
+     * Reads and decodes user files on a virtual thread each.
+     * Decoding takes turns on one carrier thread per CPU, so this doesn't need a pool size of its own.
+     * Each user is read on its own, so one bad file only loses that user (and gets logged like before).
+     * The results are collected in a concurrent map and only added to the loaded users once everyone is done.
+     * @param usernames The users to load
+     */
+    private void loadUsersInParallel(List<String> usernames) {
+        flush(); // Nothing queued should be newer than what's about to be read
+        
+        Map<String, User> loaded = new ConcurrentHashMap<>();
+        Set<String> legacy = ConcurrentHashMap.newKeySet();
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (String username : usernames) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        User user = store.readUser(username);
+                        if (user != null) {
+                            loaded.put(username, user);
+                            if (store.needsUpgrade(username)) {
+                                legacy.add(username);
+                            }
+                        } else {
+                            loaded.put(username, new User(username));
+                            legacy.add(username); // Never saved, so treat it as needing a save too
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Error loading user " + username + ": " + e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error loading users: " + e.getCause().getMessage());
+        }
+        
+        // Publish in admin order so the loaded users iterate the same way a serial load would
+        for (String username : usernames) {
+            User user = loaded.get(username);
+            if (user != null) {
+                if (!legacy.contains(username)) {
+                    savedVersions.put(username, user.getVersion());
+                }
                 users.put(username, user);
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("Error loading user " + username + ": " + e.getMessage());
             }
         }
     }
     
+    /**
+     * Loads a user from disk and adds them to the loaded users.
+     * @param username The username of the user to load
+     * @return The user, or null if their file couldn't be read
+     */
+    private User loadUser(String username) {
+        if (persistence.isPending(username)) {
+            flush(); // Make sure we read what was last saved, not what's still queued
+        }
+        
+        try {
+            User user = store.readUser(username);
+            if (user == null) {
+                // Listed but nothing on disk (e.g. the app closed before the first save), start them fresh
+                user = new User(username);
+            } else if (!store.needsUpgrade(username)) {
+                savedVersions.put(username, user.getVersion()); // The journal already has everything replayed
+            }
+            // Users stored in an old format stay dirty so the next save rewrites them
+            users.put(username, user);
+            return user;
+        } catch (Exception e) {
+            System.err.println("Error loading user " + username + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Opens a storage backend by name.
+     * @param kind files, paged or jdbc
+     * @return The store
+     * @throws Exception If it can't be opened (e.g. no JDBC driver on the classpath)
+     */
+    static UserStore openStore(String kind) throws Exception {
+        DurableWriter.FsyncPolicy policy = DurableWriter.FsyncPolicy.parse(FSYNC_POLICY);
+        switch (kind) {
+            case "files":
+                return openFileStore();
+            case "paged":
+                return new PagedStore(new File(PAGED_FILE), policy, FSYNC_INTERVAL_MS);
+            case "jdbc":
+                return new JdbcStore(JDBC_URL);
+            default:
+                throw new IllegalArgumentException("Unknown storage " + kind + " (use files, paged or jdbc)");
+        }
+    }
+    
+    private static FileStore openFileStore() {
+        return new FileStore(new File(DATA_DIR), DurableWriter.FsyncPolicy.parse(FSYNC_POLICY), FSYNC_INTERVAL_MS,
+                             Compression.Codec.parse(COMPRESSION), COMPRESSION_LEVEL);
+    }
+    
     /**
      * Saves all data to disk.
+     * Only users changed since their last save are written, and admin.dat is skipped if the user list didn't change.
+     * The writes happen in the background, call flush() to wait for them.
      */
     public void saveData() {
         saveAdmin();
         saveUsers();
     }
     
+    /**
+     * Blocks until everything saved so far is actually on disk.
+     */
+    public void flush() {
+        persistence.flush();
+    }
+    
+    /**
+     * Gets the background writer, mostly to look at its queue and latency numbers.
+     * @return The persistence service
+     */
+    public PersistenceService getPersistenceService() {
+        return persistence;
+    }
+    
     /**
      * Saves the admin to disk.
+     * If the last write of it failed in the background it's written again even when nothing changed.
      */
     private void saveAdmin() {
-        if (admin == null) {
+        if (persistence.takeAdminFailed()) {
+            savedAdminVersion = -1;
+        }
+        if (admin == null || admin.getVersion() == savedAdminVersion) {
             return;
         }
         
         try {
-            // Create the data directory if it doesn't exist
-            File dataDir = new File(DATA_DIR);
-            if (!dataDir.exists()) {
-                dataDir.mkdirs();
-            }
-            
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(ADMIN_FILE))) {
-                oos.writeObject(admin);
-            }
+            persistence.enqueueAdmin(serialize(admin));
+            savedAdminVersion = admin.getVersion();
         } catch (IOException e) {
             System.err.println("Error saving admin: " + e.getMessage());
         }
     }
     
     /**
-     * Saves all users to disk.
+     * Saves every user that has changes not covered by their snapshot and journal.
      */
     private void saveUsers() {
+        Set<String> failed = persistence.takeFailedUsers();
         for (User user : users.values()) {
-            saveUser(user);
+            if (isDirty(user) || failed.contains(user.getUsername())) {
+                saveUser(user);
+            }
         }
     }
     
     /**
-     * Saves a user to disk.
+     * Checks whether a user has changes that are in neither their .dat snapshot nor their journal.
+     * @param user The user
+     * @return true if the user needs saving
+     */
+    private boolean isDirty(User user) {
+        Long savedVersion = savedVersions.get(user.getUsername());
+        return savedVersion == null || savedVersion != user.getVersion();
+    }
+    
+    /**
+     * Saves a full snapshot of a user.
+     * The user is serialized right here so the writer thread never sees the live objects;
+     * the file write happens in the background and replaces the journal.
      * @param user The user to save
      */
     private void saveUser(User user) {
@@ -301,26 +577,22 @@ public class DataManager {
         }
         
         try {
-            // Create the users directory if it doesn't exist
-            File userDir = new File(USER_DIR);
-            if (!userDir.exists()) {
-                userDir.mkdirs();
-            }
-            
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(getUserFile(user.getUsername())))) {
-                oos.writeObject(user);
-            }
+            persistence.enqueueSnapshot(user.getUsername(), UserCodec.encode(user));
+            savedVersions.put(user.getUsername(), user.getVersion());
         } catch (IOException e) {
             System.err.println("Error saving user " + user.getUsername() + ": " + e.getMessage());
         }
     }
     
     /**
-     * Gets the file for a user.
-     * @param username The username
-     * @return The user file
+     * Serializes an object into a byte array with Java serialization.
+     * Only the admin still uses this, users go through UserCodec.
      */
-    private File getUserFile(String username) {
-        return new File(USER_DIR + File.separator + username + ".dat");
+    static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(object);
+        }
+        return bytes.toByteArray();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package photos.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every distinct folder a user's photos are in, so photos can keep just their file name and a
+ * reference to the folder's one copy here instead of a whole path each. Libraries usually have a
+ * lot of photos in a few folders, so most of each path was the same string over and over.
+ *
+ * Entries are only ever added, same as TagDictionary. Not thread safe, same as the rest of a user's data.
+ * @author Klever and Shrij
+ */
+class DirectoryTable {
+    
+    private final Map<String, String> directories = new HashMap<>(); // folder -> the one copy of it we keep
+    
+    /**
+     * Gets the shared copy of a folder path, adding it if it's never been seen.
+     * @param directory The folder, including the trailing separator
+     * @return The copy photos should point at (equal to the argument)
+     */
+    String intern(String directory) {
+        String shared = directories.putIfAbsent(directory, directory);
+        return shared != null ? shared : directory;
+    }
+    
+    /**
+     * Gets the folder part of a path, including the trailing separator.
+     * Handles both / and \ since the data folder might come from another OS.
+     * @param path The full path
+     * @return The folder, or "" if the path is just a file name
+     */
+    static String directoryOf(String path) {
+        return path.substring(0, fileNameStart(path));
+    }
+    
+    /**
+     * Gets where the file name starts in a path, so it can be split without making the strings.
+     * @param path The full path
+     * @return The length of the folder part, separator included
+     */
+    static int fileNameStart(String path) {
+        return Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+    }
+}
@@ -0,0 +1,249 @@
+package photos.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Crash-safe file writes with group commit.
+ * New file contents go to a temp file next to the real one and are only renamed over it
+ * when the batch commits, so a crash mid-write leaves the old file alone instead of a half-written one.
+ * All the files in a batch share one sync point, and the fsync policy decides how often that
+ * actually waits for the disk.
+ * Not thread-safe; only the writer thread uses it.
+ * @author Klever and Shrij
+ */
+class DurableWriter {
+    
+    /**
+     * When to wait for data to actually reach the disk.
+     */
+    enum FsyncPolicy {
+        ALWAYS,   // Every commit - safest, slowest
+        INTERVAL, // At most once per interval, a crash can lose the last few moments
+        NEVER;    // Leave it to the OS, fastest but a crash can lose recent saves
+        
+        static FsyncPolicy parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown fsync policy " + name + ", using always");
+                return ALWAYS;
+            }
+        }
+    }
+    
+    /**
+     * A temp file waiting to be renamed over its target.
+     */
+    private static class Staged {
+        final Path temp;
+        final Path target;
+        
+        Staged(Path temp, Path target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+    
+    private final FsyncPolicy policy;
+    private final long intervalMillis;
+    
+    private final List<Staged> staged = new ArrayList<>();
+    private final Set<Path> appended = new LinkedHashSet<>();     // Appended to in this batch
+    private final List<File> deleteAfterCommit = new ArrayList<>();
+    private final Set<Path> unsynced = new LinkedHashSet<>();     // Committed but not forced yet (INTERVAL)
+    private long lastSyncMillis = System.currentTimeMillis();
+    
+    /**
+     * Creates a writer.
+     * @param policy When to fsync
+     * @param intervalMillis How often to fsync with the INTERVAL policy
+     */
+    DurableWriter(FsyncPolicy policy, long intervalMillis) {
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+    }
+    
+    /**
+     * Writes the new contents of a file into a temp file. The real file is replaced on commit().
+     * @param target The file to replace
+     * @param data Its new contents
+     */
+    void stage(File target, byte[] data) throws IOException {
+        target.getParentFile().mkdirs();
+        Path targetPath = target.toPath();
+        Path temp = targetPath.resolveSibling(target.getName() + ".tmp");
+        // Closed straight away (and reopened to force on commit) so a big batch doesn't run out of file handles
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, data);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        
+        // A second write to the same file in one batch just replaces the first
+        staged.removeIf(s -> s.target.equals(targetPath));
+        staged.add(new Staged(temp, targetPath));
+    }
+    
+    /**
+     * Appends to a file in place. Forced along with the rest of the batch.
+     * The file is cut back to the given length first, so whatever comes after the last
+     * good data (like half a record from a crash) is dropped instead of being written after.
+     * @param target The file
+     * @param length Where the good data ends
+     * @param data The bytes to add
+     */
+    void append(File target, long length, byte[] data) throws IOException {
+        target.getParentFile().mkdirs();
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size < length) {
+                throw new IOException(target.getName() + " is shorter than expected (" + size + " < " + length + ")");
+            }
+            if (size > length) {
+                channel.truncate(length);
+            }
+            channel.position(length);
+            writeFully(channel, data);
+        }
+        appended.add(target.toPath());
+    }
+    
+    /**
+     * Deletes a file once the batch is committed, e.g. a journal that a staged snapshot replaces.
+     * @param file The file to delete
+     */
+    void deleteAfterCommit(File file) {
+        deleteAfterCommit.add(file);
+    }
+    
+    /**
+     * Commits the batch: forces the new data (depending on the policy), renames every
+     * temp file over its target, then does the deletes (forcing those too).
+     */
+    void commit() throws IOException {
+        if (staged.isEmpty() && appended.isEmpty() && deleteAfterCommit.isEmpty()) {
+            return;
+        }
+        
+        try {
+            boolean force = policy == FsyncPolicy.ALWAYS;
+            if (force) {
+                for (Staged s : staged) {
+                    forcePath(s.temp);
+                }
+                for (Path path : appended) {
+                    forcePath(path);
+                }
+            }
+            
+            Set<Path> directories = new LinkedHashSet<>();
+            for (Staged s : staged) {
+                Files.move(s.temp, s.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                directories.add(s.target.getParent());
+                if (policy == FsyncPolicy.INTERVAL) {
+                    unsynced.add(s.target);
+                }
+            }
+            if (policy == FsyncPolicy.INTERVAL) {
+                unsynced.addAll(appended);
+            }
+            if (force) {
+                for (Path directory : directories) {
+                    forceDirectory(directory); // Makes the renames themselves durable
+                }
+            }
+            
+            // Only after the renames are on disk, so a crash can't keep a delete and lose the file that replaced it
+            Set<Path> deletedFrom = new LinkedHashSet<>();
+            for (File file : deleteAfterCommit) {
+                if (file.delete()) {
+                    deletedFrom.add(file.toPath().toAbsolutePath().getParent());
+                }
+            }
+            if (force) {
+                for (Path directory : deletedFrom) {
+                    forceDirectory(directory);
+                }
+            }
+        } finally {
+            staged.clear();
+            appended.clear();
+            deleteAfterCommit.clear();
+        }
+        
+        if (policy == FsyncPolicy.INTERVAL && System.currentTimeMillis() - lastSyncMillis >= intervalMillis) {
+            sync();
+        }
+    }
+    
+    /**
+     * Forces everything committed so far to disk, whatever the policy says (except NEVER).
+     */
+    void sync() throws IOException {
+        if (policy == FsyncPolicy.NEVER) {
+            return;
+        }
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path path : unsynced) {
+            if (Files.exists(path)) {
+                forcePath(path);
+                directories.add(path.getParent());
+            }
+        }
+        for (Path directory : directories) {
+            forceDirectory(directory);
+        }
+        unsynced.clear();
+        lastSyncMillis = System.currentTimeMillis();
+    }
+    
+    /**
+     * Gets how long until committed data should be synced.
+     * @return Milliseconds to wait, or -1 if there's nothing waiting for a sync
+     */
+    long syncDelayMillis() {
+        if (unsynced.isEmpty()) {
+            return -1;
+        }
+        return Math.max(0, intervalMillis - (System.currentTimeMillis() - lastSyncMillis));
+    }
+    
+    private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    private static void forcePath(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+    
+    /**
+     * Fsyncs a directory so renames in it survive a crash.
+     * Not every OS lets you open a directory (Windows doesn't), and there it's skipped.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported here, the rename is as durable as the OS makes it
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package photos.model;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The original storage: admin.dat, plus a .dat snapshot and a change journal per user under users/.
+ * Whole-file writes go through DurableWriter, so they're crash-safe and committed together.
+ * admin.dat and the .dat files can be compressed (see Compression), journals never are since
+ * they're appended a few records at a time.
+ *
+ * Every snapshot is numbered (its generation, in a small header in front of the compressed data)
+ * and the journal records which generation it was started on, so a journal the snapshot
+ * already covers is never replayed on top of it again.
+ * @author Klever and Shrij
+ */
+class FileStore implements UserStore {
+    
+    // Journal records a user can pile up before we fold them back into their .dat snapshot
+    private static final int COMPACT_THRESHOLD = 500;
+    
+    // Header in front of a snapshot: magic "PHS", version byte, generation (long)
+    private static final byte[] SNAPSHOT_MAGIC = { 'P', 'H', 'S' };
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = SNAPSHOT_MAGIC.length + 1 + 8;
+    
+    private final File adminFile;
+    private final File userDir;
+    private final DurableWriter writer;
+    private final Compression.Codec codec;
+    private final int level;
+    private final Map<String, ChangeJournal.Tail> journals = new HashMap<>(); // Where each journal's good records end, guarded by itself
+    
+    /**
+     * Creates a store over a data folder.
+     * @param dataDir The folder holding admin.dat and users/
+     * @param policy When to fsync
+     * @param intervalMillis How often to fsync with the INTERVAL policy
+     * @param codec How to compress admin.dat and the user files
+     * @param level The deflate level, if that's the codec
+     */
+    FileStore(File dataDir, DurableWriter.FsyncPolicy policy, long intervalMillis, Compression.Codec codec, int level) {
+        this.adminFile = new File(dataDir, "admin.dat");
+        this.userDir = new File(dataDir, "users");
+        this.writer = new DurableWriter(policy, intervalMillis);
+        this.codec = codec;
+        this.level = level;
+        userDir.mkdirs();
+    }
+    
+    @Override
+    public Admin readAdmin() throws IOException, ClassNotFoundException {
+        if (!adminFile.exists()) {
+            return null;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(open(adminFile))) {
+            return (Admin) ois.readObject();
+        }
+    }
+    
+    /**
+     * Reads a user's snapshot and replays their journal on top of it.
+     * Only works from the files, so the writer thread can use it for compaction.
+     */
+    @Override
+    public User readUser(String username) throws IOException, ClassNotFoundException {
+        File userFile = getUserFile(username);
+        File journalFile = getJournalFile(username);
+        long generation = readGeneration(userFile);
+        User user = null;
+        if (userFile.exists()) {
+            try (InputStream in = open(userFile)) {
+                if (isLegacyStream(in)) {
+                    user = (User) new ObjectInputStream(in).readObject();
+                } else {
+                    user = UserCodec.decode(in);
+                }
+            }
+        } else if (journalFile.exists()) {
+            user = new User(username); // Never snapshotted, everything is in the journal
+        }
+        
+        if (user != null && journalFile.exists()) {
+            ChangeJournal.Tail tail = ChangeJournal.replay(journalFile, generation, user);
+            if (tail.length == 0) {
+                tail.generation = generation; // Nothing usable in it, the next append starts it over
+            }
+            synchronized (journals) {
+                journals.put(username, tail);
+            }
+        }
+        return user;
+    }
+    
+    @Override
+    public List<String> listUsernames() {
+        TreeSet<String> usernames = new TreeSet<>();
+        File[] files = userDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".dat")) {
+                    usernames.add(name.substring(0, name.length() - ".dat".length()));
+                } else if (name.endsWith(".journal")) {
+                    usernames.add(name.substring(0, name.length() - ".journal".length()));
+                }
+            }
+        }
+        return new ArrayList<>(usernames);
+    }
+    
+    /**
+     * Users still in the old Java serialization format stay dirty so the next save migrates them.
+     */
+    @Override
+    public boolean needsUpgrade(String username) {
+        try (InputStream in = open(getUserFile(username))) {
+            return isLegacyStream(in);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    @Override
+    public boolean needsCompaction(String username) {
+        synchronized (journals) {
+            ChangeJournal.Tail tail = journals.get(username);
+            return tail != null && tail.records >= COMPACT_THRESHOLD;
+        }
+    }
+    
+    @Override
+    public void writeAdmin(byte[] data) throws IOException {
+        writer.stage(adminFile, Compression.compress(data, codec, level));
+    }
+    
+    /**
+     * Stages a snapshot one generation past both the current snapshot and the journal,
+     * so if the journal's delete doesn't make it to disk it's recognised as stale.
+     */
+    @Override
+    public void writeSnapshot(String username, byte[] data) throws IOException {
+        File userFile = getUserFile(username);
+        File journalFile = getJournalFile(username);
+        long generation = Math.max(readGeneration(userFile), ChangeJournal.readGeneration(journalFile)) + 1;
+        
+        byte[] compressed = Compression.compress(data, codec, level);
+        ByteBuffer file = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + compressed.length);
+        file.put(SNAPSHOT_MAGIC).put((byte) SNAPSHOT_VERSION).putLong(generation).put(compressed);
+        writer.stage(userFile, file.array());
+        writer.deleteAfterCommit(journalFile); // Snapshot has everything the journal had
+        synchronized (journals) {
+            journals.remove(username);
+        }
+    }
+    
+    /**
+     * Appends right after the journal's last good record, so a damaged tail left by a crash
+     * is cut off instead of ending up in front of the new records. A stale journal from an
+     * older generation is started over.
+     */
+    @Override
+    public void appendJournal(String username, List<Change> changes) throws IOException {
+        File journalFile = getJournalFile(username);
+        ChangeJournal.Tail tail;
+        synchronized (journals) {
+            tail = journals.get(username);
+        }
+        if (tail == null) {
+            // Not read since it was last written (or never), so find where it ends
+            long generation = readGeneration(getUserFile(username));
+            tail = journalFile.exists() ? ChangeJournal.replay(journalFile, generation, null) : new ChangeJournal.Tail();
+            if (tail.length == 0) {
+                tail.generation = generation;
+            }
+        }
+        
+        byte[] records = ChangeJournal.encode(changes);
+        if (tail.length == 0) {
+            byte[] header = ChangeJournal.header(tail.generation);
+            byte[] withHeader = new byte[header.length + records.length];
+            System.arraycopy(header, 0, withHeader, 0, header.length);
+            System.arraycopy(records, 0, withHeader, header.length, records.length);
+            records = withHeader;
+        }
+        try {
+            writer.append(journalFile, tail.length, records);
+        } catch (IOException e) {
+            synchronized (journals) {
+                journals.remove(username); // Might be half-written, look again next time
+            }
+            throw e;
+        }
+        
+        ChangeJournal.Tail grown = new ChangeJournal.Tail();
+        grown.length = tail.length + records.length;
+        grown.generation = tail.generation;
+        grown.records = tail.records + changes.size();
+        synchronized (journals) {
+            journals.put(username, grown);
+        }
+    }
+    
+    @Override
+    public void compact(String username) throws IOException, ClassNotFoundException {
+        // Works from the files alone, so it's safe while the user keeps editing
+        User user = readUser(username);
+        if (user == null) {
+            return;
+        }
+        writeSnapshot(username, UserCodec.encode(user));
+    }
+    
+    @Override
+    public void delete(String username) {
+        getUserFile(username).delete();
+        getJournalFile(username).delete();
+        synchronized (journals) {
+            journals.remove(username);
+        }
+    }
+    
+    @Override
+    public void commit() throws IOException {
+        writer.commit();
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        writer.sync();
+    }
+    
+    @Override
+    public long syncDelayMillis() {
+        return writer.syncDelayMillis();
+    }
+    
+    @Override
+    public void close() {
+        // Nothing is kept open between writes
+    }
+    
+    /**
+     * Checks whether there's anything saved in this folder yet.
+     * @return true if admin.dat exists
+     */
+    boolean exists() {
+        return adminFile.exists();
+    }
+    
+    /**
+     * Opens a snapshot file for reading, skipping its generation header and uncompressing it
+     * if it was written compressed.
+     * @param file admin.dat or a user file
+     * @return A buffered stream of the uncompressed contents
+     */
+    private static InputStream open(File file) throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(file));
+        try {
+            readGeneration(raw);
+            InputStream in = Compression.decompress(raw);
+            return in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Reads the generation from the header in front of a snapshot file.
+     * @param file A user file
+     * @return The generation, or 0 if there's no file or it's from before generations
+     */
+    private static long readGeneration(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return readGeneration(in);
+        }
+    }
+    
+    /**
+     * Reads past the generation header at the start of a stream, if there is one.
+     * The stream must support mark/reset, and is left where it was if there's no header.
+     */
+    private static long readGeneration(InputStream in) throws IOException {
+        in.mark(SNAPSHOT_HEADER_SIZE);
+        byte[] header = in.readNBytes(SNAPSHOT_HEADER_SIZE);
+        if (header.length < SNAPSHOT_HEADER_SIZE || header[0] != SNAPSHOT_MAGIC[0] || header[1] != SNAPSHOT_MAGIC[1]
+            || header[2] != SNAPSHOT_MAGIC[2]) {
+            in.reset();
+            return 0;
+        }
+        if (header[3] != SNAPSHOT_VERSION) {
+            throw new IOException("Snapshot header version " + header[3] + " isn't one this version can read");
+        }
+        return ByteBuffer.wrap(header, SNAPSHOT_MAGIC.length + 1, 8).getLong();
+    }
+    
+    /**
+     * Peeks at the start of a stream for the Java serialization magic number (0xACED).
+     * The stream must support mark/reset, and is left where it was.
+     */
+    private static boolean isLegacyStream(InputStream in) throws IOException {
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        return first == 0xAC && second == 0xED;
+    }
+    
+    /**
+     * Gets the file for a user.
+     * @param username The username
+     * @return The user file
+     */
+    private File getUserFile(String username) {
+        return new File(userDir, username + ".dat");
+    }
+    
+    /**
+     * Gets the change journal file for a user.
+     * @param username The username
+     * @return The journal file
+     */
+    private File getJournalFile(String username) {
+        return new File(userDir, username + ".journal");
+    }
+}
@@ -0,0 +1,438 @@
+package photos.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps users in an embedded SQL database, one row per album, photo, tag and album entry.
+ * Written against plain JDBC and SQL that both SQLite and H2 accept. The driver isn't bundled,
+ * so its jar has to be on the classpath (e.g. sqlite-jdbc or h2) when this store is picked.
+ *
+ * Changes from the app are applied as small UPDATEs/INSERTs instead of rewriting the user,
+ * and each batch from the background writer is one transaction. Each write in the batch
+ * runs inside a savepoint, so one that fails partway doesn't take the others down with it. The photos, tags and
+ * album_photos tables are indexed so searches by tag or date could run as queries later.
+ *
+ * One connection, used by one thread at a time (all methods are synchronized).
+ * @author Klever and Shrij
+ */
+class JdbcStore implements UserStore {
+    
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS admin (id INTEGER PRIMARY KEY, data BLOB NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS users (username VARCHAR(255) PRIMARY KEY)",
+        "CREATE TABLE IF NOT EXISTS tag_types (username VARCHAR(255) NOT NULL, position INTEGER NOT NULL,"
+            + " tag_type VARCHAR(255) NOT NULL, PRIMARY KEY (username, position))",
+        "CREATE TABLE IF NOT EXISTS albums (username VARCHAR(255) NOT NULL, name VARCHAR(255) NOT NULL,"
+            + " position INTEGER NOT NULL, PRIMARY KEY (username, name))",
+        "CREATE TABLE IF NOT EXISTS photos (username VARCHAR(255) NOT NULL, path VARCHAR(4096) NOT NULL,"
+            + " caption VARCHAR(4096) NOT NULL, time_millis BIGINT NOT NULL, PRIMARY KEY (username, path))",
+        "CREATE TABLE IF NOT EXISTS album_photos (username VARCHAR(255) NOT NULL, album VARCHAR(255) NOT NULL,"
+            + " position INTEGER NOT NULL, path VARCHAR(4096) NOT NULL, PRIMARY KEY (username, album, position))",
+        "CREATE TABLE IF NOT EXISTS photo_tags (username VARCHAR(255) NOT NULL, path VARCHAR(4096) NOT NULL,"
+            + " tag_name VARCHAR(255) NOT NULL, tag_value VARCHAR(255) NOT NULL,"
+            + " PRIMARY KEY (username, path, tag_name, tag_value))",
+        "CREATE INDEX IF NOT EXISTS idx_album_photos_path ON album_photos (username, path)",
+        "CREATE INDEX IF NOT EXISTS idx_photo_tags_tag ON photo_tags (username, tag_name, tag_value)",
+        "CREATE INDEX IF NOT EXISTS idx_photos_time ON photos (username, time_millis)"
+    };
+    
+    private final Connection connection;
+    
+    /**
+     * One write to the tables, see inSavepoint().
+     */
+    private interface Write {
+        void run() throws SQLException;
+    }
+    
+    /**
+     * Connects to the database and creates the tables if they aren't there yet.
+     * @param url The JDBC URL, e.g. jdbc:sqlite:data/photos.sqlite or jdbc:h2:./data/photos
+     * @throws SQLException If there's no driver for the URL or the database can't be opened
+     */
+    JdbcStore(String url) throws SQLException {
+        connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : SCHEMA) {
+                statement.execute(sql);
+            }
+        }
+        connection.setAutoCommit(false);
+        connection.commit();
+    }
+    
+    @Override
+    public synchronized Admin readAdmin() throws SQLException, IOException, ClassNotFoundException {
+        try (PreparedStatement query = connection.prepareStatement("SELECT data FROM admin WHERE id = 1");
+             ResultSet rows = query.executeQuery()) {
+            if (!rows.next()) {
+                return null;
+            }
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(rows.getBytes(1)))) {
+                return (Admin) ois.readObject();
+            }
+        }
+    }
+    
+    @Override
+    public synchronized User readUser(String username) throws SQLException {
+        if (!exists("SELECT 1 FROM users WHERE username = ?", username)) {
+            return null;
+        }
+        
+        User user = new User(username);
+        for (String tagType : strings("SELECT tag_type FROM tag_types WHERE username = ? ORDER BY position", username)) {
+            user.addTagType(tagType);
+        }
+        
+        Map<String, Photo> photos = new HashMap<>();
+        try (PreparedStatement query = connection.prepareStatement(
+                 "SELECT path, caption, time_millis FROM photos WHERE username = ?")) {
+            query.setString(1, username);
+            try (ResultSet rows = query.executeQuery()) {
+                while (rows.next()) {
+                    String path = rows.getString(1);
+                    photos.put(path, new Photo(path, rows.getString(2), rows.getLong(3), user.getTagDictionary()));
+                }
+            }
+        }
+        try (PreparedStatement query = connection.prepareStatement(
+                 "SELECT path, tag_name, tag_value FROM photo_tags WHERE username = ?")) {
+            query.setString(1, username);
+            try (ResultSet rows = query.executeQuery()) {
+                while (rows.next()) {
+                    Photo photo = photos.get(rows.getString(1));
+                    if (photo != null) {
+                        photo.addTag(new Tag(rows.getString(2), rows.getString(3)));
+                    }
+                }
+            }
+        }
+        
+        Map<String, List<Photo>> albumPhotos = new HashMap<>();
+        try (PreparedStatement query = connection.prepareStatement(
+                 "SELECT album, path FROM album_photos WHERE username = ? ORDER BY album, position")) {
+            query.setString(1, username);
+            try (ResultSet rows = query.executeQuery()) {
+                while (rows.next()) {
+                    Photo photo = photos.get(rows.getString(2));
+                    if (photo != null) {
+                        albumPhotos.computeIfAbsent(rows.getString(1), name -> new ArrayList<>()).add(photo);
+                    }
+                }
+            }
+        }
+        for (String album : strings("SELECT name FROM albums WHERE username = ? ORDER BY position", username)) {
+            user.restoreAlbum(new Album(album, albumPhotos.getOrDefault(album, new ArrayList<>())));
+        }
+        return user;
+    }
+    
+    @Override
+    public synchronized List<String> listUsernames() throws SQLException {
+        List<String> usernames = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT username FROM users ORDER BY username")) {
+            while (rows.next()) {
+                usernames.add(rows.getString(1));
+            }
+        }
+        return usernames;
+    }
+    
+    @Override
+    public boolean needsUpgrade(String username) {
+        return false;
+    }
+    
+    @Override
+    public boolean needsCompaction(String username) {
+        return false;
+    }
+    
+    @Override
+    public synchronized void writeAdmin(byte[] data) throws SQLException {
+        inSavepoint(() -> {
+            update("DELETE FROM admin WHERE id = 1");
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO admin (id, data) VALUES (1, ?)")) {
+                insert.setBytes(1, data);
+                insert.executeUpdate();
+            }
+        });
+    }
+    
+    /**
+     * Replaces everything stored for the user with the snapshot.
+     */
+    @Override
+    public synchronized void writeSnapshot(String username, byte[] data) throws SQLException, IOException {
+        User user = UserCodec.decode(new ByteArrayInputStream(data));
+        inSavepoint(() -> writeUser(username, user));
+    }
+    
+    private void writeUser(String username, User user) throws SQLException {
+        deleteUser(username);
+        update("INSERT INTO users (username) VALUES (?)", username);
+        
+        List<String> tagTypes = user.getTagTypes();
+        for (int i = 0; i < tagTypes.size(); i++) {
+            update("INSERT INTO tag_types (username, position, tag_type) VALUES (?, ?, ?)", username, i, tagTypes.get(i));
+        }
+        Map<String, Photo> photos = new HashMap<>();
+        List<Album> albums = user.getAlbums();
+        for (int i = 0; i < albums.size(); i++) {
+            Album album = albums.get(i);
+            update("INSERT INTO albums (username, name, position) VALUES (?, ?, ?)", username, album.getName(), i);
+            List<Photo> albumPhotos = album.getPhotos();
+            for (int p = 0; p < albumPhotos.size(); p++) {
+                Photo photo = albumPhotos.get(p);
+                update("INSERT INTO album_photos (username, album, position, path) VALUES (?, ?, ?, ?)",
+                       username, album.getName(), p, photo.getFilePath());
+                photos.putIfAbsent(photo.getFilePath(), photo);
+            }
+        }
+        for (Photo photo : photos.values()) {
+            insertPhoto(username, photo.getFilePath(), photo.getCaption(), photo.getTimeMillis(),
+                        new ArrayList<>(photo.getTags()));
+        }
+    }
+    
+    /**
+     * Applies changes as row updates, the same way Change.apply() would to a loaded user.
+     */
+    @Override
+    public synchronized void appendJournal(String username, List<Change> changes) throws SQLException {
+        inSavepoint(() -> applyChanges(username, changes));
+    }
+    
+    private void applyChanges(String username, List<Change> changes) throws SQLException {
+        if (!exists("SELECT 1 FROM users WHERE username = ?", username)) {
+            update("INSERT INTO users (username) VALUES (?)", username);
+        }
+        for (Change change : changes) {
+            String album = change.getAlbumName();
+            String path = change.getFilePath();
+            boolean albumExists = change.getType() != Change.Type.ADD_TAG_TYPE
+                && exists("SELECT 1 FROM albums WHERE username = ? AND name = ?", username, album);
+            switch (change.getType()) {
+                case ADD_TAG_TYPE:
+                    if (!exists("SELECT 1 FROM tag_types WHERE username = ? AND tag_type = ?", username, album)) {
+                        update("INSERT INTO tag_types (username, position, tag_type) VALUES (?, ?, ?)",
+                               username, nextPosition("tag_types", username, null), album);
+                    }
+                    break;
+                case CREATE_ALBUM:
+                    if (!albumExists) {
+                        update("INSERT INTO albums (username, name, position) VALUES (?, ?, ?)",
+                               username, album, nextPosition("albums", username, null));
+                    }
+                    break;
+                case DELETE_ALBUM:
+                    if (albumExists) {
+                        update("DELETE FROM album_photos WHERE username = ? AND album = ?", username, album);
+                        update("DELETE FROM albums WHERE username = ? AND name = ?", username, album);
+                        deleteOrphanPhotos(username);
+                    }
+                    break;
+                case RENAME_ALBUM:
+                    if (albumExists && !exists("SELECT 1 FROM albums WHERE username = ? AND name = ?",
+                                               username, change.getText())) {
+                        update("UPDATE albums SET name = ? WHERE username = ? AND name = ?", change.getText(), username, album);
+                        update("UPDATE album_photos SET album = ? WHERE username = ? AND album = ?",
+                               change.getText(), username, album);
+                    }
+                    break;
+                case ADD_PHOTO:
+                    if (albumExists && !inAlbum(username, album, path)) {
+                        if (!exists("SELECT 1 FROM album_photos WHERE username = ? AND path = ?", username, path)) {
+                            // New to this user, so the change's copy of the details is the photo
+                            deletePhoto(username, path);
+                            insertPhoto(username, path, change.getText(), change.getTimeMillis(), change.getTags());
+                        }
+                        update("INSERT INTO album_photos (username, album, position, path) VALUES (?, ?, ?, ?)",
+                               username, album, nextPosition("album_photos", username, album), path);
+                    }
+                    break;
+                case REMOVE_PHOTO:
+                    if (albumExists) {
+                        update("DELETE FROM album_photos WHERE username = ? AND album = ? AND path = ?", username, album, path);
+                        if (!exists("SELECT 1 FROM album_photos WHERE username = ? AND path = ?", username, path)) {
+                            deletePhoto(username, path);
+                        }
+                    }
+                    break;
+                case SET_CAPTION:
+                    if (albumExists && inAlbum(username, album, path)) {
+                        update("UPDATE photos SET caption = ? WHERE username = ? AND path = ?", change.getText(), username, path);
+                    }
+                    break;
+                case ADD_TAG:
+                    if (albumExists && inAlbum(username, album, path)
+                        && !exists("SELECT 1 FROM photo_tags WHERE username = ? AND path = ? AND tag_name = ? AND tag_value = ?",
+                                   username, path, change.getText(), change.getValue())) {
+                        update("INSERT INTO photo_tags (username, path, tag_name, tag_value) VALUES (?, ?, ?, ?)",
+                               username, path, change.getText(), change.getValue());
+                    }
+                    break;
+                case REMOVE_TAG:
+                    if (albumExists && inAlbum(username, album, path)) {
+                        update("DELETE FROM photo_tags WHERE username = ? AND path = ? AND tag_name = ? AND tag_value = ?",
+                               username, path, change.getText(), change.getValue());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+    
+    @Override
+    public void compact(String username) {
+        // Nothing to do, changes are applied straight to the tables
+    }
+    
+    @Override
+    public synchronized void delete(String username) throws SQLException {
+        inSavepoint(() -> deleteUser(username));
+    }
+    
+    private void deleteUser(String username) throws SQLException {
+        update("DELETE FROM photo_tags WHERE username = ?", username);
+        update("DELETE FROM album_photos WHERE username = ?", username);
+        update("DELETE FROM photos WHERE username = ?", username);
+        update("DELETE FROM albums WHERE username = ?", username);
+        update("DELETE FROM tag_types WHERE username = ?", username);
+        update("DELETE FROM users WHERE username = ?", username);
+    }
+    
+    /**
+     * Commits the batch as one transaction. The database takes care of syncing it.
+     */
+    @Override
+    public synchronized void commit() throws SQLException {
+        connection.commit();
+    }
+    
+    @Override
+    public void sync() {
+        // The database syncs on commit
+    }
+    
+    @Override
+    public long syncDelayMillis() {
+        return -1;
+    }
+    
+    @Override
+    public synchronized void close() throws SQLException {
+        connection.rollback(); // Anything not committed by now was never meant to be
+        connection.close();
+    }
+    
+    /**
+     * Runs one write inside a savepoint. If it fails partway, the rows it already changed are rolled back,
+     * so the rest of the batch (other users' writes) still commits cleanly without it.
+     */
+    private void inSavepoint(Write write) throws SQLException {
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            write.run();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback(savepoint);
+            throw e;
+        }
+        connection.releaseSavepoint(savepoint);
+    }
+    
+    private void insertPhoto(String username, String path, String caption, long timeMillis, List<Tag> tags)
+            throws SQLException {
+        update("INSERT INTO photos (username, path, caption, time_millis) VALUES (?, ?, ?, ?)",
+               username, path, caption, timeMillis);
+        for (Tag tag : tags) {
+            if (!exists("SELECT 1 FROM photo_tags WHERE username = ? AND path = ? AND tag_name = ? AND tag_value = ?",
+                        username, path, tag.getName(), tag.getValue())) {
+                update("INSERT INTO photo_tags (username, path, tag_name, tag_value) VALUES (?, ?, ?, ?)",
+                       username, path, tag.getName(), tag.getValue());
+            }
+        }
+    }
+    
+    private void deletePhoto(String username, String path) throws SQLException {
+        update("DELETE FROM photo_tags WHERE username = ? AND path = ?", username, path);
+        update("DELETE FROM photos WHERE username = ? AND path = ?", username, path);
+    }
+    
+    /**
+     * Drops photos (and their tags) that aren't in any of the user's albums anymore.
+     */
+    private void deleteOrphanPhotos(String username) throws SQLException {
+        String orphan = " AND path NOT IN (SELECT path FROM album_photos WHERE username = ?)";
+        update("DELETE FROM photo_tags WHERE username = ?" + orphan, username, username);
+        update("DELETE FROM photos WHERE username = ?" + orphan, username, username);
+    }
+    
+    private boolean inAlbum(String username, String album, String path) throws SQLException {
+        return exists("SELECT 1 FROM album_photos WHERE username = ? AND album = ? AND path = ?", username, album, path);
+    }
+    
+    /**
+     * Gets the position after the last one used, for adding to the end of a list.
+     * @param album The album for album_photos, null for the per-user tables
+     */
+    private int nextPosition(String table, String username, String album) throws SQLException {
+        String sql = "SELECT MAX(position) FROM " + table + " WHERE username = ?" + (album != null ? " AND album = ?" : "");
+        try (PreparedStatement query = album != null ? prepare(sql, username, album) : prepare(sql, username);
+             ResultSet rows = query.executeQuery()) {
+            if (rows.next()) {
+                int max = rows.getInt(1);
+                return rows.wasNull() ? 0 : max + 1;
+            }
+            return 0;
+        }
+    }
+    
+    private boolean exists(String sql, Object... params) throws SQLException {
+        try (PreparedStatement query = prepare(sql, params);
+             ResultSet rows = query.executeQuery()) {
+            return rows.next();
+        }
+    }
+    
+    private List<String> strings(String sql, Object... params) throws SQLException {
+        List<String> result = new ArrayList<>();
+        try (PreparedStatement query = prepare(sql, params);
+             ResultSet rows = query.executeQuery()) {
+            while (rows.next()) {
+                result.add(rows.getString(1));
+            }
+        }
+        return result;
+    }
+    
+    private void update(String sql, Object... params) throws SQLException {
+        try (PreparedStatement statement = prepare(sql, params)) {
+            statement.executeUpdate();
+        }
+    }
+    
+    private PreparedStatement prepare(String sql, Object... params) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        for (int i = 0; i < params.length; i++) {
+            statement.setObject(i + 1, params[i]);
+        }
+        return statement;
+    }
+}
@@ -0,0 +1,85 @@
+package photos.model;
+
+import java.util.Collection;
+
+/**
+ * Command line tool that copies all the data from one storage backend to another.
+ * Run it with the app closed, from the project folder (paths are relative to data/):
+ *
+ *   java -cp "bin" photos.model.MigrateStorage files paged
+ *   java -cp "bin;lib/sqlite-jdbc.jar" -Dphotos.jdbc.url=jdbc:sqlite:data/photos.sqlite photos.model.MigrateStorage files jdbc
+ *
+ * Users already in the destination are replaced, anything else there is left alone.
+ * The source isn't changed.
+ * @author Klever and Shrij
+ */
+public class MigrateStorage {
+    
+    /**
+     * Runs the migration.
+     * @param args The source and destination backends: files, paged or jdbc
+     */
+    public static void main(String[] args) {
+        if (args.length != 2 || args[0].equals(args[1])) {
+            System.err.println("Usage: MigrateStorage <from> <to>   (files, paged or jdbc)");
+            System.exit(1);
+        }
+        
+        UserStore from = null;
+        UserStore to = null;
+        try {
+            from = DataManager.openStore(args[0]);
+            to = DataManager.openStore(args[1]);
+            long start = System.nanoTime();
+            int copied = copy(from, to);
+            System.out.println("Copied " + copied + " users from " + args[0] + " to " + args[1]
+                               + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (Exception e) {
+            System.err.println("Migration failed: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            close(from);
+            close(to);
+        }
+    }
+    
+    /**
+     * Copies the admin and every user from one store to another, then commits.
+     * A user that can't be read is skipped (and logged) so one bad file doesn't stop the rest.
+     * @param from Where the data is now
+     * @param to Where it should go
+     * @return How many users were copied
+     */
+    static int copy(UserStore from, UserStore to) throws Exception {
+        Admin admin = from.readAdmin();
+        Collection<String> usernames = admin != null ? admin.getUsernames() : from.listUsernames();
+        int copied = 0;
+        for (String username : usernames) {
+            try {
+                User user = from.readUser(username);
+                if (user != null) {
+                    to.writeSnapshot(username, UserCodec.encode(user));
+                    copied++;
+                }
+            } catch (Exception e) {
+                System.err.println("Error copying user " + username + ": " + e.getMessage());
+            }
+        }
+        if (admin != null) {
+            to.writeAdmin(DataManager.serialize(admin));
+        }
+        to.commit();
+        to.sync();
+        return copied;
+    }
+    
+    private static void close(UserStore store) {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (Exception e) {
+                System.err.println("Error closing storage: " + e.getMessage());
+            }
+        }
+    }
+}
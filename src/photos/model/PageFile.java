@@ -0,0 +1,899 @@
+package photos.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A single data file split into fixed-size pages, holding key/value records.
+ *
+ * Page 0 is the header. The index that maps each key to where its record lives is a linear hash:
+ * it starts with a few bucket pages, and whenever the index gets about 3/4 full one more bucket
+ * is split in two, so buckets stay around a page long however many keys there are. Which page
+ * each bucket starts at is kept in a chain of directory pages (read into memory on open).
+ * The rest are data pages, overflow pages and free pages.
+ *
+ * Data pages are slotted: a slot table at the top, record bytes packed in from the bottom.
+ * A record is addressed by (page, slot), so it can be rewritten in place. A record too big
+ * for one page goes into a chain of overflow pages, and its slot just points at the chain.
+ * Empty pages go on a free list and get reused before the file grows.
+ *
+ * Reads go through a memory-mapped view of the file (lookups read the mapped pages in place,
+ * only pages about to be changed get copied), so an update that still fits in its page only changes that page.
+ *
+ * Changed pages are held in memory until commit(), which writes them all to a redo log next to the
+ * file (photos.db.log), then into the file itself, then empties the log. A crash while the pages go into
+ * the file is repaired on the next open by writing them again from the log; a crash while the log is
+ * written leaves a log that fails its checksum, and it's dropped along with the batch. Either way the
+ * file ends up with the whole batch or none of it, never half an overflow chain or bucket split.
+ * With commit(true) the log and the file are forced to disk too, so that also holds across a power cut.
+ * savepoint() and rollback() let a caller undo the pages of one update that failed partway.
+ * All methods are synchronized, the background writer and the loading threads share one instance.
+ * @author Klever and Shrij
+ */
+class PageFile {
+    
+    static final int PAGE_SIZE = 4096;
+    
+    private static final int MAGIC = 0x50484442; // "PHDB"
+    private static final int VERSION = 1;
+    private static final int INITIAL_BUCKETS = 16;
+    private static final int MAX_KEY = 1024;
+    
+    // Split a bucket once the index entries would fill this much of every bucket page
+    private static final double SPLIT_LOAD = 0.75;
+    
+    // Header page
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_PAGE_COUNT = 8;
+    private static final int H_FREE_HEAD = 12;
+    private static final int H_BUCKETS = 16;
+    private static final int H_FILL_PAGE = 20;
+    private static final int H_INITIAL_BUCKETS = 24;
+    private static final int H_DIRECTORY = 28;
+    private static final int H_INDEX_BYTES = 32;
+    
+    // Directory page: next directory page, then the first page of each bucket in order
+    private static final int DIR_NEXT = 0;
+    private static final int DIR_ENTRIES = 4;
+    private static final int DIR_PER_PAGE = (PAGE_SIZE - DIR_ENTRIES) / 4;
+    
+    // Bucket page: next overflow bucket page, bytes used, then entries of (key length, key, page, slot)
+    private static final int B_NEXT = 0;
+    private static final int B_USED = 4;
+    private static final int B_ENTRIES = 8;
+    
+    // Data page: slot count, start of record bytes, then 4-byte slots of (offset, length)
+    private static final int D_SLOTS = 0;
+    private static final int D_DATA_START = 2;
+    private static final int D_SLOT_TABLE = 4;
+    private static final int SLOT_SIZE = 4;
+    
+    // First byte of a record in a slot
+    private static final byte INLINE = 0;
+    private static final byte OVERFLOW = 1;      // Followed by first overflow page and total length
+    private static final int OVERFLOW_STUB = 9;
+    
+    // Overflow page: next page in the chain, then data
+    private static final int O_DATA = 4;
+    
+    // Redo log: magic, page count, then (page number, page) for each, then a CRC32 of all that and the commit marker
+    private static final int LOG_MAGIC = 0x50484c47;  // "PHLG"
+    private static final int LOG_COMMIT = 0x434f4d54; // "COMT"
+    
+    // Biggest record that still goes inline in a data page
+    private static final int MAX_INLINE = PAGE_SIZE - D_SLOT_TABLE - SLOT_SIZE - 1;
+    
+    private final FileChannel channel;
+    private final FileChannel log;
+    private final File logFile;
+    private MappedByteBuffer map;
+    private final Map<Integer, ByteBuffer> dirty = new TreeMap<>(); // Changed pages waiting for commit()
+    
+    // What savepoint() saw, for rollback()
+    private final Map<Integer, ByteBuffer> undo = new HashMap<>(); // Page -> its dirty copy before (null if it wasn't dirty)
+    private int savedPageCount;
+    private int savedFreeHead;
+    private int savedBucketCount;
+    private int savedFillPage;
+    private long savedIndexBytes;
+    private int savedDirectoryPages;
+    private int pageCount;
+    private int freeHead;
+    private int bucketCount;
+    private int initialBuckets;
+    private long indexBytes;      // Total size of the index entries, to know when to split
+    private int[] bucketPages;    // First page of each bucket
+    private final List<Integer> directoryPages = new ArrayList<>();
+    private int fillPage; // Data page new records go into first
+    
+    /**
+     * Where a key's record lives in the file.
+     */
+    private static class Location {
+        final int bucketPage;  // Bucket page holding the index entry
+        final int entryOffset; // Offset of the entry in that page
+        final int page;
+        final int slot;
+        
+        Location(int bucketPage, int entryOffset, int page, int slot) {
+            this.bucketPage = bucketPage;
+            this.entryOffset = entryOffset;
+            this.page = page;
+            this.slot = slot;
+        }
+    }
+    
+    /**
+     * Opens a page file, creating it if it doesn't exist yet.
+     * @param file The file
+     * @throws IOException If it can't be opened or isn't a page file
+     */
+    PageFile(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        logFile = new File(file.getPath() + ".log");
+        try {
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+            recover();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        
+        if (channel.size() == 0) {
+            pageCount = 1;
+            initialBuckets = INITIAL_BUCKETS;
+            bucketCount = initialBuckets;
+            bucketPages = new int[bucketCount];
+            for (int i = 0; i < bucketCount; i++) {
+                bucketPages[i] = allocatePage();
+                writePage(bucketPages[i], emptyBucketPage());
+            }
+            for (int i = 0; i < bucketCount; i++) {
+                setBucketPage(i, bucketPages[i]);
+            }
+            writeHeader();
+        } else {
+            remap();
+            if (map.getInt(H_MAGIC) != MAGIC) {
+                close();
+                throw new IOException(file.getName() + " is not a photos data file");
+            }
+            if (map.getInt(H_VERSION) > VERSION) {
+                close();
+                throw new IOException(file.getName() + " is from a newer version of the app");
+            }
+            pageCount = map.getInt(H_PAGE_COUNT);
+            freeHead = map.getInt(H_FREE_HEAD);
+            bucketCount = map.getInt(H_BUCKETS);
+            fillPage = map.getInt(H_FILL_PAGE);
+            initialBuckets = map.getInt(H_INITIAL_BUCKETS);
+            indexBytes = map.getLong(H_INDEX_BYTES);
+            readDirectory(map.getInt(H_DIRECTORY));
+        }
+        commit(true); // A new file's first pages
+    }
+    
+    /**
+     * Gets the record stored under a key.
+     * @param key The key
+     * @return The record, or null if there isn't one
+     */
+    synchronized byte[] get(String key) throws IOException {
+        Location location = find(encodeKey(key));
+        return location == null ? null : readRecord(location.page, location.slot);
+    }
+    
+    /**
+     * Stores a record under a key, replacing what was there.
+     * If the new record fits where the old one was, only that page is written.
+     * @param key The key
+     * @param value The record
+     */
+    synchronized void put(String key, byte[] value) throws IOException {
+        byte[] keyBytes = encodeKey(key);
+        byte[] stored = toStored(value);
+        Location location = find(keyBytes);
+        
+        if (location != null) {
+            ByteBuffer page = readPage(location.page);
+            freeOverflow(page, location.slot);
+            if (rewriteInPage(page, location.slot, stored)) {
+                writePage(location.page, page);
+                return;
+            }
+            // Doesn't fit in its page anymore, move it somewhere with room
+            deleteSlot(location.page, page, location.slot);
+            long slotRef = insert(stored);
+            ByteBuffer bucket = readPage(location.bucketPage);
+            int pos = location.entryOffset + 2 + keyBytes.length;
+            bucket.putInt(pos, (int) (slotRef >>> 16));
+            bucket.putShort(pos + 4, (short) slotRef);
+            writePage(location.bucketPage, bucket);
+            return;
+        }
+        
+        long slotRef = insert(stored);
+        addIndexEntry(keyBytes, (int) (slotRef >>> 16), (int) (slotRef & 0xFFFF));
+    }
+    
+    /**
+     * Removes the record stored under a key.
+     * @param key The key
+     * @return true if there was one
+     */
+    synchronized boolean remove(String key) throws IOException {
+        byte[] keyBytes = encodeKey(key);
+        Location location = find(keyBytes);
+        if (location == null) {
+            return false;
+        }
+        ByteBuffer page = readPage(location.page);
+        freeOverflow(page, location.slot);
+        deleteSlot(location.page, page, location.slot);
+        
+        // Close the gap the entry leaves in its bucket page
+        ByteBuffer bucket = readPage(location.bucketPage);
+        int entryLength = 2 + keyBytes.length + 6;
+        int used = bucket.getInt(B_USED);
+        byte[] rest = new byte[used - location.entryOffset - entryLength];
+        bucket.get(location.entryOffset + entryLength, rest);
+        bucket.put(location.entryOffset, rest);
+        bucket.putInt(B_USED, used - entryLength);
+        writePage(location.bucketPage, bucket);
+        indexBytes -= entryLength;
+        writeHeader();
+        return true;
+    }
+    
+    /**
+     * Writes every page changed since the last commit to the file, as one atomic batch (see the class comment).
+     * If it fails the pages stay waiting, and the next commit (or the next open) tries again.
+     * @param force true to wait until the batch is on the disk itself
+     */
+    synchronized void commit(boolean force) throws IOException {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        
+        ByteBuffer record = ByteBuffer.allocate(8 + dirty.size() * (4 + PAGE_SIZE) + 8);
+        record.putInt(LOG_MAGIC).putInt(dirty.size());
+        for (Map.Entry<Integer, ByteBuffer> entry : dirty.entrySet()) {
+            record.putInt(entry.getKey()).put(entry.getValue().duplicate().clear());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue()).putInt(LOG_COMMIT);
+        record.flip();
+        log.truncate(0);
+        writeFully(log, record, 0);
+        if (force) {
+            log.force(false);
+        }
+        
+        for (Map.Entry<Integer, ByteBuffer> entry : dirty.entrySet()) {
+            writeFully(channel, entry.getValue().duplicate().clear(), (long) entry.getKey() * PAGE_SIZE);
+        }
+        if (force) {
+            channel.force(false);
+        }
+        log.truncate(0);
+        dirty.clear();
+        undo.clear();
+    }
+    
+    /**
+     * Marks the start of an update, so rollback() can put its pages back if it fails partway.
+     */
+    synchronized void savepoint() {
+        undo.clear();
+        savedPageCount = pageCount;
+        savedFreeHead = freeHead;
+        savedBucketCount = bucketCount;
+        savedFillPage = fillPage;
+        savedIndexBytes = indexBytes;
+        savedDirectoryPages = directoryPages.size();
+    }
+    
+    /**
+     * Undoes every page change since the last savepoint(). Changes from before it stay waiting for commit().
+     */
+    synchronized void rollback() {
+        for (Map.Entry<Integer, ByteBuffer> entry : undo.entrySet()) {
+            if (entry.getValue() == null) {
+                dirty.remove(entry.getKey());
+            } else {
+                dirty.put(entry.getKey(), entry.getValue());
+            }
+        }
+        undo.clear();
+        pageCount = savedPageCount;
+        freeHead = savedFreeHead;
+        bucketCount = savedBucketCount;
+        fillPage = savedFillPage;
+        indexBytes = savedIndexBytes;
+        while (directoryPages.size() > savedDirectoryPages) {
+            directoryPages.remove(directoryPages.size() - 1);
+        }
+    }
+    
+    /**
+     * Forces everything committed so far to disk.
+     */
+    synchronized void force() throws IOException {
+        channel.force(false);
+    }
+    
+    /**
+     * Closes the file. Anything not committed is dropped.
+     */
+    synchronized void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            log.close();
+        }
+    }
+    
+    /**
+     * Finishes the last commit if the app died partway through writing its pages into the file.
+     * A log that isn't complete (it died while writing the log) means the file was never touched, so it's dropped.
+     */
+    private void recover() throws IOException {
+        long size = log.size();
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE - 8));
+        while (record.hasRemaining() && log.read(record, record.position()) > 0) {
+            // Keep reading
+        }
+        record.flip();
+        
+        int count = record.remaining() >= 8 && record.getInt(0) == LOG_MAGIC ? record.getInt(4) : -1;
+        long expected = 8 + (long) count * (4 + PAGE_SIZE) + 8;
+        boolean complete = count >= 0 && record.remaining() == expected;
+        if (complete) {
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, (int) expected - 8);
+            complete = record.getInt((int) expected - 8) == (int) crc.getValue()
+                && record.getInt((int) expected - 4) == LOG_COMMIT;
+        }
+        
+        if (complete) {
+            for (int i = 0; i < count; i++) {
+                int pos = 8 + i * (4 + PAGE_SIZE);
+                ByteBuffer page = record.duplicate();
+                page.position(pos + 4).limit(pos + 4 + PAGE_SIZE);
+                writeFully(channel, page, (long) record.getInt(pos) * PAGE_SIZE);
+            }
+            channel.force(false);
+            System.err.println("Finished writing " + count + " pages to the data file from " + logFile.getName());
+        } else {
+            System.err.println("Dropping an incomplete " + logFile.getName() + " (the last save didn't finish)");
+        }
+        log.truncate(0);
+        log.force(false);
+    }
+    
+    // ---------------------------------------------------------------- Index
+    
+    private Location find(byte[] key) throws IOException {
+        int bucketPage = bucketPages[bucketOf(key)];
+        while (bucketPage != 0) {
+            ByteBuffer bucket = view(bucketPage);
+            int used = bucket.getInt(B_USED);
+            int pos = B_ENTRIES;
+            while (pos < used) {
+                int keyLength = bucket.getShort(pos) & 0xFFFF;
+                if (keyLength == key.length && keyEquals(bucket, pos + 2, key)) {
+                    int page = bucket.getInt(pos + 2 + keyLength);
+                    int slot = bucket.getShort(pos + 2 + keyLength + 4) & 0xFFFF;
+                    return new Location(bucketPage, pos, page, slot);
+                }
+                pos += 2 + keyLength + 6;
+            }
+            bucketPage = bucket.getInt(B_NEXT);
+        }
+        return null;
+    }
+    
+    private void addIndexEntry(byte[] key, int page, int slot) throws IOException {
+        int entryLength = 2 + key.length + 6;
+        int bucketPage = bucketPages[bucketOf(key)];
+        while (true) {
+            ByteBuffer bucket = readPage(bucketPage);
+            int used = bucket.getInt(B_USED);
+            if (used + entryLength <= PAGE_SIZE) {
+                bucket.putShort(used, (short) key.length);
+                bucket.put(used + 2, key);
+                bucket.putInt(used + 2 + key.length, page);
+                bucket.putShort(used + 2 + key.length + 4, (short) slot);
+                bucket.putInt(B_USED, used + entryLength);
+                writePage(bucketPage, bucket);
+                break;
+            }
+            int next = bucket.getInt(B_NEXT);
+            if (next == 0) {
+                // Bucket is full, chain on another one until the split reaches it
+                next = allocatePage();
+                writePage(next, emptyBucketPage());
+                bucket.putInt(B_NEXT, next);
+                writePage(bucketPage, bucket);
+            }
+            bucketPage = next;
+        }
+        
+        indexBytes += entryLength;
+        if (indexBytes > bucketCount * (double) (PAGE_SIZE - B_ENTRIES) * SPLIT_LOAD) {
+            split();
+        }
+        writeHeader();
+    }
+    
+    /**
+     * Works out which bucket a key belongs in.
+     * Buckets before the split point have already been split this round, so they use twice the range.
+     */
+    private int bucketOf(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        int round = roundSize();
+        int bucket = Math.floorMod(hash, round);
+        if (bucket < bucketCount - round) {
+            bucket = Math.floorMod(hash, round * 2);
+        }
+        return bucket;
+    }
+    
+    /**
+     * Gets how many buckets there were when the current round of splits started.
+     */
+    private int roundSize() {
+        return initialBuckets * Integer.highestOneBit(bucketCount / initialBuckets);
+    }
+    
+    /**
+     * Splits the next bucket in line, moving about half its entries into a new bucket at the end.
+     */
+    private void split() throws IOException {
+        int round = roundSize();
+        int splitting = bucketCount - round;
+        List<Integer> chain = new ArrayList<>();
+        List<byte[]> stay = new ArrayList<>();
+        List<byte[]> move = new ArrayList<>();
+        for (int bucketPage = bucketPages[splitting]; bucketPage != 0; ) {
+            chain.add(bucketPage);
+            ByteBuffer bucket = view(bucketPage);
+            int used = bucket.getInt(B_USED);
+            int pos = B_ENTRIES;
+            while (pos < used) {
+                int keyLength = bucket.getShort(pos) & 0xFFFF;
+                byte[] entry = new byte[2 + keyLength + 6];
+                bucket.get(pos, entry);
+                int hash = Arrays.hashCode(Arrays.copyOfRange(entry, 2, 2 + keyLength));
+                (Math.floorMod(hash, round * 2) == splitting ? stay : move).add(entry);
+                pos += entry.length;
+            }
+            bucketPage = bucket.getInt(B_NEXT);
+        }
+        
+        int newPage = allocatePage();
+        setBucketPage(bucketCount, newPage);
+        bucketCount++;
+        writeBucket(chain, stay);
+        writeBucket(Collections.singletonList(newPage), move);
+    }
+    
+    /**
+     * Packs index entries into a bucket's pages, reusing the pages it already has
+     * and adding or freeing overflow pages as needed. The first page stays the same.
+     */
+    private void writeBucket(List<Integer> chain, List<byte[]> entries) throws IOException {
+        List<ByteBuffer> packed = new ArrayList<>();
+        ByteBuffer page = emptyBucketPage();
+        packed.add(page);
+        for (byte[] entry : entries) {
+            int used = page.getInt(B_USED);
+            if (used + entry.length > PAGE_SIZE) {
+                page = emptyBucketPage();
+                packed.add(page);
+                used = B_ENTRIES;
+            }
+            page.put(used, entry);
+            page.putInt(B_USED, used + entry.length);
+        }
+        
+        List<Integer> numbers = new ArrayList<>(chain.subList(0, Math.min(chain.size(), packed.size())));
+        while (numbers.size() < packed.size()) {
+            numbers.add(allocatePage());
+        }
+        for (int i = 0; i < packed.size(); i++) {
+            packed.get(i).putInt(B_NEXT, i + 1 < numbers.size() ? numbers.get(i + 1) : 0);
+            writePage(numbers.get(i), packed.get(i));
+        }
+        for (int i = packed.size(); i < chain.size(); i++) {
+            freePage(chain.get(i));
+        }
+    }
+    
+    private static ByteBuffer emptyBucketPage() {
+        ByteBuffer bucket = ByteBuffer.allocate(PAGE_SIZE);
+        bucket.putInt(B_USED, B_ENTRIES);
+        return bucket;
+    }
+    
+    /**
+     * Records which page a bucket starts at, adding a directory page if the bucket is past the last one.
+     */
+    private void setBucketPage(int bucket, int page) throws IOException {
+        if (bucket >= bucketPages.length) {
+            bucketPages = Arrays.copyOf(bucketPages, Math.max(bucket + 1, bucketPages.length * 2));
+        }
+        bucketPages[bucket] = page;
+        
+        int index = bucket / DIR_PER_PAGE;
+        if (index == directoryPages.size()) {
+            int directoryPage = allocatePage();
+            writePage(directoryPage, ByteBuffer.allocate(PAGE_SIZE));
+            if (index > 0) {
+                ByteBuffer previous = readPage(directoryPages.get(index - 1));
+                previous.putInt(DIR_NEXT, directoryPage);
+                writePage(directoryPages.get(index - 1), previous);
+            }
+            directoryPages.add(directoryPage);
+        }
+        ByteBuffer directory = readPage(directoryPages.get(index));
+        directory.putInt(DIR_ENTRIES + (bucket % DIR_PER_PAGE) * 4, page);
+        writePage(directoryPages.get(index), directory);
+    }
+    
+    private void readDirectory(int firstPage) throws IOException {
+        bucketPages = new int[bucketCount];
+        int bucket = 0;
+        for (int page = firstPage; page != 0 && bucket < bucketCount; ) {
+            directoryPages.add(page);
+            ByteBuffer directory = view(page);
+            for (int i = 0; i < DIR_PER_PAGE && bucket < bucketCount; i++) {
+                bucketPages[bucket++] = directory.getInt(DIR_ENTRIES + i * 4);
+            }
+            page = directory.getInt(DIR_NEXT);
+        }
+        if (bucket < bucketCount) {
+            throw new IOException("Data file index directory is cut short");
+        }
+    }
+    
+    private static boolean keyEquals(ByteBuffer bucket, int pos, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (bucket.get(pos + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static byte[] encodeKey(String key) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY) {
+            throw new IOException("Key too long for the data file: " + key);
+        }
+        return bytes;
+    }
+    
+    // ---------------------------------------------------------------- Records
+    
+    /**
+     * Turns a value into what goes in a slot: inline bytes, or a stub pointing at overflow pages.
+     */
+    private byte[] toStored(byte[] value) throws IOException {
+        if (value.length + 1 <= MAX_INLINE) {
+            byte[] stored = new byte[value.length + 1];
+            stored[0] = INLINE;
+            System.arraycopy(value, 0, stored, 1, value.length);
+            return stored;
+        }
+        
+        int chunk = PAGE_SIZE - O_DATA;
+        int pages = (value.length + chunk - 1) / chunk;
+        int[] chain = new int[pages];
+        for (int i = 0; i < pages; i++) {
+            chain[i] = allocatePage();
+        }
+        for (int i = 0; i < pages; i++) {
+            ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+            page.putInt(0, i + 1 < pages ? chain[i + 1] : 0);
+            int offset = i * chunk;
+            page.put(O_DATA, value, offset, Math.min(chunk, value.length - offset));
+            writePage(chain[i], page);
+        }
+        ByteBuffer stub = ByteBuffer.allocate(OVERFLOW_STUB);
+        stub.put(OVERFLOW).putInt(chain[0]).putInt(value.length);
+        return stub.array();
+    }
+    
+    private byte[] readRecord(int pageNumber, int slot) throws IOException {
+        ByteBuffer page = view(pageNumber);
+        int offset = page.getShort(D_SLOT_TABLE + slot * SLOT_SIZE) & 0xFFFF;
+        int length = page.getShort(D_SLOT_TABLE + slot * SLOT_SIZE + 2) & 0xFFFF;
+        if (offset == 0 || length == 0) {
+            throw new IOException("Data file index points at an empty slot");
+        }
+        
+        if (page.get(offset) == INLINE) {
+            byte[] value = new byte[length - 1];
+            page.get(offset + 1, value);
+            return value;
+        }
+        
+        int next = page.getInt(offset + 1);
+        byte[] value = new byte[page.getInt(offset + 5)];
+        int chunk = PAGE_SIZE - O_DATA;
+        for (int pos = 0; pos < value.length; pos += chunk) {
+            if (next == 0) {
+                throw new IOException("Data file record is cut short");
+            }
+            ByteBuffer overflow = view(next);
+            overflow.get(O_DATA, value, pos, Math.min(chunk, value.length - pos));
+            next = overflow.getInt(0);
+        }
+        return value;
+    }
+    
+    /**
+     * Puts a stored record into a data page with room, starting a new page if none has any.
+     * @return The record's page and slot packed as page << 16 | slot
+     */
+    private long insert(byte[] stored) throws IOException {
+        if (fillPage != 0) {
+            ByteBuffer page = readPage(fillPage);
+            int slot = addToPage(page, stored);
+            if (slot >= 0) {
+                writePage(fillPage, page);
+                return ((long) fillPage << 16) | slot;
+            }
+        }
+        
+        fillPage = allocatePage();
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        page.putShort(D_DATA_START, (short) 0); // 0 means PAGE_SIZE, which doesn't fit in a short
+        int slot = addToPage(page, stored);
+        writePage(fillPage, page);
+        writeHeader();
+        return ((long) fillPage << 16) | slot;
+    }
+    
+    /**
+     * Adds a record to a data page, compacting the page first if that makes room.
+     * @return The slot, or -1 if the page is too full
+     */
+    private static int addToPage(ByteBuffer page, byte[] stored) {
+        int slots = page.getShort(D_SLOTS) & 0xFFFF;
+        int slot = 0;
+        while (slot < slots && (page.getShort(D_SLOT_TABLE + slot * SLOT_SIZE) & 0xFFFF) != 0) {
+            slot++;
+        }
+        int slotTableEnd = D_SLOT_TABLE + Math.max(slots, slot + 1) * SLOT_SIZE;
+        if (dataStart(page) - stored.length < slotTableEnd) {
+            compactPage(page);
+            if (dataStart(page) - stored.length < slotTableEnd) {
+                return -1;
+            }
+        }
+        
+        int offset = dataStart(page) - stored.length;
+        page.put(offset, stored);
+        page.putShort(D_DATA_START, (short) offset);
+        page.putShort(D_SLOT_TABLE + slot * SLOT_SIZE, (short) offset);
+        page.putShort(D_SLOT_TABLE + slot * SLOT_SIZE + 2, (short) stored.length);
+        // Compacting can trim empty slots off the end of the table, so go by the count it left
+        page.putShort(D_SLOTS, (short) Math.max(page.getShort(D_SLOTS) & 0xFFFF, slot + 1));
+        return slot;
+    }
+    
+    /**
+     * Replaces a record within its own page if there's room for it.
+     * @return false if it has to move to another page (its old copy is already gone from this one)
+     */
+    private static boolean rewriteInPage(ByteBuffer page, int slot, byte[] stored) {
+        int slotPos = D_SLOT_TABLE + slot * SLOT_SIZE;
+        int offset = page.getShort(slotPos) & 0xFFFF;
+        int length = page.getShort(slotPos + 2) & 0xFFFF;
+        if (stored.length <= length) {
+            page.put(offset, stored);
+            page.putShort(slotPos + 2, (short) stored.length);
+            return true;
+        }
+        
+        // Drop the old copy and see if the page has room once it's packed
+        page.putShort(slotPos, (short) 0);
+        page.putShort(slotPos + 2, (short) 0);
+        compactPage(page);
+        int slots = Math.max(page.getShort(D_SLOTS) & 0xFFFF, slot + 1);
+        if (dataStart(page) - stored.length < D_SLOT_TABLE + slots * SLOT_SIZE) {
+            return false; // The slot is left empty for the caller to delete
+        }
+        int newOffset = dataStart(page) - stored.length;
+        page.put(newOffset, stored);
+        page.putShort(D_DATA_START, (short) newOffset);
+        page.putShort(D_SLOTS, (short) slots);
+        page.putShort(slotPos, (short) newOffset);
+        page.putShort(slotPos + 2, (short) stored.length);
+        return true;
+    }
+    
+    /**
+     * Empties a slot. A data page with nothing left in it goes back on the free list.
+     */
+    private void deleteSlot(int pageNumber, ByteBuffer page, int slot) throws IOException {
+        page.putShort(D_SLOT_TABLE + slot * SLOT_SIZE, (short) 0);
+        page.putShort(D_SLOT_TABLE + slot * SLOT_SIZE + 2, (short) 0);
+        
+        int slots = page.getShort(D_SLOTS) & 0xFFFF;
+        boolean empty = true;
+        for (int i = 0; i < slots && empty; i++) {
+            empty = (page.getShort(D_SLOT_TABLE + i * SLOT_SIZE) & 0xFFFF) == 0;
+        }
+        if (empty) {
+            if (pageNumber == fillPage) {
+                fillPage = 0;
+            }
+            freePage(pageNumber);
+        } else {
+            writePage(pageNumber, page);
+        }
+    }
+    
+    /**
+     * Frees the overflow chain of a record, if it has one.
+     */
+    private void freeOverflow(ByteBuffer page, int slot) throws IOException {
+        int offset = page.getShort(D_SLOT_TABLE + slot * SLOT_SIZE) & 0xFFFF;
+        if (page.get(offset) != OVERFLOW) {
+            return;
+        }
+        int next = page.getInt(offset + 1);
+        while (next != 0) {
+            int following = readPage(next).getInt(0);
+            freePage(next);
+            next = following;
+        }
+    }
+    
+    /**
+     * Packs a data page's records against the bottom so all its free space is in one piece.
+     */
+    private static void compactPage(ByteBuffer page) {
+        int slots = page.getShort(D_SLOTS) & 0xFFFF;
+        byte[] packed = new byte[PAGE_SIZE];
+        int end = PAGE_SIZE;
+        for (int i = 0; i < slots; i++) {
+            int slotPos = D_SLOT_TABLE + i * SLOT_SIZE;
+            int offset = page.getShort(slotPos) & 0xFFFF;
+            int length = page.getShort(slotPos + 2) & 0xFFFF;
+            if (offset == 0) {
+                continue;
+            }
+            end -= length;
+            page.get(offset, packed, end, length);
+            page.putShort(slotPos, (short) end);
+        }
+        page.put(end, packed, end, PAGE_SIZE - end);
+        
+        // Trailing empty slots can go too
+        while (slots > 0 && (page.getShort(D_SLOT_TABLE + (slots - 1) * SLOT_SIZE) & 0xFFFF) == 0) {
+            slots--;
+        }
+        page.putShort(D_SLOTS, (short) slots);
+        page.putShort(D_DATA_START, (short) (end == PAGE_SIZE ? 0 : end));
+    }
+    
+    private static int dataStart(ByteBuffer page) {
+        int start = page.getShort(D_DATA_START) & 0xFFFF;
+        return start == 0 ? PAGE_SIZE : start;
+    }
+    
+    // ---------------------------------------------------------------- Pages
+    
+    private int allocatePage() throws IOException {
+        int page;
+        if (freeHead != 0) {
+            page = freeHead;
+            freeHead = readPage(page).getInt(0);
+        } else {
+            page = pageCount++;
+        }
+        writeHeader();
+        return page;
+    }
+    
+    private void freePage(int page) throws IOException {
+        ByteBuffer free = ByteBuffer.allocate(PAGE_SIZE);
+        free.putInt(0, freeHead);
+        writePage(page, free);
+        freeHead = page;
+        writeHeader();
+    }
+    
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_PAGE_COUNT, pageCount);
+        header.putInt(H_FREE_HEAD, freeHead);
+        header.putInt(H_BUCKETS, bucketCount);
+        header.putInt(H_FILL_PAGE, fillPage);
+        header.putInt(H_INITIAL_BUCKETS, initialBuckets);
+        header.putInt(H_DIRECTORY, directoryPages.isEmpty() ? 0 : directoryPages.get(0));
+        header.putLong(H_INDEX_BYTES, indexBytes);
+        writePage(0, header);
+    }
+    
+    /**
+     * Copies a page out of the mapped file so it can be changed and written back.
+     */
+    private ByteBuffer readPage(int page) throws IOException {
+        byte[] bytes = new byte[PAGE_SIZE];
+        view(page).get(0, bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+    
+    /**
+     * Gets a page straight out of the mapped file (or the changes waiting for commit), without copying it.
+     * Only for reading.
+     */
+    private ByteBuffer view(int page) throws IOException {
+        ByteBuffer changed = dirty.get(page);
+        if (changed != null) {
+            return changed.asReadOnlyBuffer();
+        }
+        long position = (long) page * PAGE_SIZE;
+        if (map == null || position + PAGE_SIZE > map.capacity()) {
+            remap();
+            if (position + PAGE_SIZE > map.capacity()) {
+                throw new IOException("Data file page " + page + " is past the end of the file");
+            }
+        }
+        return map.slice((int) position, PAGE_SIZE);
+    }
+    
+    /**
+     * Changes a page. It's copied into the pages waiting for commit(), the file isn't touched yet.
+     */
+    private void writePage(int page, ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(PAGE_SIZE);
+        copy.put(0, data, 0, PAGE_SIZE);
+        ByteBuffer before = dirty.put(page, copy);
+        if (!undo.containsKey(page)) {
+            undo.put(page, before);
+        }
+    }
+    
+    private static void writeFully(FileChannel to, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += to.write(buffer, position);
+        }
+    }
+    
+    /**
+     * Maps the whole file again after it's grown.
+     */
+    private void remap() throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+}
@@ -0,0 +1,672 @@
+package photos.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps every user in one paged data file (see PageFile) instead of a file per user.
+ *
+ * Each user is split into small records so an edit only rewrites what it touched:
+ *   "admin"                 the serialized Admin
+ *   "users"                 the usernames that have records
+ *   "u/(user)"              tag types and album names
+ *   "a/(user)/(album)"      the photo paths one album holds, in order
+ *   "p/(user)/(photo path)" caption, date and tags of one photo, and how many albums hold it
+ * Changing a caption or a tag rewrites just that photo's record, and adding or removing a photo
+ * rewrites that photo and the one album, usually a page or two whatever the size of the library.
+ * Strings in the records are length-prefixed UTF-8. Files from before the "format" record existed
+ * used writeUTF() instead, and get rewritten in one commit when they're opened.
+ *
+ * There's no journal here: changes are applied straight to the records. Each writer batch reaches
+ * the file as a whole through PageFile's redo log on commit(), so the app dying never leaves records
+ * half-updated. With -Dphotos.fsync=always the log and the file are forced on every commit, so that
+ * holds across a power cut too; with interval or never, batches since the last sync can be lost
+ * (or torn) by a power cut, same as the other backends' unsynced writes.
+ * Only the writer thread writes. Reads can come from any thread, PageFile handles the locking.
+ * @author Klever and Shrij
+ */
+class PagedStore implements UserStore {
+    
+    private static final String ADMIN_KEY = "admin";
+    private static final String USERS_KEY = "users";
+    private static final String FORMAT_KEY = "format";
+    private static final int FORMAT = 2; // 1 was writeUTF() strings, which can't go over 64 KB
+    
+    private final PageFile pages;
+    private volatile int format;          // Format of the records being read, only below FORMAT while upgrading
+    private final DurableWriter.FsyncPolicy policy;
+    private final long intervalMillis;
+    private boolean unsynced;             // Written since the last force (writer thread only)
+    private long lastSyncMillis = System.currentTimeMillis();
+    
+    /**
+     * The tag types and album names of one user.
+     */
+    private static class UserRecord {
+        List<String> tagTypes = new ArrayList<>();
+        List<String> albums = new ArrayList<>(); // Album names, in order
+    }
+    
+    /**
+     * One photo's details.
+     */
+    private static class PhotoRecord {
+        String caption;
+        long timeMillis;
+        Set<Tag> tags = new LinkedHashSet<>();
+        int albums; // How many of the user's albums hold it, the record goes when this gets to 0
+        
+        PhotoRecord(String caption, long timeMillis) {
+            this.caption = caption;
+            this.timeMillis = timeMillis;
+        }
+    }
+    
+    /**
+     * The album and photo records one batch of changes works on.
+     * Each is read at most once and only the ones that changed get written back, at the end.
+     */
+    private class Batch {
+        final String username;
+        final UserRecord user;
+        final Map<String, List<String>> albums = new HashMap<>(); // Album name -> paths, null if there's no such album
+        final Set<String> changedAlbums = new LinkedHashSet<>();
+        final Map<String, PhotoRecord> photos = new HashMap<>();  // Path -> record, null if it isn't stored
+        final Set<String> changedPhotos = new LinkedHashSet<>();
+        
+        Batch(String username, UserRecord user) {
+            this.username = username;
+            this.user = user;
+        }
+        
+        List<String> album(String name) throws IOException {
+            if (!albums.containsKey(name)) {
+                albums.put(name, user.albums.contains(name) ? readAlbum(username, name) : null);
+            }
+            return albums.get(name);
+        }
+        
+        PhotoRecord photo(String path) throws IOException {
+            if (!photos.containsKey(path)) {
+                photos.put(path, readPhotoRecord(username, path));
+            }
+            return photos.get(path);
+        }
+        
+        void setAlbum(String name, List<String> paths) {
+            albums.put(name, paths);
+            changedAlbums.add(name);
+        }
+        
+        void photoChanged(String path) {
+            changedPhotos.add(path);
+        }
+        
+        void write() throws IOException {
+            for (String name : changedAlbums) {
+                List<String> paths = albums.get(name);
+                if (paths == null) {
+                    pages.remove(albumKey(username, name));
+                } else {
+                    pages.put(albumKey(username, name), encodeStrings(paths));
+                }
+            }
+            for (String path : changedPhotos) {
+                PhotoRecord p = photos.get(path);
+                if (p == null || p.albums <= 0) {
+                    pages.remove(photoKey(username, path));
+                } else {
+                    pages.put(photoKey(username, path), encodePhoto(p));
+                }
+            }
+        }
+    }
+    
+    /**
+     * One change to the records, see update().
+     */
+    private interface Update {
+        void run() throws IOException;
+    }
+    
+    /**
+     * Opens (or creates) the data file, upgrading its records if they're from an older build.
+     * @param file The data file
+     * @param policy When to force writes to disk
+     * @param intervalMillis How often to force them with the INTERVAL policy
+     * @throws IOException If the file can't be opened, or is from a newer version of the app
+     */
+    PagedStore(File file, DurableWriter.FsyncPolicy policy, long intervalMillis) throws IOException {
+        this.pages = new PageFile(file);
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        try {
+            byte[] saved = pages.get(FORMAT_KEY);
+            format = saved == null ? 1 : saved[0];
+            if (format > FORMAT) {
+                throw new IOException(file.getName() + " is from a newer version of the app");
+            }
+            if (format < FORMAT) {
+                upgrade();
+            }
+        } catch (IOException e) {
+            pages.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Rewrites every record of a format 1 file with UTF-8 strings, all in one commit.
+     * Everything is read before anything is written, since the reads still go by the old format.
+     */
+    private void upgrade() throws IOException {
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        List<String> usernames = listUsernames();
+        if (!usernames.isEmpty()) {
+            records.put(USERS_KEY, encodeStrings(usernames));
+        }
+        for (String username : usernames) {
+            UserRecord user = readUserRecord(username);
+            if (user == null) {
+                continue;
+            }
+            records.put(userKey(username), encodeUser(user));
+            for (String albumName : user.albums) {
+                List<String> paths = readAlbum(username, albumName);
+                if (paths == null) {
+                    continue;
+                }
+                records.put(albumKey(username, albumName), encodeStrings(paths));
+                for (String path : paths) {
+                    String key = photoKey(username, path);
+                    PhotoRecord photo = records.containsKey(key) ? null : readPhotoRecord(username, path);
+                    if (photo != null) {
+                        records.put(key, encodePhoto(photo));
+                    }
+                }
+            }
+        }
+        
+        format = FORMAT;
+        for (Map.Entry<String, byte[]> record : records.entrySet()) {
+            pages.put(record.getKey(), record.getValue());
+        }
+        pages.put(FORMAT_KEY, new byte[] { FORMAT });
+        pages.commit(true);
+    }
+    
+    @Override
+    public Admin readAdmin() throws IOException, ClassNotFoundException {
+        byte[] data = pages.get(ADMIN_KEY);
+        if (data == null) {
+            return null;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (Admin) ois.readObject();
+        }
+    }
+    
+    /**
+     * Rebuilds a user from their records.
+     */
+    @Override
+    public User readUser(String username) throws IOException {
+        UserRecord record = readUserRecord(username);
+        if (record == null) {
+            return null;
+        }
+        
+        User user = new User(username);
+        for (String tagType : record.tagTypes) {
+            user.addTagType(tagType);
+        }
+        Map<String, Photo> photos = new HashMap<>(); // Photos in several albums stay shared
+        for (String albumName : record.albums) {
+            List<String> paths = readAlbum(username, albumName);
+            if (paths == null) {
+                throw new IOException("Missing album " + albumName + " for user " + username);
+            }
+            List<Photo> albumPhotos = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                Photo photo = photos.get(path);
+                if (photo == null) {
+                    PhotoRecord p = readPhotoRecord(username, path);
+                    if (p == null) {
+                        throw new IOException("Missing photo " + path + " for user " + username);
+                    }
+                    photo = new Photo(path, p.caption, p.timeMillis, user.getTagDictionary());
+                    for (Tag tag : p.tags) {
+                        photo.addTag(tag);
+                    }
+                    photos.put(path, photo);
+                }
+                albumPhotos.add(photo);
+            }
+            user.restoreAlbum(new Album(albumName, albumPhotos));
+        }
+        return user;
+    }
+    
+    /**
+     * Stores a whole user, only writing the records that actually differ from what's there.
+     * @param user The user
+     */
+    private void writeUser(User user) throws IOException {
+        String username = user.getUsername();
+        UserRecord old = readUserRecord(username);
+        Set<String> oldPaths = new HashSet<>();
+        if (old == null) {
+            addUsername(username);
+        } else {
+            for (String albumName : old.albums) {
+                List<String> paths = readAlbum(username, albumName);
+                if (paths != null) {
+                    oldPaths.addAll(paths);
+                }
+            }
+        }
+        
+        UserRecord record = new UserRecord();
+        record.tagTypes.addAll(user.getTagTypes());
+        Map<String, Photo> photos = new LinkedHashMap<>();
+        Map<String, Integer> albumCounts = new HashMap<>();
+        for (Album album : user.getAlbums()) {
+            List<String> paths = new ArrayList<>();
+            for (Photo photo : album.getPhotos()) {
+                paths.add(photo.getFilePath());
+                photos.putIfAbsent(photo.getFilePath(), photo);
+                albumCounts.merge(photo.getFilePath(), 1, Integer::sum);
+            }
+            record.albums.add(album.getName());
+            putIfChanged(albumKey(username, album.getName()), encodeStrings(paths));
+        }
+        
+        for (Photo photo : photos.values()) {
+            PhotoRecord p = new PhotoRecord(photo.getCaption(), photo.getTimeMillis());
+            p.tags.addAll(photo.getTags());
+            p.albums = albumCounts.get(photo.getFilePath());
+            putIfChanged(photoKey(username, photo.getFilePath()), encodePhoto(p));
+        }
+        if (old != null) {
+            for (String albumName : old.albums) {
+                if (!record.albums.contains(albumName)) {
+                    pages.remove(albumKey(username, albumName));
+                }
+            }
+            for (String path : oldPaths) {
+                if (!photos.containsKey(path)) {
+                    pages.remove(photoKey(username, path));
+                }
+            }
+        }
+        putIfChanged(userKey(username), encodeUser(record));
+    }
+    
+    @Override
+    public void writeAdmin(byte[] data) throws IOException {
+        update(() -> pages.put(ADMIN_KEY, data));
+    }
+    
+    @Override
+    public void writeSnapshot(String username, byte[] data) throws IOException {
+        User user = UserCodec.decode(new ByteArrayInputStream(data));
+        update(() -> writeUser(user));
+    }
+    
+    @Override
+    public void appendJournal(String username, List<Change> changes) throws IOException {
+        update(() -> applyChanges(username, changes));
+    }
+    
+    /**
+     * Applies changes straight to the stored records, the same way Change.apply() would to a loaded user.
+     * Only the user record (for album and tag type changes), the albums and the photos the changes
+     * touch are read and written.
+     */
+    private void applyChanges(String username, List<Change> changes) throws IOException {
+        UserRecord record = readUserRecord(username);
+        boolean userChanged = false;
+        if (record == null) {
+            record = new UserRecord();
+            addUsername(username);
+            userChanged = true;
+        }
+        Batch batch = new Batch(username, record);
+        
+        for (Change change : changes) {
+            String albumName = change.getAlbumName();
+            String path = change.getFilePath();
+            switch (change.getType()) {
+                case ADD_TAG_TYPE:
+                    if (!record.tagTypes.contains(albumName)) {
+                        record.tagTypes.add(albumName);
+                        userChanged = true;
+                    }
+                    break;
+                case CREATE_ALBUM:
+                    if (batch.album(albumName) == null) {
+                        record.albums.add(albumName);
+                        batch.setAlbum(albumName, new ArrayList<>());
+                        userChanged = true;
+                    }
+                    break;
+                case DELETE_ALBUM: {
+                    List<String> album = batch.album(albumName);
+                    if (album != null) {
+                        for (String albumPath : album) {
+                            PhotoRecord p = batch.photo(albumPath);
+                            if (p != null) {
+                                p.albums--;
+                                batch.photoChanged(albumPath);
+                            }
+                        }
+                        record.albums.remove(albumName);
+                        batch.setAlbum(albumName, null);
+                        userChanged = true;
+                    }
+                    break;
+                }
+                case RENAME_ALBUM: {
+                    List<String> album = batch.album(albumName);
+                    String newName = change.getText();
+                    if (album != null && batch.album(newName) == null) {
+                        record.albums.set(record.albums.indexOf(albumName), newName);
+                        batch.setAlbum(newName, album);
+                        batch.setAlbum(albumName, null);
+                        userChanged = true;
+                    }
+                    break;
+                }
+                case ADD_PHOTO: {
+                    List<String> album = batch.album(albumName);
+                    if (album != null && !album.contains(path)) {
+                        PhotoRecord p = batch.photo(path);
+                        if (p == null || p.albums <= 0) {
+                            // New to this user (or no album holds it anymore), so the change's copy of the details is the photo
+                            p = new PhotoRecord(change.getText(), change.getTimeMillis());
+                            p.tags.addAll(change.getTags());
+                            batch.photos.put(path, p);
+                        }
+                        p.albums++;
+                        batch.photoChanged(path);
+                        album.add(path);
+                        batch.setAlbum(albumName, album);
+                    }
+                    break;
+                }
+                case REMOVE_PHOTO: {
+                    List<String> album = batch.album(albumName);
+                    if (album != null && album.remove(path)) {
+                        batch.setAlbum(albumName, album);
+                        PhotoRecord p = batch.photo(path);
+                        if (p != null) {
+                            p.albums--;
+                            batch.photoChanged(path);
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    // Caption and tag edits only touch the photo's own record
+                    List<String> album = batch.album(albumName);
+                    if (album == null || !album.contains(path)) {
+                        break;
+                    }
+                    PhotoRecord p = batch.photo(path);
+                    if (p == null) {
+                        break;
+                    }
+                    if (change.getType() == Change.Type.SET_CAPTION) {
+                        p.caption = change.getText();
+                    } else if (change.getType() == Change.Type.ADD_TAG) {
+                        p.tags.add(new Tag(change.getText(), change.getValue()));
+                    } else if (change.getType() == Change.Type.REMOVE_TAG) {
+                        p.tags.remove(new Tag(change.getText(), change.getValue()));
+                    }
+                    batch.photoChanged(path);
+                    break;
+                }
+            }
+        }
+        
+        batch.write();
+        if (userChanged) {
+            pages.put(userKey(username), encodeUser(record));
+        }
+    }
+    
+    @Override
+    public void compact(String username) {
+        // Nothing to do, changes never pile up in a journal here
+    }
+    
+    @Override
+    public void delete(String username) throws IOException {
+        update(() -> deleteUser(username));
+    }
+    
+    private void deleteUser(String username) throws IOException {
+        UserRecord record = readUserRecord(username);
+        if (record == null) {
+            return;
+        }
+        Set<String> paths = new HashSet<>();
+        for (String albumName : record.albums) {
+            List<String> album = readAlbum(username, albumName);
+            if (album != null) {
+                paths.addAll(album);
+            }
+            pages.remove(albumKey(username, albumName));
+        }
+        for (String path : paths) {
+            pages.remove(photoKey(username, path));
+        }
+        pages.remove(userKey(username));
+        List<String> usernames = listUsernames();
+        usernames.remove(username);
+        pages.put(USERS_KEY, encodeStrings(usernames));
+    }
+    
+    /**
+     * Runs one change to the records. If it fails partway, the pages it already changed are put back,
+     * so the rest of the batch (other users' writes) still commits cleanly without it.
+     */
+    private void update(Update update) throws IOException {
+        pages.savepoint();
+        try {
+            update.run();
+        } catch (IOException | RuntimeException e) {
+            pages.rollback();
+            throw e;
+        }
+        unsynced = true;
+    }
+    
+    /**
+     * Writes the batch into the file through the redo log, forcing it with the ALWAYS policy.
+     */
+    @Override
+    public void commit() throws IOException {
+        if (policy == DurableWriter.FsyncPolicy.ALWAYS) {
+            pages.commit(true);
+            unsynced = false;
+            lastSyncMillis = System.currentTimeMillis();
+            return;
+        }
+        pages.commit(false);
+        if (policy == DurableWriter.FsyncPolicy.INTERVAL
+            && System.currentTimeMillis() - lastSyncMillis >= intervalMillis) {
+            sync();
+        }
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        if (unsynced && policy != DurableWriter.FsyncPolicy.NEVER) {
+            pages.force();
+            unsynced = false;
+            lastSyncMillis = System.currentTimeMillis();
+        }
+    }
+    
+    @Override
+    public long syncDelayMillis() {
+        if (!unsynced || policy != DurableWriter.FsyncPolicy.INTERVAL) {
+            return -1;
+        }
+        return Math.max(0, intervalMillis - (System.currentTimeMillis() - lastSyncMillis));
+    }
+    
+    @Override
+    public List<String> listUsernames() throws IOException {
+        byte[] data = pages.get(USERS_KEY);
+        return data == null ? new ArrayList<>() : readStrings(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+    
+    @Override
+    public boolean needsUpgrade(String username) {
+        return false;
+    }
+    
+    @Override
+    public boolean needsCompaction(String username) {
+        return false;
+    }
+    
+    /**
+     * Commits whatever is left of the current batch before closing the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+            sync();
+        } finally {
+            pages.close();
+        }
+    }
+    
+    private void addUsername(String username) throws IOException {
+        List<String> usernames = listUsernames();
+        if (!usernames.contains(username)) {
+            usernames.add(username);
+            pages.put(USERS_KEY, encodeStrings(usernames));
+        }
+    }
+    
+    private static byte[] encodeStrings(List<String> strings) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeStrings(out, strings);
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            UserCodec.writeString(out, s);
+        }
+    }
+    
+    private List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+    
+    private String readString(DataInputStream in) throws IOException {
+        return format < FORMAT ? in.readUTF() : UserCodec.readString(in);
+    }
+    
+    private void putIfChanged(String key, byte[] data) throws IOException {
+        if (!Arrays.equals(pages.get(key), data)) {
+            pages.put(key, data);
+        }
+    }
+    
+    private static String userKey(String username) {
+        return "u/" + username;
+    }
+    
+    private static String albumKey(String username, String albumName) {
+        return "a/" + username + "/" + albumName;
+    }
+    
+    private static String photoKey(String username, String path) {
+        return "p/" + username + "/" + path;
+    }
+    
+    private UserRecord readUserRecord(String username) throws IOException {
+        byte[] data = pages.get(userKey(username));
+        if (data == null) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        UserRecord record = new UserRecord();
+        record.tagTypes = readStrings(in);
+        record.albums = readStrings(in);
+        return record;
+    }
+    
+    private static byte[] encodeUser(UserRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeStrings(out, record.tagTypes);
+        writeStrings(out, record.albums);
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    private List<String> readAlbum(String username, String albumName) throws IOException {
+        byte[] data = pages.get(albumKey(username, albumName));
+        return data == null ? null : readStrings(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+    
+    private PhotoRecord readPhotoRecord(String username, String path) throws IOException {
+        byte[] data = pages.get(photoKey(username, path));
+        if (data == null) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        PhotoRecord record = new PhotoRecord(readString(in), in.readLong());
+        int tagCount = in.readInt();
+        for (int i = 0; i < tagCount; i++) {
+            record.tags.add(new Tag(readString(in), readString(in)));
+        }
+        record.albums = in.readInt();
+        return record;
+    }
+    
+    private static byte[] encodePhoto(PhotoRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        UserCodec.writeString(out, record.caption);
+        out.writeLong(record.timeMillis);
+        out.writeInt(record.tags.size());
+        for (Tag tag : record.tags) {
+            UserCodec.writeString(out, tag.getName());
+            UserCodec.writeString(out, tag.getValue());
+        }
+        out.writeInt(record.albums);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,377 @@
+package photos.model;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes user data to disk on a single background thread so the UI never waits on the disk.
+ * Save requests that arrive within the debounce window are merged, so a burst of edits
+ * ends up as one write per user. Everything handed to this class is already a copy
+ * (journal records or serialized bytes), so the writer never touches the live model
+ * except during compaction, which only works on what's on disk.
+ * @author Klever and Shrij
+ */
+public class PersistenceService {
+    
+    /**
+     * Does the actual disk work. DataManager decides where files live and how they're laid out.
+     * Writes may be held back until commit(), which the writer calls once per batch so
+     * several users' writes share one trip to the disk.
+     */
+    interface Target {
+        void writeAdmin(byte[] data) throws Exception;
+        void writeSnapshot(String username, byte[] data) throws Exception;
+        void appendJournal(String username, List<Change> changes) throws Exception;
+        void compact(String username) throws Exception;
+        void delete(String username) throws Exception;
+        void commit() throws Exception;
+        void sync() throws Exception;
+        long syncDelayMillis(); // -1 if nothing committed is waiting for a sync
+    }
+    
+    /**
+     * Everything waiting to be written for one user.
+     * Runs in this order: delete, snapshot, journal appends, compaction.
+     */
+    private static class Pending {
+        boolean delete;
+        byte[] snapshot;
+        List<Change> changes = new ArrayList<>();
+        boolean compact;
+        
+        int size() {
+            return (delete ? 1 : 0) + (snapshot != null ? 1 : 0) + changes.size() + (compact ? 1 : 0);
+        }
+    }
+    
+    private final Target target;
+    private final long debounceMillis;
+    private final ScheduledExecutorService writer;
+    
+    // Guarded by this
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private byte[] pendingAdmin;
+    private boolean drainScheduled;
+    private boolean syncScheduled;  // Only touched on the writer thread
+    private final Set<String> writing = new HashSet<>(); // Users in the batch the writer is working on
+    private final Set<String> failedUsers = new HashSet<>();
+    private boolean adminFailed;
+    private boolean adminUncommitted; // Only touched on the writer thread
+    
+    // Metrics
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+    
+    /**
+     * Creates the service and starts its writer thread.
+     * @param target Where the writes go
+     * @param debounceMillis How long to wait after the first request before writing, so later ones can join it
+     */
+    PersistenceService(Target target, long debounceMillis) {
+        this.target = target;
+        this.debounceMillis = debounceMillis;
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "photos-writer");
+            thread.setDaemon(true); // flush() is what guarantees the data is out, not the thread
+            return thread;
+        });
+    }
+    
+    /**
+     * Queues journal records for a user.
+     */
+    synchronized void enqueueChanges(String username, List<Change> changes) {
+        Pending p = pendingFor(username);
+        p.changes.addAll(changes);
+        queueDepth.addAndGet(changes.size());
+        scheduleDrain();
+    }
+    
+    /**
+     * Queues a full snapshot of a user. It already contains every earlier change,
+     * so anything still waiting for this user is dropped.
+     */
+    synchronized void enqueueSnapshot(String username, byte[] data) {
+        Pending p = pendingFor(username);
+        queueDepth.addAndGet(-p.size());
+        p.snapshot = data;
+        p.changes.clear();
+        p.compact = false;
+        queueDepth.addAndGet(p.size());
+        scheduleDrain();
+    }
+    
+    /**
+     * Queues folding a user's journal into their snapshot file.
+     */
+    synchronized void enqueueCompaction(String username) {
+        Pending p = pendingFor(username);
+        if (!p.compact) {
+            p.compact = true;
+            queueDepth.incrementAndGet();
+        }
+        scheduleDrain();
+    }
+    
+    /**
+     * Queues deleting a user's files. Drops anything else waiting for them.
+     */
+    synchronized void enqueueDelete(String username) {
+        Pending p = pendingFor(username);
+        queueDepth.addAndGet(-p.size());
+        p.delete = true;
+        p.snapshot = null;
+        p.changes.clear();
+        p.compact = false;
+        queueDepth.incrementAndGet();
+        scheduleDrain();
+    }
+    
+    /**
+     * Queues the admin file. Only the latest one gets written.
+     */
+    synchronized void enqueueAdmin(byte[] data) {
+        if (pendingAdmin == null) {
+            queueDepth.incrementAndGet();
+        }
+        pendingAdmin = data;
+        scheduleDrain();
+    }
+    
+    /**
+     * Blocks until everything queued so far is on disk.
+     * Also syncs anything the fsync policy was holding back (unless it's set to never).
+     */
+    public void flush() {
+        try {
+            writer.submit(() -> {
+                drain();
+                syncTarget();
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error flushing data: " + e.getCause().getMessage());
+        }
+    }
+    
+    /**
+     * Checks whether anything for a user is still waiting to be written.
+     * @param username The username
+     * @return true if their files on disk might be behind
+     */
+    synchronized boolean isPending(String username) {
+        return pending.containsKey(username) || writing.contains(username);
+    }
+    
+    /**
+     * Checks whether a user's last write failed and hasn't been retried yet.
+     * Their only up-to-date copy is the one in memory until then.
+     * @param username The username
+     * @return true if they're waiting on takeFailedUsers()
+     */
+    synchronized boolean hasFailed(String username) {
+        return failedUsers.contains(username);
+    }
+    
+    /**
+     * Gets the users whose journal writes failed since the last call.
+     * Their changes only exist in memory now, so DataManager has to snapshot them.
+     * @return The usernames
+     */
+    synchronized Set<String> takeFailedUsers() {
+        Set<String> failed = new HashSet<>(failedUsers);
+        failedUsers.clear();
+        return failed;
+    }
+    
+    /**
+     * Checks whether an admin write failed since the last call.
+     * The admin on disk is behind then, so DataManager has to write it again.
+     * @return true if it failed
+     */
+    synchronized boolean takeAdminFailed() {
+        boolean failed = adminFailed;
+        adminFailed = false;
+        return failed;
+    }
+    
+    /**
+     * Gets how many writes are waiting (journal records, snapshots, compactions and deletes).
+     * @return The queue depth
+     */
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+    
+    /**
+     * Gets how many writes have finished.
+     * @return The write count
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+    
+    /**
+     * Gets the average time one user's batch of writes took.
+     * @return The average write latency in milliseconds
+     */
+    public double getAverageWriteMillis() {
+        long count = writeCount.get();
+        return count == 0 ? 0 : totalWriteNanos.get() / 1_000_000.0 / count;
+    }
+    
+    /**
+     * Gets the slowest batch of writes so far.
+     * @return The max write latency in milliseconds
+     */
+    public double getMaxWriteMillis() {
+        return maxWriteNanos.get() / 1_000_000.0;
+    }
+    
+    private Pending pendingFor(String username) {
+        return pending.computeIfAbsent(username, name -> new Pending());
+    }
+    
+    private void scheduleDrain() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            writer.schedule(this::drain, debounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Writes out everything queued. Only ever runs on the writer thread.
+     */
+    private void drain() {
+        Map<String, Pending> batch;
+        byte[] admin;
+        synchronized (this) {
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+            writing.addAll(batch.keySet());
+            admin = pendingAdmin;
+            pendingAdmin = null;
+            drainScheduled = false;
+        }
+        
+        if (admin != null) {
+            long start = System.nanoTime();
+            try {
+                target.writeAdmin(admin);
+                adminUncommitted = true;
+            } catch (Exception e) {
+                System.err.println("Error saving admin: " + e.getMessage());
+                synchronized (this) {
+                    adminFailed = true;
+                }
+            }
+            recordWrite(start, 1);
+        }
+        
+        List<String> uncommitted = new ArrayList<>(); // Users with writes waiting on the next commit
+        for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+            String username = entry.getKey();
+            Pending p = entry.getValue();
+            long start = System.nanoTime();
+            uncommitted.add(username);
+            try {
+                if (p.delete) {
+                    target.delete(username);
+                }
+                if (p.snapshot != null) {
+                    target.writeSnapshot(username, p.snapshot);
+                }
+                // The snapshot has to be in place before a new journal starts on top of it,
+                // and compaction reads the files back, so both need everything committed first
+                if (!p.changes.isEmpty() && (p.snapshot == null || commit(uncommitted))) {
+                    uncommitted.add(username);
+                    target.appendJournal(username, p.changes);
+                }
+                if (p.compact && commit(uncommitted)) {
+                    uncommitted.add(username);
+                    target.compact(username);
+                }
+            } catch (Exception e) {
+                System.err.println("Error saving user " + username + ": " + e.getMessage());
+                synchronized (this) {
+                    failedUsers.add(username);
+                }
+            }
+            recordWrite(start, p.size());
+        }
+        
+        // One commit for the whole batch
+        commit(uncommitted);
+        synchronized (this) {
+            writing.removeAll(batch.keySet());
+        }
+        scheduleSync();
+    }
+    
+    /**
+     * Commits the target's pending writes. If that fails, everyone who had writes
+     * in it (and the admin, if it was waiting on this commit) is marked failed
+     * so DataManager writes them out again.
+     * @param users The users with writes in this commit, cleared afterwards
+     * @return true if the commit worked
+     */
+    private boolean commit(List<String> users) {
+        try {
+            target.commit();
+            return true;
+        } catch (Exception e) {
+            System.err.println("Error saving data: " + e.getMessage());
+            synchronized (this) {
+                failedUsers.addAll(users);
+                adminFailed |= adminUncommitted;
+            }
+            return false;
+        } finally {
+            users.clear();
+            adminUncommitted = false;
+        }
+    }
+    
+    /**
+     * Makes sure committed data that the fsync policy held back gets synced when it's due.
+     * Only runs on the writer thread.
+     */
+    private void scheduleSync() {
+        long delay = target.syncDelayMillis();
+        if (delay >= 0 && !syncScheduled) {
+            syncScheduled = true;
+            writer.schedule(() -> {
+                syncScheduled = false;
+                syncTarget();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void syncTarget() {
+        try {
+            target.sync();
+        } catch (Exception e) {
+            System.err.println("Error syncing data: " + e.getMessage());
+        }
+    }
+    
+    private void recordWrite(long startNanos, int queued) {
+        long elapsed = System.nanoTime() - startNanos;
+        queueDepth.addAndGet(-queued);
+        writeCount.incrementAndGet();
+        totalWriteNanos.addAndGet(elapsed);
+        maxWriteNanos.accumulateAndGet(elapsed, Math::max);
+    }
+}
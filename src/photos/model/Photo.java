@@ -1,28 +1,56 @@
 package photos.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * Represents a photo in the photo album application.
+ * Tags are kept as ids from the owning user's TagDictionary, in a sorted int array,
+ * and the path as a folder shared through the user's DirectoryTable plus the file name.
  * @author Klever and Shrij
  */
 public class Photo implements Serializable {
     
     private static final long serialVersionUID = 1L;
     
-    private String filePath;     // Path to the photo file
+    // Old save files have the date as a Calendar and the tags as a Set<Tag>, so that's still how they're serialized
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("filePath", String.class),
+        new ObjectStreamField("caption", String.class),
+        new ObjectStreamField("dateTime", Calendar.class),
+        new ObjectStreamField("tags", Set.class)
+    };
+    
+    private static final int[] NO_TAGS = new int[0];
+    private static final Album[] NO_ALBUMS = new Album[0];
+    
+    private transient String directory; // Folder the photo file is in, with the trailing separator (the owner's shared copy)
+    private transient String fileName;  // Name of the photo file in that folder
     private String caption;      // Caption for the photo
-    private Calendar dateTime;   // Date and time the photo was taken (or last modified)
-    private Set<Tag> tags;       // Set of tags associated with photo
+    private transient long timeMillis; // When the photo was taken (or last modified), in epoch ms
+    private transient int[] tagIds = NO_TAGS; // Ids of this photo's tags, sorted, in tagIds[0..tagCount)
+    private transient int tagCount;
+    private transient TagDictionary dictionary; // Where the ids come from: the owner's, or our own until we have one
+    private transient User owner; // User whose albums hold this photo, so edits mark them as modified
+    private transient Album[] albums = NO_ALBUMS; // Albums holding this photo, so their tag counts follow its tags
+    private transient int row = -1; // This photo's row in the owner's PhotoTable, or -1 if it isn't in one
     
     /**
      * Constructs a new Photo with the specified file.
@@ -30,26 +58,90 @@ public class Photo implements Serializable {
      * @throws Exception If there's an error accessing the file
      */
     public Photo(File file) throws Exception {
-        this.filePath = file.getAbsolutePath();
+        setFilePath(file.getAbsolutePath());
         this.caption = file.getName();
-        this.tags = new HashSet<>();
         
         // Gets the last modified time of the file as a proxy for when the photo was taken
         BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
         FileTime fileTime = attrs.lastModifiedTime();
         
-        // Convert to Calendar
-        dateTime = Calendar.getInstance();
-        dateTime.setTimeInMillis(fileTime.toMillis());
-        dateTime.set(Calendar.MILLISECOND, 0); // Set milliseconds to zero for correct equality checks
+        // Round down to the second for correct equality checks
+        timeMillis = Math.floorDiv(fileTime.toMillis(), 1000) * 1000;
     }
     
     /**
-     * Gets the file path
-     * @return
+     * Rebuilds a photo from saved data without touching the file.
+     * Used when replaying the change journal, where the file might not even be there anymore.
+     * @param filePath The path to the photo file
+     * @param caption The caption
+     * @param timeMillis The photo date in epoch milliseconds
+     */
+    Photo(String filePath, String caption, long timeMillis) {
+        this(filePath, caption, timeMillis, null);
+    }
+    
+    /**
+     * Rebuilds a photo from saved data, numbering its tags in a user's dictionary from the start
+     * so they don't have to be renumbered when it's added to their albums.
+     * @param filePath The path to the photo file
+     * @param caption The caption
+     * @param timeMillis The photo date in epoch milliseconds
+     * @param dictionary The tag dictionary of the user it's for, or null to use its own
+     */
+    Photo(String filePath, String caption, long timeMillis, TagDictionary dictionary) {
+        setFilePath(filePath);
+        this.caption = caption;
+        this.dictionary = dictionary;
+        this.timeMillis = timeMillis;
+    }
+    
+    /**
+     * Rebuilds a photo from saved data that already has the path split into folder and file name.
+     * @param directory The folder, with the trailing separator
+     * @param fileName The file name
+     * @param caption The caption
+     * @param timeMillis The photo date in epoch milliseconds
+     * @param dictionary The tag dictionary of the user it's for, or null to use its own
+     */
+    Photo(String directory, String fileName, String caption, long timeMillis, TagDictionary dictionary) {
+        this.directory = directory;
+        this.fileName = fileName;
+        this.caption = caption;
+        this.dictionary = dictionary;
+        this.timeMillis = timeMillis;
+    }
+    
+    /**
+     * Gets the file path.
+     * It's put back together from the folder and file name on every call, so hold on to it instead of calling this in a loop.
+     * @return The full path
      */
     public String getFilePath() {
-        return filePath;
+        return directory.concat(fileName);
+    }
+    
+    /**
+     * Gets the folder the photo file is in.
+     * @return The folder, with the trailing separator ("" for a bare file name)
+     */
+    String getDirectory() {
+        return directory;
+    }
+    
+    /**
+     * Gets the name of the photo file, without the folder.
+     * @return The file name
+     */
+    String getFileName() {
+        return fileName;
+    }
+    
+    /**
+     * Splits a path into the folder and file name fields.
+     */
+    private void setFilePath(String filePath) {
+        directory = DirectoryTable.directoryOf(filePath);
+        fileName = filePath.substring(directory.length());
     }
     
     /**
@@ -65,23 +157,49 @@ public class Photo implements Serializable {
      * @param caption The new caption
      */
     public void setCaption(String caption) {
+        String oldCaption = this.caption;
         this.caption = caption;
+        if (row >= 0) {
+            owner.getPhotoTable().captionChanged(row, oldCaption, caption);
+        }
+        changed();
     }
     
     /**
-     * Gets the date and time photo was taken (or last modified).
+     * Gets the date and time photo was taken (or last modified), for showing it.
+     * A new Calendar is made on every call, so changing it doesn't change the photo.
+     * Use getTimeMillis() for comparing dates.
      * @return The date and time
      */
     public Calendar getDateTime() {
+        Calendar dateTime = Calendar.getInstance();
+        dateTime.setTimeInMillis(timeMillis);
         return dateTime;
     }
     
+    /**
+     * Gets when the photo was taken (or last modified).
+     * @return The time in epoch milliseconds
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+    
     /**
      * Gets all tags associated with photo
-     * @return An unmodifiable view of the tags
+     * @return A read-only view of the tags that follows later changes, so copy it first if you need to
+     *         add or remove tags while going through it. The Tag objects are shared with every other photo that has them
      */
     public Set<Tag> getTags() {
-        return new HashSet<>(tags);
+        return new TagView();
+    }
+    
+    /**
+     * Gets how many tags the photo has.
+     * @return The number of tags
+     */
+    public int getTagCount() {
+        return tagCount;
     }
     
     /**
@@ -90,16 +208,64 @@ public class Photo implements Serializable {
      * @return true if the tag was added, false if it was already present
      */
     public boolean addTag(Tag tag) {
-        return tags.add(tag);
+        if (dictionary == null) {
+            dictionary = new TagDictionary();
+        }
+        int id = dictionary.intern(tag.getName(), tag.getValue());
+        int index = Arrays.binarySearch(tagIds, 0, tagCount, id);
+        if (index >= 0) {
+            return false;
+        }
+        
+        index = -index - 1;
+        if (tagCount == tagIds.length) {
+            tagIds = Arrays.copyOf(tagIds, Math.max(4, tagCount * 2));
+        }
+        System.arraycopy(tagIds, index, tagIds, index + 1, tagCount - index);
+        tagIds[index] = id;
+        tagCount++;
+        Tag added = dictionary.get(id);
+        for (Album album : albums) {
+            album.tagAdded(added);
+        }
+        if (row >= 0) {
+            owner.getPhotoTable().tagAdded(id, row);
+        }
+        changed();
+        return true;
     }
     
     /**
      * Removes a tag
      * @param tag
-     * @return 
+     * @return true if the tag was removed, false if the photo didn't have it
      */
     public boolean removeTag(Tag tag) {
-        return tags.remove(tag);
+        int index = indexOf(tag.getName(), tag.getValue());
+        if (index < 0) {
+            return false;
+        }
+        int id = tagIds[index];
+        Tag removed = dictionary.get(id);
+        System.arraycopy(tagIds, index + 1, tagIds, index, tagCount - index - 1);
+        tagCount--;
+        for (Album album : albums) {
+            album.tagRemoved(removed);
+        }
+        if (row >= 0) {
+            owner.getPhotoTable().tagRemoved(id, row);
+        }
+        changed();
+        return true;
+    }
+    
+    /**
+     * Gets the id of one of this photo's tags.
+     * @param index Which tag, from 0 to getTagCount() - 1
+     * @return The tag's id in the dictionary the photo's using
+     */
+    int getTagId(int index) {
+        return tagIds[index];
     }
     
     /**
@@ -109,7 +275,8 @@ public class Photo implements Serializable {
      */
     public List<Tag> getTagsByName(String name) {
         List<Tag> result = new ArrayList<>();
-        for (Tag tag : tags) {
+        for (int i = 0; i < tagCount; i++) {
+            Tag tag = dictionary.get(tagIds[i]);
             if (tag.getName().equals(name)) {
                 result.add(tag);
             }
@@ -119,17 +286,195 @@ public class Photo implements Serializable {
     
     /**
      * Checks if this photo has a tag with the specified name and value.
+     * Doesn't create anything, so it's fine to call for every photo in a search.
      * @param name
      * @param value
      * @return true if the photo has such a tag, false otherwise
      */
     public boolean hasTag(String name, String value) {
-        return tags.contains(new Tag(name, value));
+        return indexOf(name, value) >= 0;
+    }
+    
+    /**
+     * Finds where a tag's id is in tagIds.
+     * A photo only has a few tags, so this goes through their hashes (ints in one array) and only
+     * compares strings on a match, instead of looking the tag up in the dictionary first.
+     * @return The index, or a negative number if the photo doesn't have the tag
+     */
+    private int indexOf(String name, String value) {
+        if (dictionary == null) {
+            return -1;
+        }
+        int hash = TagDictionary.hashOf(name, value);
+        for (int i = 0; i < tagCount; i++) {
+            if (dictionary.hashOf(tagIds[i]) == hash) {
+                Tag tag = dictionary.get(tagIds[i]);
+                if (tag.getName().equals(name) && tag.getValue().equals(value)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Links this photo to the user that owns it, moving its tags over to the user's dictionary
+     * and switching its folder to the user's shared copy.
+     * @param owner The user
+     */
+    void setOwner(User owner) {
+        this.owner = owner;
+        directory = owner.getDirectoryTable().intern(directory);
+        TagDictionary target = owner.getTagDictionary();
+        if (dictionary == target) {
+            return;
+        }
+        if (dictionary != null) {
+            for (int i = 0; i < tagCount; i++) {
+                Tag tag = dictionary.get(tagIds[i]);
+                tagIds[i] = target.intern(tag.getName(), tag.getValue());
+            }
+            Arrays.sort(tagIds, 0, tagCount);
+        }
+        dictionary = target;
+    }
+    
+    /**
+     * Gets the albums this photo is in. A user keeps one Photo per file, so this is every album of theirs with the file.
+     * @return A read-only list of the albums (it doesn't change if the photo is added or removed later)
+     */
+    public List<Album> getAlbums() {
+        return Collections.unmodifiableList(Arrays.asList(albums));
+    }
+    
+    /**
+     * Remembers that an album now holds this photo.
+     * @param album The album
+     */
+    void addAlbum(Album album) {
+        albums = Arrays.copyOf(albums, albums.length + 1);
+        albums[albums.length - 1] = album;
+    }
+    
+    /**
+     * Forgets an album that no longer holds this photo.
+     * Albums with the same name count as equal, so this goes by identity.
+     * @param album The album
+     */
+    void removeAlbum(Album album) {
+        for (int i = 0; i < albums.length; i++) {
+            if (albums[i] == album) {
+                Album[] fewer = new Album[albums.length - 1];
+                System.arraycopy(albums, 0, fewer, 0, i);
+                System.arraycopy(albums, i + 1, fewer, i, fewer.length - i);
+                albums = fewer;
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Gets this photo's row in its owner's PhotoTable.
+     * @return The row, or -1 if it isn't in one
+     */
+    int getRow() {
+        return row;
+    }
+    
+    /**
+     * Sets this photo's row. Only PhotoTable calls this.
+     * @param row The row, or -1 when it's taken out
+     */
+    void setRow(int row) {
+        this.row = row;
+    }
+    
+    /**
+     * Lets the owning user know something about this photo changed.
+     */
+    void changed() {
+        if (owner != null) {
+            owner.markChanged();
+        }
+    }
+    
+    /**
+     * Read-only Set over tagIds, so getTags() doesn't have to copy anything.
+     */
+    private class TagView extends AbstractSet<Tag> {
+        
+        @Override
+        public int size() {
+            return tagCount;
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Tag)) {
+                return false;
+            }
+            Tag tag = (Tag) o;
+            return hasTag(tag.getName(), tag.getValue());
+        }
+        
+        @Override
+        public Iterator<Tag> iterator() {
+            return new Iterator<Tag>() {
+                private int next;
+                
+                @Override
+                public boolean hasNext() {
+                    return next < tagCount;
+                }
+                
+                @Override
+                public Tag next() {
+                    if (next >= tagCount) {
+                        throw new NoSuchElementException();
+                    }
+                    return dictionary.get(tagIds[next++]);
+                }
+            };
+        }
+    }
+    
+    /**
+     * Writes the photo in the same form as before tag ids, so old and new versions can read it.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("filePath", getFilePath());
+        fields.put("caption", caption);
+        fields.put("dateTime", getDateTime());
+        fields.put("tags", new HashSet<>(getTags()));
+        out.writeFields();
+    }
+    
+    /**
+     * Reads a photo written by writeObject() (or by a version from before tag ids).
+     * The tags get numbered in a dictionary of the photo's own until setOwner() moves them to the user's.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        setFilePath((String) fields.get("filePath", null));
+        caption = (String) fields.get("caption", null);
+        Calendar dateTime = (Calendar) fields.get("dateTime", null);
+        timeMillis = dateTime != null ? dateTime.getTimeInMillis() : 0;
+        tagIds = NO_TAGS;
+        albums = NO_ALBUMS;
+        row = -1;
+        Set<?> tags = (Set<?>) fields.get("tags", null);
+        if (tags != null) {
+            for (Object tag : tags) {
+                addTag((Tag) tag);
+            }
+        }
     }
     
     /**
      * Checks if the photo is equal to another
      * Photos should be considered equal if they have the same file path
+     * (a path always splits the same way, so comparing the two parts is the same thing)
      */
     @Override
     public boolean equals(Object obj) {
@@ -137,7 +482,7 @@ public class Photo implements Serializable {
         if (obj == null || getClass() != obj.getClass()) return false;
         
         Photo other = (Photo) obj;
-        return filePath.equals(other.filePath);
+        return fileName.equals(other.fileName) && directory.equals(other.directory);
     }
     
     /**
@@ -145,6 +490,6 @@ public class Photo implements Serializable {
      */
     @Override
     public int hashCode() {
-        return filePath.hashCode();
+        return 31 * directory.hashCode() + fileName.hashCode();
     }
 }
\ No newline at end of file
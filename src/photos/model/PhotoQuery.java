@@ -0,0 +1,602 @@
+package photos.model;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A search typed in as text, like
+ * <pre>person=alice AND (location=paris OR location=rome) AND date&gt;=2023-01-01 AND NOT tag:blurry</pre>
+ *
+ * What it understands:
+ * - name=value (or name:value) for a tag, like person=alice. Put quotes around values with spaces: person="mary jane"
+ * - tag:value for a tag with that value whatever its name is
+ * - date&gt;=, date&gt;, date&lt;=, date&lt; and date= with a yyyy-mm-dd date (whole days, in the local time zone)
+ * - caption:word for captions with that word in them (not case sensitive), caption:word* for a word starting
+ *   with it, and caption:"two words" for words right next to each other (see CaptionIndex)
+ * - AND, OR and NOT (in any case), and parentheses. AND comes before OR, and two conditions next to
+ *   each other with nothing in between count as AND.
+ *
+ * parse() turns the text into a tree of conditions, flattening nested ANDs and ORs and putting the
+ * dates in an AND together into one range. run() works it out against one user's PhotoTable. Each AND
+ * goes through its conditions from the one expected to match the fewest photos (from the tag, time and
+ * caption index counts) to the most, and stops as soon as nothing's left. Once only a few photos are left
+ * it checks those photos directly instead of building the full set for the next condition.
+ * Between conditions it stops with a CancellationException if its thread has been interrupted.
+ * @author Klever and Shrij
+ */
+public final class PhotoQuery {
+    
+    private static final int CHECK_DIRECTLY = 8; // Check photos one by one once a tag would match this many times more
+    
+    private final String text;
+    private final Condition root;
+    
+    private PhotoQuery(String text, Condition root) {
+        this.text = text;
+        this.root = root;
+    }
+    
+    /**
+     * Reads a query.
+     * @param text The query text
+     * @return The query, ready to run
+     * @throws IllegalArgumentException If the text isn't a valid query, with a message saying what's wrong
+     */
+    public static PhotoQuery parse(String text) {
+        return new PhotoQuery(text, new Parser(text).parse());
+    }
+    
+    /**
+     * Runs the query against all of a user's photos.
+     * @param user The user
+     * @return The matching photos, each one once
+     * @throws java.util.concurrent.CancellationException If the thread running it is interrupted
+     */
+    public List<Photo> run(User user) {
+        PhotoTable table = user.getPhotoTable();
+        return table.photosIn(root.rows(table));
+    }
+    
+    /**
+     * Gets the query the way it was typed.
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+    
+    /**
+     * One part of a query.
+     */
+    private abstract static class Condition {
+        
+        /**
+         * Guesses how many photos match, as cheaply as possible.
+         */
+        abstract int estimate(PhotoTable table);
+        
+        /**
+         * Gets the rows of every photo that matches.
+         */
+        abstract RowBitmap rows(PhotoTable table);
+        
+        /**
+         * Checks one photo.
+         */
+        abstract boolean matches(Photo photo);
+        
+        /**
+         * Whether it's quicker to check the photos found so far one by one than to get rows() and combine them.
+         * Getting rows() usually takes about as long as the number of photos it finds, so that's the default.
+         * @param found How many photos are left so far
+         * @param estimate What estimate() said
+         */
+        boolean checkDirectly(int found, int estimate) {
+            return found < estimate;
+        }
+    }
+    
+    /**
+     * A tag with a name and value.
+     */
+    private static final class TagCondition extends Condition {
+        private final Tag tag;
+        
+        TagCondition(String name, String value) {
+            tag = new Tag(name, value);
+        }
+        
+        @Override
+        int estimate(PhotoTable table) {
+            return table.rowsWithTag(tag).cardinality();
+        }
+        
+        @Override
+        RowBitmap rows(PhotoTable table) {
+            return table.rowsWithTag(tag);
+        }
+        
+        @Override
+        boolean matches(Photo photo) {
+            return photo.hasTag(tag.getName(), tag.getValue());
+        }
+        
+        @Override
+        boolean checkDirectly(int found, int estimate) {
+            return (long) found * CHECK_DIRECTLY < estimate; // The rows are already sitting in the index
+        }
+    }
+    
+    /**
+     * A tag with some value, whatever its name.
+     */
+    private static final class TagValueCondition extends Condition {
+        private final String value;
+        
+        TagValueCondition(String value) {
+            this.value = value;
+        }
+        
+        @Override
+        int estimate(PhotoTable table) {
+            return table.countWithTagValue(value);
+        }
+        
+        @Override
+        RowBitmap rows(PhotoTable table) {
+            return table.rowsWithTagValue(value);
+        }
+        
+        @Override
+        boolean matches(Photo photo) {
+            for (Tag tag : photo.getTags()) {
+                if (tag.getValue().equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        boolean checkDirectly(int found, int estimate) {
+            return (long) found * CHECK_DIRECTLY < estimate; // Just a few index rows put together
+        }
+    }
+    
+    /**
+     * A time range, from the start (included) to the end (not included).
+     */
+    private static final class DateCondition extends Condition {
+        private final long fromMillis;
+        private final long toMillis;
+        
+        DateCondition(long fromMillis, long toMillis) {
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+        }
+        
+        @Override
+        int estimate(PhotoTable table) {
+            return table.getTimeIndex().countBetween(fromMillis, toMillis);
+        }
+        
+        @Override
+        RowBitmap rows(PhotoTable table) {
+            return table.getTimeIndex().rowsBetween(fromMillis, toMillis);
+        }
+        
+        @Override
+        boolean matches(Photo photo) {
+            return photo.getTimeMillis() >= fromMillis && photo.getTimeMillis() < toMillis;
+        }
+        
+    }
+    
+    /**
+     * Words in the caption.
+     */
+    private static final class CaptionCondition extends Condition {
+        private final CaptionIndex.Query query;
+        
+        CaptionCondition(String text) {
+            query = CaptionIndex.Query.parse(text);
+        }
+        
+        @Override
+        int estimate(PhotoTable table) {
+            return table.getCaptionIndex().estimate(query);
+        }
+        
+        @Override
+        RowBitmap rows(PhotoTable table) {
+            return table.getCaptionIndex().rows(query);
+        }
+        
+        @Override
+        boolean matches(Photo photo) {
+            return query.matches(photo.getCaption());
+        }
+    }
+    
+    /**
+     * Everything but what another condition matches.
+     */
+    private static final class NotCondition extends Condition {
+        private final Condition inner;
+        
+        NotCondition(Condition inner) {
+            this.inner = inner;
+        }
+        
+        @Override
+        int estimate(PhotoTable table) {
+            return Math.max(0, table.size() - inner.estimate(table));
+        }
+        
+        @Override
+        RowBitmap rows(PhotoTable table) {
+            return RowBitmap.andNot(table.allRows(), inner.rows(table));
+        }
+        
+        @Override
+        boolean matches(Photo photo) {
+            return !inner.matches(photo);
+        }
+    }
+    
+    /**
+     * Photos that match all of some conditions.
+     */
+    private static final class AndCondition extends Condition {
+        private final List<Condition> parts;
+        
+        AndCondition(List<Condition> parts) {
+            this.parts = parts;
+        }
+        
+        @Override
+        int estimate(PhotoTable table) {
+            int least = table.size();
+            for (Condition part : parts) {
+                if (!(part instanceof NotCondition)) {
+                    least = Math.min(least, part.estimate(table));
+                }
+            }
+            return least;
+        }
+        
+        @Override
+        RowBitmap rows(PhotoTable table) {
+            // The plan: narrowest first, and NOTs last since they can only take away from what the others found
+            int[] estimates = new int[parts.size()];
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < parts.size(); i++) {
+                Condition part = parts.get(i);
+                estimates[i] = part instanceof NotCondition ? ((NotCondition) part).inner.estimate(table) : part.estimate(table);
+                order.add(i);
+            }
+            order.sort(Comparator.comparing((Integer i) -> parts.get(i) instanceof NotCondition)
+                .thenComparingInt(i -> estimates[i]));
+            
+            RowBitmap rows = null;
+            for (int i : order) {
+                PhotoTable.checkCancelled();
+                Condition part = parts.get(i);
+                boolean exclude = part instanceof NotCondition;
+                Condition check = exclude ? ((NotCondition) part).inner : part;
+                if (rows == null && !exclude) {
+                    rows = part.rows(table);
+                    continue;
+                }
+                if (rows == null) {
+                    rows = table.allRows(); // Nothing but NOTs
+                }
+                if (rows.isEmpty()) {
+                    break;
+                }
+                if (check.checkDirectly(rows.cardinality(), estimates[i])) {
+                    rows = filter(table, rows, check, !exclude);
+                } else if (exclude) {
+                    rows = RowBitmap.andNot(rows, check.rows(table));
+                } else {
+                    rows = RowBitmap.and(rows, check.rows(table));
+                }
+            }
+            return rows;
+        }
+        
+        @Override
+        boolean matches(Photo photo) {
+            for (Condition part : parts) {
+                if (!part.matches(photo)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Keeps the rows whose photo does (or doesn't) match a condition, checking each photo.
+         */
+        private static RowBitmap filter(PhotoTable table, RowBitmap rows, Condition condition, boolean keepMatches) {
+            RowBitmap kept = new RowBitmap();
+            rows.forEach(row -> {
+                if (condition.matches(table.get(row)) == keepMatches) {
+                    kept.add(row);
+                }
+            });
+            return kept;
+        }
+    }
+    
+    /**
+     * Photos that match any of some conditions.
+     */
+    private static final class OrCondition extends Condition {
+        private final List<Condition> parts;
+        
+        OrCondition(List<Condition> parts) {
+            this.parts = parts;
+        }
+        
+        @Override
+        int estimate(PhotoTable table) {
+            long total = 0;
+            for (Condition part : parts) {
+                total += part.estimate(table);
+            }
+            return (int) Math.min(total, table.size());
+        }
+        
+        @Override
+        RowBitmap rows(PhotoTable table) {
+            RowBitmap rows = new RowBitmap();
+            for (Condition part : parts) {
+                PhotoTable.checkCancelled();
+                rows = RowBitmap.or(rows, part.rows(table));
+            }
+            return rows;
+        }
+        
+        @Override
+        boolean matches(Photo photo) {
+            for (Condition part : parts) {
+                if (part.matches(photo)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Reads query text into conditions, one token at a time.
+     */
+    private static final class Parser {
+        private final String text;
+        private int pos;
+        private String token;     // The current token, or null at the end
+        private boolean quoted;   // Whether the current token was in quotes (so it's never a keyword or operator)
+        private int tokenStart;
+        
+        Parser(String text) {
+            this.text = text;
+            next();
+        }
+        
+        Condition parse() {
+            if (token == null) {
+                throw new IllegalArgumentException("The query is empty");
+            }
+            Condition condition = parseOr();
+            if (token != null) {
+                throw error("Didn't expect '" + token + "'");
+            }
+            return condition;
+        }
+        
+        private Condition parseOr() {
+            List<Condition> parts = new ArrayList<>();
+            parts.add(parseAnd());
+            while (isKeyword("OR")) {
+                next();
+                parts.add(parseAnd());
+            }
+            return parts.size() == 1 ? parts.get(0) : new OrCondition(flatten(parts, OrCondition.class));
+        }
+        
+        private Condition parseAnd() {
+            List<Condition> parts = new ArrayList<>();
+            parts.add(parseNot());
+            while (token != null && !isKeyword("OR") && !isSymbol(")")) {
+                if (isKeyword("AND")) {
+                    next();
+                }
+                parts.add(parseNot());
+            }
+            parts = mergeDates(flatten(parts, AndCondition.class));
+            return parts.size() == 1 ? parts.get(0) : new AndCondition(parts);
+        }
+        
+        private Condition parseNot() {
+            if (isKeyword("NOT")) {
+                next();
+                Condition inner = parseNot();
+                return inner instanceof NotCondition ? ((NotCondition) inner).inner : new NotCondition(inner);
+            }
+            if (isSymbol("(")) {
+                next();
+                Condition inner = parseOr();
+                if (!isSymbol(")")) {
+                    throw error("Expected ')'");
+                }
+                next();
+                return inner;
+            }
+            return parseCondition();
+        }
+        
+        private Condition parseCondition() {
+            if (token == null) {
+                throw error("Expected a condition like person=alice");
+            }
+            if (!quoted && (isSymbol(")") || isKeyword("AND") || isKeyword("OR") || isOperator())) {
+                throw error("Expected a condition like person=alice but found '" + token + "'");
+            }
+            String name = token;
+            next();
+            if (!isOperator()) {
+                throw error("Expected =, :, <, <=, > or >= after '" + name + "'");
+            }
+            String operator = token;
+            next();
+            if (token == null || (!quoted && (isSymbol("(") || isSymbol(")") || isOperator()))) {
+                throw error("Expected a value after '" + name + operator + "'");
+            }
+            String value = token;
+            int valueStart = tokenStart;
+            boolean valueQuoted = quoted;
+            next();
+            
+            String field = name.toLowerCase(Locale.ROOT);
+            if (field.equals("date")) {
+                return dateCondition(operator, value, valueStart);
+            }
+            if (!operator.equals("=") && !operator.equals(":")) {
+                throw new IllegalArgumentException("Only dates can use " + operator + " at position " + (valueStart + 1));
+            }
+            if (field.equals("caption")) {
+                return new CaptionCondition(valueQuoted ? "\"" + value + "\"" : value);
+            }
+            if (field.equals("tag")) {
+                return new TagValueCondition(value);
+            }
+            return new TagCondition(name, value);
+        }
+        
+        private Condition dateCondition(String operator, String value, int valueStart) {
+            LocalDate date;
+            try {
+                date = LocalDate.parse(value);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("'" + value + "' isn't a date like 2023-01-31 at position " + (valueStart + 1));
+            }
+            long start = startOfDayMillis(date);
+            long end = startOfDayMillis(date.plusDays(1));
+            switch (operator) {
+                case ">=":
+                    return new DateCondition(start, Long.MAX_VALUE);
+                case ">":
+                    return new DateCondition(end, Long.MAX_VALUE);
+                case "<=":
+                    return new DateCondition(Long.MIN_VALUE, end);
+                case "<":
+                    return new DateCondition(Long.MIN_VALUE, start);
+                default:
+                    return new DateCondition(start, end);
+            }
+        }
+        
+        private static long startOfDayMillis(LocalDate date) {
+            return date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        
+        /**
+         * Pulls the parts of nested ANDs (or ORs) up into this one, since they mean the same thing.
+         */
+        private static List<Condition> flatten(List<Condition> parts, Class<? extends Condition> type) {
+            List<Condition> flat = new ArrayList<>();
+            for (Condition part : parts) {
+                if (type.isInstance(part)) {
+                    flat.addAll(part instanceof AndCondition ? ((AndCondition) part).parts : ((OrCondition) part).parts);
+                } else {
+                    flat.add(part);
+                }
+            }
+            return flat;
+        }
+        
+        /**
+         * Puts all the date conditions in an AND together into one range, so date>=X AND date<Y
+         * is one lookup for the photos in between instead of two for everything on either side.
+         */
+        private static List<Condition> mergeDates(List<Condition> parts) {
+            List<Condition> merged = new ArrayList<>();
+            DateCondition range = null;
+            for (Condition part : parts) {
+                if (part instanceof DateCondition) {
+                    DateCondition date = (DateCondition) part;
+                    range = range == null ? date
+                        : new DateCondition(Math.max(range.fromMillis, date.fromMillis), Math.min(range.toMillis, date.toMillis));
+                } else {
+                    merged.add(part);
+                }
+            }
+            if (range != null) {
+                merged.add(range);
+            }
+            return merged;
+        }
+        
+        private boolean isKeyword(String keyword) {
+            return token != null && !quoted && token.equalsIgnoreCase(keyword);
+        }
+        
+        private boolean isSymbol(String symbol) {
+            return token != null && !quoted && token.equals(symbol);
+        }
+        
+        private boolean isOperator() {
+            return isSymbol("=") || isSymbol(":") || isSymbol("<") || isSymbol("<=") || isSymbol(">") || isSymbol(">=");
+        }
+        
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + (tokenStart + 1));
+        }
+        
+        /**
+         * Moves on to the next token: a parenthesis, an operator, a quoted string or a plain word.
+         */
+        private void next() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            tokenStart = pos;
+            quoted = false;
+            if (pos >= text.length()) {
+                token = null;
+                return;
+            }
+            char c = text.charAt(pos);
+            if (c == '(' || c == ')' || c == '=' || c == ':') {
+                token = String.valueOf(c);
+                pos++;
+            } else if (c == '<' || c == '>') {
+                pos++;
+                if (pos < text.length() && text.charAt(pos) == '=') {
+                    pos++;
+                }
+                token = text.substring(tokenStart, pos);
+            } else if (c == '"') {
+                int end = text.indexOf('"', pos + 1);
+                if (end < 0) {
+                    throw error("Missing closing quote");
+                }
+                token = text.substring(pos + 1, end);
+                quoted = true;
+                pos = end + 1;
+            } else {
+                while (pos < text.length() && !Character.isWhitespace(text.charAt(pos))
+                        && "()=:<>\"".indexOf(text.charAt(pos)) < 0) {
+                    pos++;
+                }
+                token = text.substring(tokenStart, pos);
+            }
+        }
+    }
+}
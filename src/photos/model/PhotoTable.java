@@ -0,0 +1,484 @@
+package photos.model;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Every distinct photo in a user's albums, one row each.
+ * Each photo gets a small row number, and the things searches go through for every photo
+ * (like the date) are kept in plain arrays by row, so searches work on arrays
+ * instead of following albums, lists and Photo objects around the heap.
+ * Dates are also kept sorted in a TimeIndex, so a date range doesn't have to look at every row,
+ * and caption words go in a CaptionIndex the first time captions are searched.
+ *
+ * Rows of photos that leave the user are reused, so the arrays stay about as big as the number of photos.
+ * For tags it keeps the reverse: for each tag id in the user's TagDictionary, the rows of the photos that have it,
+ * so a tag search is a lookup plus set operations instead of a look at every photo.
+ * This is also the user's photo registry: there's one Photo per file, found through an open-addressing table
+ * of rows by path hash, so a lookup by path string doesn't have to make a Photo or split the path first.
+ * Not thread safe, same as the rest of a user's data.
+ * Searches check between steps whether the thread running them was interrupted (see checkCancelled()),
+ * so one that's been cancelled stops soon instead of running to the end.
+ * @author Klever and Shrij
+ */
+class PhotoTable {
+    
+    private final User owner;
+    private int[] slots = new int[32];      // Row + 1 of the one Photo for each file, by path hash (0 is empty)
+    private Photo[] photos = new Photo[16]; // The photo in each row, or null for a free row
+    private int[] hashes = new int[16];     // Each row's Photo.hashCode(), checked before comparing paths
+    private long[] times = new long[16];    // Each row's photo time in epoch ms
+    private int[] freeRows = new int[8];    // Rows whose photos left, to hand out again first
+    private int freeCount;
+    private int rowCount;                   // Rows handed out so far, free ones included
+    private RowBitmap[] tagRows = new RowBitmap[16]; // Tag id -> rows of the photos with that tag
+    private final TimeIndex timeIndex = new TimeIndex(this); // Rows sorted by time
+    private CaptionIndex captionIndex;      // Rows by caption word (null until the first caption search)
+    
+    /**
+     * Makes an empty table for a user.
+     * @param owner The user whose photos go in it
+     */
+    PhotoTable(User owner) {
+        this.owner = owner;
+    }
+    
+    /**
+     * Gets the photo this table has for the same file.
+     * @param photo A photo
+     * @return The photo in the table, or null if there isn't one for that file
+     */
+    Photo find(Photo photo) {
+        int hash = photo.hashCode();
+        int mask = slots.length - 1;
+        for (int i = spread(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int row = slots[i] - 1;
+            if (hashes[row] == hash && photos[row].equals(photo)) {
+                return photos[row];
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the photo this table has for a file, comparing the path in place against each photo's
+     * folder and file name.
+     * @param path The full path of the file
+     * @return The photo in the table, or null if there isn't one for that file
+     */
+    Photo find(String path) {
+        int split = DirectoryTable.fileNameStart(path);
+        int hash = 31 * hash(path, 0, split) + hash(path, split, path.length());
+        int mask = slots.length - 1;
+        for (int i = spread(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int row = slots[i] - 1;
+            if (hashes[row] == hash && hasPath(photos[row], path, split)) {
+                return photos[row];
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Gives a photo a row, unless there's already one for its file.
+     * @param photo The photo
+     * @return The photo that's now in the table for its file (an earlier one wins)
+     */
+    Photo add(Photo photo) {
+        Photo existing = find(photo);
+        if (existing != null) {
+            return existing;
+        }
+        int row;
+        if (freeCount > 0) {
+            row = freeRows[--freeCount];
+        } else {
+            if (rowCount == photos.length) {
+                photos = Arrays.copyOf(photos, rowCount * 2);
+                hashes = Arrays.copyOf(hashes, rowCount * 2);
+                times = Arrays.copyOf(times, rowCount * 2);
+            }
+            row = rowCount++;
+        }
+        photos[row] = photo;
+        hashes[row] = photo.hashCode();
+        times[row] = photo.getTimeMillis();
+        if (size() * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int r = 0; r < rowCount; r++) {
+                if (photos[r] != null) {
+                    place(r);
+                }
+            }
+        } else {
+            place(row);
+        }
+        photo.setRow(row);
+        timeIndex.add(row);
+        
+        // Its tags have to be numbered in the user's dictionary before they can go in the index
+        photo.setOwner(owner);
+        for (int i = 0; i < photo.getTagCount(); i++) {
+            tagAdded(photo.getTagId(i), row);
+        }
+        if (captionIndex != null) {
+            captionIndex.add(row, photo.getCaption());
+        }
+        return photo;
+    }
+    
+    /**
+     * Takes a photo out and frees its row.
+     * @param photo The photo, which has to be the one in the table (not just an equal one) to be removed
+     */
+    void remove(Photo photo) {
+        int row = photo.getRow();
+        if (row < 0 || row >= rowCount || photos[row] != photo) {
+            return;
+        }
+        unplace(row);
+        for (int i = 0; i < photo.getTagCount(); i++) {
+            tagRows[photo.getTagId(i)].remove(row);
+        }
+        if (captionIndex != null) {
+            captionIndex.remove(row, photo.getCaption());
+        }
+        photos[row] = null;
+        photo.setRow(-1);
+        timeIndex.remove();
+        if (freeCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, freeCount * 2);
+        }
+        freeRows[freeCount++] = row;
+    }
+    
+    /**
+     * Counts the photos in the table.
+     * @return The number of photos
+     */
+    int size() {
+        return rowCount - freeCount;
+    }
+    
+    /**
+     * Records that the photo in a row got a tag.
+     * @param tagId The tag's id in the owner's dictionary
+     * @param row The photo's row
+     */
+    void tagAdded(int tagId, int row) {
+        if (tagId >= tagRows.length) {
+            tagRows = Arrays.copyOf(tagRows, Math.max(tagId + 1, tagRows.length * 2));
+        }
+        if (tagRows[tagId] == null) {
+            tagRows[tagId] = new RowBitmap();
+        }
+        tagRows[tagId].add(row);
+    }
+    
+    /**
+     * Records that the photo in a row lost a tag.
+     * @param tagId The tag's id in the owner's dictionary
+     * @param row The photo's row
+     */
+    void tagRemoved(int tagId, int row) {
+        tagRows[tagId].remove(row);
+    }
+    
+    /**
+     * Records that the photo in a row got a new caption.
+     * @param row The photo's row
+     * @param oldCaption The caption it had
+     * @param newCaption The caption it has now
+     */
+    void captionChanged(int row, String oldCaption, String newCaption) {
+        if (captionIndex != null) {
+            captionIndex.remove(row, oldCaption);
+            captionIndex.add(row, newCaption);
+        }
+    }
+    
+    /**
+     * Finds the photos that have every one of some tags.
+     * Starts from the tag the fewest photos have, so the sets only get smaller from there.
+     * @param tags The tags
+     * @return The photos in row order (none if there are no tags)
+     */
+    List<Photo> findWithAllTags(Collection<Tag> tags) {
+        List<RowBitmap> sets = new ArrayList<>();
+        for (Tag tag : tags) {
+            RowBitmap rows = rowsWithTag(tag);
+            if (rows.isEmpty()) {
+                return new ArrayList<>();
+            }
+            sets.add(rows);
+        }
+        if (sets.isEmpty()) {
+            return new ArrayList<>();
+        }
+        sets.sort((a, b) -> Integer.compare(a.cardinality(), b.cardinality()));
+        RowBitmap rows = sets.get(0);
+        for (int i = 1; i < sets.size() && !rows.isEmpty(); i++) {
+            checkCancelled();
+            rows = RowBitmap.and(rows, sets.get(i));
+        }
+        return photosIn(rows);
+    }
+    
+    /**
+     * Finds the photos that have at least one of some tags.
+     * @param tags The tags
+     * @return The photos in row order, each one once
+     */
+    List<Photo> findWithAnyTag(Collection<Tag> tags) {
+        RowBitmap rows = new RowBitmap();
+        for (Tag tag : tags) {
+            checkCancelled();
+            rows = RowBitmap.or(rows, rowsWithTag(tag));
+        }
+        return photosIn(rows);
+    }
+    
+    /**
+     * Gets the rows of the photos with a tag, without adding the tag to the dictionary if nobody has it.
+     * @param tag The tag
+     * @return The rows (don't change it, it's the index's own copy)
+     */
+    RowBitmap rowsWithTag(Tag tag) {
+        int id = owner.getTagDictionary().find(tag.getName(), tag.getValue());
+        if (id < 0 || id >= tagRows.length || tagRows[id] == null) {
+            return new RowBitmap();
+        }
+        return tagRows[id];
+    }
+    
+    /**
+     * Gets the rows of the photos with a tag that has some value, whatever the tag's name is.
+     * @param value The tag value
+     * @return A new set of rows
+     */
+    RowBitmap rowsWithTagValue(String value) {
+        RowBitmap rows = new RowBitmap();
+        for (int id : owner.getTagDictionary().findWithValue(value)) {
+            if (id < tagRows.length && tagRows[id] != null) {
+                rows = RowBitmap.or(rows, tagRows[id]);
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Counts the photos with a tag that has some value, without putting their rows together.
+     * A photo with that value under two names counts twice, so it can be a bit high.
+     * @param value The tag value
+     * @return The count
+     */
+    int countWithTagValue(String value) {
+        int count = 0;
+        for (int id : owner.getTagDictionary().findWithValue(value)) {
+            if (id < tagRows.length && tagRows[id] != null) {
+                count += tagRows[id].cardinality();
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Gets every row that has a photo in it.
+     * @return A new set of rows
+     */
+    RowBitmap allRows() {
+        RowBitmap rows = new RowBitmap();
+        for (int row = 0; row < rowCount; row++) {
+            if (photos[row] != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Gets the photos in some rows.
+     * @param rows The rows
+     * @return The photos, in row order
+     */
+    List<Photo> photosIn(RowBitmap rows) {
+        checkCancelled();
+        List<Photo> found = new ArrayList<>(rows.cardinality());
+        rows.forEach(row -> found.add(photos[row]));
+        return found;
+    }
+    
+    /**
+     * Stops a search if the thread running it has been interrupted, like a live search that's been typed over.
+     * Called between the steps of a search, never partway through a change to the table.
+     * @throws CancellationException If the thread was interrupted (the interrupt is used up)
+     */
+    static void checkCancelled() {
+        if (Thread.interrupted()) {
+            throw new CancellationException("Search cancelled");
+        }
+    }
+    
+    /**
+     * Gets the photo in a row.
+     * @param row The row
+     * @return The photo, or null if the row is free
+     */
+    Photo get(int row) {
+        return photos[row];
+    }
+    
+    /**
+     * Gets the time of the photo in a row.
+     * @param row The row
+     * @return The time in epoch ms (left over from the last photo if the row is free)
+     */
+    long getTime(int row) {
+        return times[row];
+    }
+    
+    /**
+     * Gets the index of the rows by time.
+     * @return The index
+     */
+    TimeIndex getTimeIndex() {
+        return timeIndex;
+    }
+    
+    /**
+     * Gets the index of the rows by caption word, making it the first time.
+     * Plenty of users never search captions, so loading a user doesn't go through every caption for it.
+     * @return The index
+     */
+    CaptionIndex getCaptionIndex() {
+        if (captionIndex == null) {
+            // Built off to the side, so a search cancelled partway through doesn't leave half an index
+            CaptionIndex index = new CaptionIndex(this);
+            for (int row = 0; row < rowCount; row++) {
+                if ((row & 0xFFF) == 0) {
+                    checkCancelled();
+                }
+                if (photos[row] != null) {
+                    index.add(row, photos[row].getCaption());
+                }
+            }
+            captionIndex = index;
+        }
+        return captionIndex;
+    }
+    
+    /**
+     * Gets the photos as a collection that goes through the rows in order.
+     * @return A read-only view that follows later changes
+     */
+    Collection<Photo> values() {
+        return new AbstractCollection<Photo>() {
+            @Override
+            public int size() {
+                return PhotoTable.this.size();
+            }
+            
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Photo && find((Photo) o) != null;
+            }
+            
+            @Override
+            public Iterator<Photo> iterator() {
+                return new Iterator<Photo>() {
+                    private int next = skipFree(0);
+                    
+                    @Override
+                    public boolean hasNext() {
+                        return next < rowCount;
+                    }
+                    
+                    @Override
+                    public Photo next() {
+                        if (next >= rowCount) {
+                            throw new NoSuchElementException();
+                        }
+                        Photo photo = photos[next];
+                        next = skipFree(next + 1);
+                        return photo;
+                    }
+                };
+            }
+        };
+    }
+    
+    /**
+     * Puts a row in the first empty slot from its hash on.
+     */
+    private void place(int row) {
+        int mask = slots.length - 1;
+        int i = spread(hashes[row]) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = row + 1;
+    }
+    
+    /**
+     * Takes a row out of the slots, moving later rows back so none ends up past an empty slot it probes through.
+     */
+    private void unplace(int row) {
+        int mask = slots.length - 1;
+        int hole = spread(hashes[row]) & mask;
+        while (slots[hole] != row + 1) {
+            hole = (hole + 1) & mask;
+        }
+        slots[hole] = 0;
+        for (int i = (hole + 1) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int home = spread(hashes[slots[i] - 1]) & mask;
+            // Move it into the hole unless its home is after the hole (cyclically, up to i)
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                slots[hole] = slots[i];
+                slots[i] = 0;
+                hole = i;
+            }
+        }
+    }
+    
+    /**
+     * Checks a photo's folder and file name against a path split at a point, without making either part.
+     */
+    private static boolean hasPath(Photo photo, String path, int split) {
+        String directory = photo.getDirectory();
+        String fileName = photo.getFileName();
+        return directory.length() == split && fileName.length() == path.length() - split
+            && path.regionMatches(0, directory, 0, split) && path.regionMatches(split, fileName, 0, fileName.length());
+    }
+    
+    /**
+     * Hashes part of a string the way String.hashCode() does the whole of one.
+     */
+    private static int hash(String s, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        return hash;
+    }
+    
+    // Mixes the high bits in, since only the low ones pick the slot
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+    
+    /**
+     * Finds the first row at or after a row that has a photo in it.
+     */
+    private int skipFree(int row) {
+        while (row < rowCount && photos[row] == null) {
+            row++;
+        }
+        return row;
+    }
+}
@@ -0,0 +1,504 @@
+package photos.model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of PhotoTable rows, for the tag index and for working out searches.
+ * Rows are split into chunks of 65536 by their top 16 bits. A chunk with only a few rows keeps
+ * them as a sorted char[] (2 bytes a row), and a chunk with a lot of them as a 65536-bit bitmap
+ * (8 KB however many there are), the same idea as Roaring bitmaps. So a tag only a handful of
+ * photos have costs a few bytes, and one most photos have costs about a bit a photo, and either
+ * way AND, OR and AND NOT work a chunk at a time instead of a photo at a time.
+ * @author Klever and Shrij
+ */
+final class RowBitmap {
+    
+    private static final int ARRAY_MAX = 4096; // Past this many rows a chunk is smaller as a bitmap
+    private static final char[] NO_KEYS = new char[0];              // Shared by empty sets, so making one is cheap
+    private static final Container[] NO_CONTAINERS = new Container[0];
+    
+    private char[] keys = NO_KEYS;                 // Top 16 bits of each chunk, sorted
+    private Container[] containers = NO_CONTAINERS; // The rows in each chunk
+    private int size;                                // Chunks in use
+    
+    /**
+     * Adds a row.
+     * @param row The row
+     */
+    void add(int row) {
+        char key = (char) (row >>> 16);
+        int i = indexOf(key);
+        if (i >= 0) {
+            containers[i] = containers[i].add((char) row);
+            return;
+        }
+        i = -i - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(4, size * 2));
+            containers = Arrays.copyOf(containers, keys.length);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = new ArrayContainer().add((char) row);
+        size++;
+    }
+    
+    /**
+     * Removes a row.
+     * @param row The row
+     */
+    void remove(int row) {
+        int i = indexOf((char) (row >>> 16));
+        if (i < 0) {
+            return;
+        }
+        Container container = containers[i].remove((char) row);
+        if (container != null) {
+            containers[i] = container;
+            return;
+        }
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        containers[--size] = null;
+    }
+    
+    /**
+     * Checks for a row.
+     * @param row The row
+     * @return true if it's in the set
+     */
+    boolean contains(int row) {
+        int i = indexOf((char) (row >>> 16));
+        return i >= 0 && containers[i].contains((char) row);
+    }
+    
+    /**
+     * Counts the rows.
+     * @return The number of rows in the set
+     */
+    int cardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += containers[i].cardinality();
+        }
+        return total;
+    }
+    
+    /**
+     * Checks if there are no rows.
+     * @return true if the set is empty
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Goes through the rows in increasing order.
+     * @param action What to do with each row
+     */
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+    
+    /**
+     * Gets the rows in both sets.
+     * @param a One set
+     * @param b The other set
+     * @return A new set (neither argument is changed)
+     */
+    static RowBitmap and(RowBitmap a, RowBitmap b) {
+        RowBitmap result = new RowBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Container both = a.containers[i].and(b.containers[j]);
+                if (both != null) {
+                    result.append(a.keys[i], both);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the rows in either set.
+     * @param a One set
+     * @param b The other set
+     * @return A new set (neither argument is changed)
+     */
+    static RowBitmap or(RowBitmap a, RowBitmap b) {
+        RowBitmap result = new RowBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.append(a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i == a.size || a.keys[i] > b.keys[j]) {
+                result.append(b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.append(a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the rows in the first set but not the second.
+     * @param a The set to take rows from
+     * @param b The rows to leave out
+     * @return A new set (neither argument is changed)
+     */
+    static RowBitmap andNot(RowBitmap a, RowBitmap b) {
+        RowBitmap result = new RowBitmap();
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            Container rest = j < b.size && b.keys[j] == a.keys[i]
+                ? a.containers[i].andNot(b.containers[j])
+                : a.containers[i].copy();
+            if (rest != null) {
+                result.append(a.keys[i], rest);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Adds a chunk after all the ones already there. Only for building results in key order.
+     */
+    private void append(char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(4, size * 2));
+            containers = Arrays.copyOf(containers, keys.length);
+        }
+        keys[size] = key;
+        containers[size] = container;
+        size++;
+    }
+    
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+    
+    /**
+     * The rows of one chunk, by their low 16 bits.
+     * add() and remove() return the container to keep using, which is a new one when the chunk
+     * switches between a list and a bitmap (or null once remove() empties it).
+     */
+    private abstract static class Container {
+        abstract Container add(char low);
+        abstract Container remove(char low);
+        abstract boolean contains(char low);
+        abstract int cardinality();
+        abstract Container and(Container other); // null if nothing's in both
+        abstract Container or(Container other);
+        abstract Container andNot(Container other); // null if nothing's left
+        abstract Container copy();
+        abstract void forEach(int base, IntConsumer action);
+    }
+    
+    /**
+     * A chunk with up to ARRAY_MAX rows, as a sorted list.
+     */
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+        
+        ArrayContainer() {
+            values = new char[4];
+        }
+        
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+        
+        @Override
+        Container add(char low) {
+            int i = Arrays.binarySearch(values, 0, cardinality, low);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_MAX) {
+                return toBitmap().add(low);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = low;
+            cardinality++;
+            return this;
+        }
+        
+        @Override
+        Container remove(char low) {
+            int i = Arrays.binarySearch(values, 0, cardinality, low);
+            if (i < 0) {
+                return this;
+            }
+            System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+            cardinality--;
+            return cardinality == 0 ? null : this;
+        }
+        
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+        
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+        
+        @Override
+        Container and(Container other) {
+            char[] both = new char[cardinality];
+            int count = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality && j < o.cardinality) {
+                    if (values[i] < o.values[j]) {
+                        i++;
+                    } else if (values[i] > o.values[j]) {
+                        j++;
+                    } else {
+                        both[count++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        both[count++] = values[i];
+                    }
+                }
+            }
+            return count == 0 ? null : new ArrayContainer(both, count);
+        }
+        
+        @Override
+        Container or(Container other) {
+            if (!(other instanceof ArrayContainer)) {
+                return other.or(this);
+            }
+            ArrayContainer o = (ArrayContainer) other;
+            char[] either = new char[cardinality + o.cardinality];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality || j < o.cardinality) {
+                if (j == o.cardinality || (i < cardinality && values[i] < o.values[j])) {
+                    either[count++] = values[i++];
+                } else if (i == cardinality || values[i] > o.values[j]) {
+                    either[count++] = o.values[j++];
+                } else {
+                    either[count++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            ArrayContainer result = new ArrayContainer(either, count);
+            return count > ARRAY_MAX ? result.toBitmap() : result;
+        }
+        
+        @Override
+        Container andNot(Container other) {
+            char[] rest = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    rest[count++] = values[i];
+                }
+            }
+            return count == 0 ? null : new ArrayContainer(rest, count);
+        }
+        
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+        }
+        
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < cardinality; i++) {
+                action.accept(base | values[i]);
+            }
+        }
+        
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer(new long[1024], 0);
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+    
+    /**
+     * A chunk with more than ARRAY_MAX rows, as one bit per possible row.
+     * It only goes back to a list once it's down to half of ARRAY_MAX, so a chunk that's
+     * right around the limit doesn't get converted back and forth on every change.
+     */
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+        
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+        
+        @Override
+        Container add(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0) {
+                words[low >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+        
+        @Override
+        Container remove(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) != 0) {
+                words[low >>> 6] &= ~bit;
+                cardinality--;
+            }
+            return cardinality <= ARRAY_MAX / 2 ? toArray() : this;
+        }
+        
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+        
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+        
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] o = ((BitmapContainer) other).words;
+            long[] both = new long[1024];
+            int count = 0;
+            for (int i = 0; i < both.length; i++) {
+                both[i] = words[i] & o[i];
+                count += Long.bitCount(both[i]);
+            }
+            if (count == 0) {
+                return null;
+            }
+            BitmapContainer result = new BitmapContainer(both, count);
+            return count <= ARRAY_MAX ? result.toArray() : result;
+        }
+        
+        @Override
+        Container or(Container other) {
+            long[] either = words.clone();
+            int count = cardinality;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer) other;
+                for (int i = 0; i < o.cardinality; i++) {
+                    char low = o.values[i];
+                    long bit = 1L << low;
+                    if ((either[low >>> 6] & bit) == 0) {
+                        either[low >>> 6] |= bit;
+                        count++;
+                    }
+                }
+            } else {
+                long[] o = ((BitmapContainer) other).words;
+                count = 0;
+                for (int i = 0; i < either.length; i++) {
+                    either[i] |= o[i];
+                    count += Long.bitCount(either[i]);
+                }
+            }
+            return new BitmapContainer(either, count);
+        }
+        
+        @Override
+        Container andNot(Container other) {
+            BitmapContainer rest = new BitmapContainer(words.clone(), cardinality);
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer) other;
+                for (int i = 0; i < o.cardinality; i++) {
+                    char low = o.values[i];
+                    long bit = 1L << low;
+                    if ((rest.words[low >>> 6] & bit) != 0) {
+                        rest.words[low >>> 6] &= ~bit;
+                        rest.cardinality--;
+                    }
+                }
+            } else {
+                long[] o = ((BitmapContainer) other).words;
+                rest.cardinality = 0;
+                for (int i = 0; i < rest.words.length; i++) {
+                    rest.words[i] &= ~o[i];
+                    rest.cardinality += Long.bitCount(rest.words[i]);
+                }
+            }
+            return rest.cardinality <= ARRAY_MAX ? rest.toArray() : rest;
+        }
+        
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+        
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(base | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+        
+        private Container toArray() {
+            if (cardinality == 0) {
+                return null;
+            }
+            char[] values = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[count++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, count);
+        }
+    }
+}
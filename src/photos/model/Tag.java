@@ -4,13 +4,15 @@ import java.io.Serializable;
 
 /**
  * Represents a tag for photos with a name and value pair.
+ * Tags can't be changed once made, since photos share them through the user's TagDictionary.
+ * To change a tag on a photo, remove it and add a new one.
  * @author Klever and Shrij
  */
 public class Tag implements Serializable {
     private static final long serialVersionUID = 1L;
     
-    private String name;
-    private String value;
+    private final String name;
+    private final String value;
     
     /**
      * Constructs a new tag with the specified name and value.
@@ -38,14 +40,6 @@ public class Tag implements Serializable {
         return value;
     }
     
-    /**
-     * Sets the value
-     * @param value The new value
-     */
-    public void setValue(String value) {
-        this.value = value;
-    }
-    
     /**
      * Checks if this tag equals another object
      * Tags will be considered equal if they have the same name and value
@@ -0,0 +1,142 @@
+package photos.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numbers every distinct tag (name and value) a user has, so photos can keep their tags as
+ * small int arrays instead of a set of Tag objects each. There's one Tag object per id, and
+ * that's the one handed out by Photo.getTags(), so the same name/value strings aren't
+ * repeated on every photo.
+ *
+ * Ids are only ever added, never reused, so a photo's ids stay valid for as long as the user's
+ * loaded. Not thread safe, same as the rest of a user's data.
+ * @author Klever and Shrij
+ */
+class TagDictionary {
+    
+    // Open-addressing table of id + 1 for each tag, by its name and value hash (0 is an empty slot),
+    // so a lookup is one probe sequence over ints instead of a map per name and a boxed Integer
+    private int[] slots = new int[32];
+    private int[] hashes = new int[16]; // The hash of each id's tag, checked before comparing strings
+    private Tag[] tags = new Tag[16];   // The tag for each id
+    private int size;
+    private final Map<String, int[]> byValue = new HashMap<>(); // value -> ids of the tags with it
+    
+    /**
+     * Gets the id for a tag, giving it a new one if it's never been seen.
+     * @param name The tag name
+     * @param value The tag value
+     * @return The id
+     */
+    int intern(String name, String value) {
+        int id = find(name, value);
+        if (id >= 0) {
+            return id;
+        }
+        if (size == tags.length) {
+            tags = Arrays.copyOf(tags, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        id = size++;
+        tags[id] = new Tag(name, value);
+        hashes[id] = hashOf(name, value);
+        if (size * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int i = 0; i < size; i++) {
+                place(i);
+            }
+        } else {
+            place(id);
+        }
+        
+        int[] ids = byValue.get(value);
+        if (ids == null) {
+            ids = new int[] { id };
+        } else {
+            ids = Arrays.copyOf(ids, ids.length + 1);
+            ids[ids.length - 1] = id;
+        }
+        byValue.put(value, ids);
+        return id;
+    }
+    
+    /**
+     * Gets the id for a tag without adding it.
+     * @param name The tag name
+     * @param value The tag value
+     * @return The id, or -1 if no photo has ever had this tag
+     */
+    int find(String name, String value) {
+        int hash = hashOf(name, value);
+        int mask = slots.length - 1;
+        for (int i = spread(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if (hashes[id] == hash && tags[id].getName().equals(name) && tags[id].getValue().equals(value)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Gets the ids of every tag with a value, whatever its name is.
+     * @param value The tag value
+     * @return The ids (empty if no photo has ever had a tag with this value)
+     */
+    int[] findWithValue(String value) {
+        int[] ids = byValue.get(value);
+        return ids == null ? new int[0] : ids.clone();
+    }
+    
+    /**
+     * Gets the tag with an id.
+     * @param id An id from intern()
+     * @return The tag
+     */
+    Tag get(int id) {
+        return tags[id];
+    }
+    
+    /**
+     * Gets the hash of the tag with an id, without touching the Tag or its strings.
+     * @param id An id from intern()
+     * @return The same as hashOf() on the tag's name and value
+     */
+    int hashOf(int id) {
+        return hashes[id];
+    }
+    
+    /**
+     * Gets how many tags have ids.
+     * @return The number of ids handed out
+     */
+    int size() {
+        return size;
+    }
+    
+    private void place(int id) {
+        int mask = slots.length - 1;
+        int i = spread(hashes[id]) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = id + 1;
+    }
+    
+    /**
+     * Gets the hash a tag's kept under: the same as Tag.hashCode(), without needing a Tag to call it on.
+     * @param name The tag name
+     * @param value The tag value
+     * @return The hash
+     */
+    static int hashOf(String name, String value) {
+        return 31 * name.hashCode() + value.hashCode();
+    }
+    
+    // Mixes the high bits in, since only the low ones pick the slot
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,292 @@
+package photos.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The rows of a PhotoTable sorted by photo time, for date searches.
+ * A date range is two binary searches and the photos in between come out already in date order.
+ *
+ * Keeping one big sorted array up to date on every change would mean shifting it for every photo
+ * added or removed, which adds up fast when a whole album comes or goes. So changes are cheap and
+ * the sorting is put off until the next search:
+ * - A new row goes on the end of a list of added rows. The next search slots a few of them in
+ *   where they go, or sorts a lot of them and merges them in, in one pass over the array.
+ * - A row that leaves isn't looked for at all. Its entry just stops matching the table
+ *   (the row is empty or has another photo with a different time), searches skip it, and
+ *   it's cleared out by the next merge, or once a quarter of the entries are like that.
+ * @author Klever and Shrij
+ */
+class TimeIndex {
+    
+    private static final int INSERT_MAX = 64; // Up to this many added rows get slotted in one by one instead of merged
+    
+    private final PhotoTable table;
+    private long[] times = new long[16]; // Sorted photo times
+    private int[] rows = new int[16];    // The row each time is for (rows with the same time are in row order)
+    private int size;
+    private int[] added = new int[16];   // Rows added since the last search, in no order
+    private int addedCount;
+    private int removedCount;            // Photos that left since the last merge, so about how many entries are old
+    
+    /**
+     * Makes an empty index for a table.
+     * @param table The table whose rows go in it
+     */
+    TimeIndex(PhotoTable table) {
+        this.table = table;
+    }
+    
+    /**
+     * Records that a row got a photo.
+     * @param row The row
+     */
+    void add(int row) {
+        if (addedCount == added.length) {
+            added = Arrays.copyOf(added, addedCount * 2);
+        }
+        added[addedCount++] = row;
+    }
+    
+    /**
+     * Records that a row's photo left. Its entry gets dropped at the next merge.
+     */
+    void remove() {
+        removedCount++;
+    }
+    
+    /**
+     * Finds the photos taken in a time range.
+     * @param fromMillis Start of the range in epoch ms (included), or Long.MIN_VALUE for no start
+     * @param toMillis End of the range in epoch ms (not included), or Long.MAX_VALUE for no end
+     * @return The photos, oldest first
+     */
+    List<Photo> find(long fromMillis, long toMillis) {
+        return find(new long[] { fromMillis }, new long[] { toMillis });
+    }
+    
+    /**
+     * Finds the photos taken in any of several time ranges.
+     * Ranges can overlap or come in any order, and a photo in two of them still only comes back once.
+     * @param fromMillis Start of each range in epoch ms (included)
+     * @param toMillis End of each range in epoch ms (not included), same length as fromMillis
+     * @return The photos, oldest first
+     */
+    List<Photo> find(long[] fromMillis, long[] toMillis) {
+        update();
+        PhotoTable.checkCancelled();
+        
+        // Turn the ranges into runs of the sorted array, then put overlapping runs together
+        int[][] runs = new int[fromMillis.length][];
+        int runCount = 0;
+        for (int i = 0; i < fromMillis.length; i++) {
+            int start = lowerBound(fromMillis[i]);
+            int end = lowerBound(toMillis[i]);
+            if (start < end) {
+                runs[runCount++] = new int[] { start, end };
+            }
+        }
+        Arrays.sort(runs, 0, runCount, (a, b) -> Integer.compare(a[0], b[0]));
+        
+        List<Photo> found = new ArrayList<>();
+        int done = 0; // Everything before this has been added
+        for (int r = 0; r < runCount; r++) {
+            for (int i = Math.max(runs[r][0], done); i < runs[r][1]; i++) {
+                if (isCurrent(times[i], rows[i])) {
+                    found.add(table.get(rows[i]));
+                }
+            }
+            done = Math.max(done, runs[r][1]);
+        }
+        return found;
+    }
+    
+    /**
+     * Gets the rows of the photos taken in a time range.
+     * @param fromMillis Start of the range in epoch ms (included)
+     * @param toMillis End of the range in epoch ms (not included)
+     * @return A new set of rows
+     */
+    RowBitmap rowsBetween(long fromMillis, long toMillis) {
+        update();
+        int start = lowerBound(fromMillis);
+        int end = Math.max(start, lowerBound(toMillis));
+        
+        // The rows come out in time order, which is all over the place by row, so sort them first
+        // (adding rows in order just goes on the end of the bitmap instead of shifting it every time)
+        int[] found = new int[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (isCurrent(times[i], rows[i])) {
+                found[count++] = rows[i];
+            }
+        }
+        Arrays.sort(found, 0, count);
+        RowBitmap bitmap = new RowBitmap();
+        for (int i = 0; i < count; i++) {
+            bitmap.add(found[i]);
+        }
+        return bitmap;
+    }
+    
+    /**
+     * Counts about how many photos were taken in a time range, without building the result.
+     * It can be a bit high if photos left since the last search.
+     * @param fromMillis Start of the range in epoch ms (included)
+     * @param toMillis End of the range in epoch ms (not included)
+     * @return The count
+     */
+    int countBetween(long fromMillis, long toMillis) {
+        update();
+        return Math.max(0, lowerBound(toMillis) - lowerBound(fromMillis));
+    }
+    
+    /**
+     * Finds the first entry with a time at or after the given one.
+     */
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Checks that an entry still matches its row in the table.
+     */
+    private boolean isCurrent(long time, int row) {
+        return table.get(row) != null && table.getTime(row) == time;
+    }
+    
+    /**
+     * Gets the added rows into the array before a search.
+     */
+    private void update() {
+        if (addedCount > INSERT_MAX || removedCount > size / 4) {
+            merge();
+            return;
+        }
+        for (int a = 0; a < addedCount; a++) {
+            insert(added[a]);
+        }
+        addedCount = 0;
+    }
+    
+    /**
+     * Slots one added row in where it goes, unless it's already there
+     * (it left and came back with the same time) or has left again since.
+     */
+    private void insert(int row) {
+        long time = table.getTime(row);
+        if (table.get(row) == null) {
+            return;
+        }
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(times[mid], rows[mid], time, row);
+            if (c == 0) {
+                return;
+            } else if (c < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (size == times.length) {
+            times = Arrays.copyOf(times, Math.max(16, size + (size >> 1)));
+            rows = Arrays.copyOf(rows, times.length);
+        }
+        System.arraycopy(times, low, times, low + 1, size - low);
+        System.arraycopy(rows, low, rows, low + 1, size - low);
+        times[low] = time;
+        rows[low] = row;
+        size++;
+    }
+    
+    /**
+     * Sorts the added rows into the array and drops entries that don't match the table anymore.
+     */
+    private void merge() {
+        // An added row might have left again since, which the check below catches
+        long[] addedTimes = new long[addedCount];
+        for (int i = 0; i < addedCount; i++) {
+            addedTimes[i] = table.getTime(added[i]);
+        }
+        sort(addedTimes, added, addedCount);
+        
+        long[] mergedTimes = new long[size + addedCount];
+        int[] mergedRows = new int[size + addedCount];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < addedCount) {
+            long time;
+            int row;
+            if (j == addedCount || (i < size && compare(times[i], rows[i], addedTimes[j], added[j]) <= 0)) {
+                time = times[i];
+                row = rows[i++];
+            } else {
+                time = addedTimes[j];
+                row = added[j++];
+            }
+            
+            // Skip entries for rows that are empty now or got a photo with another time,
+            // and the second copy of a row that left and came back with the same time
+            boolean current = isCurrent(time, row);
+            boolean repeat = count > 0 && mergedTimes[count - 1] == time && mergedRows[count - 1] == row;
+            if (current && !repeat) {
+                mergedTimes[count] = time;
+                mergedRows[count] = row;
+                count++;
+            }
+        }
+        times = mergedTimes;
+        rows = mergedRows;
+        size = count;
+        added = new int[16];
+        addedCount = 0;
+        removedCount = 0;
+    }
+    
+    private static int compare(long time1, int row1, long time2, int row2) {
+        int byTime = Long.compare(time1, time2);
+        return byTime != 0 ? byTime : Integer.compare(row1, row2);
+    }
+    
+    /**
+     * Sorts the first count entries of two parallel arrays by time and then row (a plain merge sort).
+     */
+    private static void sort(long[] times, int[] rows, int count) {
+        long[] timeBuffer = new long[count];
+        int[] rowBuffer = new int[count];
+        for (int width = 1; width < count; width *= 2) {
+            for (int start = 0; start < count; start += 2 * width) {
+                int middle = Math.min(start + width, count);
+                int end = Math.min(start + 2 * width, count);
+                int i = start;
+                int j = middle;
+                for (int k = start; k < end; k++) {
+                    if (j == end || (i < middle && compare(times[i], rows[i], times[j], rows[j]) <= 0)) {
+                        timeBuffer[k] = times[i];
+                        rowBuffer[k] = rows[i++];
+                    } else {
+                        timeBuffer[k] = times[j];
+                        rowBuffer[k] = rows[j++];
+                    }
+                }
+            }
+            System.arraycopy(timeBuffer, 0, times, 0, count);
+            System.arraycopy(rowBuffer, 0, rows, 0, count);
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package photos.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a user in the photo album app.
@@ -15,6 +23,11 @@ public class User implements Serializable {
     private final String username;     // User's login name
     private final List<Album> albums;  // Their photo albums
     private final List<String> tagTypes; // Custom tag types they've defined
+    private transient long version;      // Goes up on every change to this user or anything in their albums
+    private transient TagDictionary tagDictionary; // Ids for every tag on this user's photos
+    private transient Map<String, Album> albumsByName; // Same albums as the list, by name
+    private transient DirectoryTable directoryTable; // Folders this user's photos are in
+    private transient PhotoTable photoTable; // The one Photo for each file in this user's albums, with a row each
     
     /**
      * Creates a new user account.
@@ -39,10 +52,19 @@ public class User implements Serializable {
     
     /**
      * Gets all albums for this user.
-     * Returns a copy of the list so outside code can't mess with our data.
+     * Returns a read-only view, so outside code can't mess with our data and nothing gets copied.
+     * The view follows later changes, so copy it first if you need to add or delete albums while going through it.
      */
     public List<Album> getAlbums() {
-        return new ArrayList<>(albums);
+        return Collections.unmodifiableList(albums);
+    }
+    
+    /**
+     * Counts this user's albums.
+     * @return The number of albums
+     */
+    public int getAlbumCount() {
+        return albums.size();
     }
     
     /**
@@ -51,12 +73,115 @@ public class User implements Serializable {
      * @return The album if found, or null if no match
      */
     public Album getAlbum(String name) {
-        for (Album album : albums) {
-            if (album.getName().equals(name)) {
-                return album;
-            }
+        return getAlbumIndex().get(name);
+    }
+    
+    /**
+     * Finds a photo with the given path in any of this user's albums.
+     * A file should only be one Photo per user, so adding it to another album reuses this one.
+     * @param filePath The photo's file path
+     * @return The photo, or null if none of the albums have it
+     */
+    public Photo findPhoto(String filePath) {
+        return getPhotoTable().find(filePath);
+    }
+    
+    /**
+     * Counts the different photos across all of this user's albums (a photo in two albums counts once).
+     * @return The number of photos
+     */
+    public int getPhotoCount() {
+        return getPhotoTable().size();
+    }
+    
+    /**
+     * Gets every photo in this user's albums, each one once (a photo in two albums is only in here once).
+     * @return A read-only view that follows later changes, so copy it first if you need to change albums while going through it
+     */
+    public Collection<Photo> getPhotos() {
+        return getPhotoTable().values();
+    }
+    
+    /**
+     * Finds the photos taken in a time range, across all of this user's albums.
+     * @param fromMillis Start of the range in epoch ms (included), or Long.MIN_VALUE for everything before toMillis
+     * @param toMillis End of the range in epoch ms (not included), or Long.MAX_VALUE for everything from fromMillis on
+     * @return The photos, each one once, oldest first
+     */
+    public List<Photo> findPhotosTakenBetween(long fromMillis, long toMillis) {
+        return getPhotoTable().getTimeIndex().find(fromMillis, toMillis);
+    }
+    
+    /**
+     * Finds the photos taken in any of several time ranges, across all of this user's albums.
+     * The ranges can overlap and be in any order.
+     * @param fromMillis Start of each range in epoch ms (included)
+     * @param toMillis End of each range in epoch ms (not included), one for each start
+     * @return The photos, each one once, oldest first
+     */
+    public List<Photo> findPhotosTakenBetween(long[] fromMillis, long[] toMillis) {
+        if (fromMillis.length != toMillis.length) {
+            throw new IllegalArgumentException("Every range needs a start and an end");
+        }
+        return getPhotoTable().getTimeIndex().find(fromMillis, toMillis);
+    }
+    
+    /**
+     * Finds the photos that have all of some tags, across all of this user's albums.
+     * @param tags The tags (one tag for a plain tag search)
+     * @return The photos, each one once
+     */
+    public List<Photo> findPhotosWithAllTags(Collection<Tag> tags) {
+        return getPhotoTable().findWithAllTags(tags);
+    }
+    
+    /**
+     * Finds the photos that have any of some tags, across all of this user's albums.
+     * @param tags The tags
+     * @return The photos, each one once
+     */
+    public List<Photo> findPhotosWithAnyTag(Collection<Tag> tags) {
+        return getPhotoTable().findWithAnyTag(tags);
+    }
+    
+    /**
+     * Finds the photos whose captions have some words, across all of this user's albums.
+     * Case and punctuation don't matter. A word ending in * matches any word starting with it,
+     * and words in quotes have to be right next to each other, like "sunset beach".
+     * @param query The words to search for
+     * @return The photos, each one once, best matches first (whole words, then shorter captions)
+     */
+    public List<Photo> findPhotosWithCaption(String query) {
+        return getPhotoTable().getCaptionIndex().find(CaptionIndex.Query.parse(query));
+    }
+    
+    /**
+     * Gets the photo this user already has for the same file, so albums share one Photo per file.
+     * @param photo A photo that's about to go in one of the albums
+     * @return The user's existing photo for that file, or the same photo if it's new to them
+     */
+    Photo canonicalPhoto(Photo photo) {
+        Photo existing = getPhotoTable().find(photo);
+        return existing != null ? existing : photo;
+    }
+    
+    /**
+     * Records a photo that was just put in one of the albums.
+     * @param photo The photo
+     * @return The photo that's now registered for its file (an earlier one wins)
+     */
+    Photo registerPhoto(Photo photo) {
+        return getPhotoTable().add(photo);
+    }
+    
+    /**
+     * Forgets a photo once it isn't in any of the albums.
+     * @param photo A photo that was just taken out of an album
+     */
+    void unregisterPhoto(Photo photo) {
+        if (photo.getAlbums().isEmpty()) {
+            getPhotoTable().remove(photo);
         }
-        return null;
     }
     
     /**
@@ -70,21 +195,81 @@ public class User implements Serializable {
         }
         
         Album album = new Album(name);
-        albums.add(album);
+        addAlbum(album);
+        markChanged();
         return album;
     }
     
+    /**
+     * Makes several new albums at once, skipping names that are already taken (or repeated).
+     * @param names What to call them
+     * @return The albums that were made, in order
+     */
+    public List<Album> createAlbums(Collection<String> names) {
+        List<Album> created = new ArrayList<>();
+        for (String name : names) {
+            if (getAlbum(name) == null) {
+                Album album = new Album(name);
+                addAlbum(album);
+                created.add(album);
+            }
+        }
+        if (!created.isEmpty()) {
+            markChanged();
+        }
+        return created;
+    }
+    
+    /**
+     * Adds an album read back from a saved file.
+     * @param album The album
+     */
+    void restoreAlbum(Album album) {
+        addAlbum(album);
+    }
+    
     /**
      * Deletes an album.
      * @param name The name of the album to delete
      * @return true if deleted, false if album wasn't found
      */
     public boolean deleteAlbum(String name) {
-        Album album = getAlbum(name);
-        if (album != null) {
-            return albums.remove(album);
+        Album album = getAlbumIndex().remove(name);
+        if (album == null) {
+            return false;
         }
-        return false;
+        for (int i = 0; i < albums.size(); i++) {
+            if (albums.get(i) == album) {
+                albums.remove(i);
+                break;
+            }
+        }
+        album.detach();
+        markChanged();
+        return true;
+    }
+    
+    /**
+     * Deletes several albums in one pass over the album list.
+     * @param names The names of the albums to delete
+     * @return The names of the albums that were deleted (names that weren't found are left out)
+     */
+    public List<String> deleteAlbums(Collection<String> names) {
+        Set<String> toDelete = new HashSet<>(names);
+        List<String> deleted = new ArrayList<>();
+        albums.removeIf(album -> {
+            if (!toDelete.contains(album.getName())) {
+                return false;
+            }
+            getAlbumIndex().remove(album.getName());
+            album.detach();
+            deleted.add(album.getName());
+            return true;
+        });
+        if (!deleted.isEmpty()) {
+            markChanged();
+        }
+        return deleted;
     }
     
     /**
@@ -99,15 +284,56 @@ public class User implements Serializable {
             return false;
         }
         
-        album.setName(newName);
+        getAlbumIndex().remove(oldName);
+        getAlbumIndex().put(newName, album);
+        album.rename(newName);
         return true;
     }
     
+    /**
+     * Puts an album in the list and the name index, and links it to this user.
+     */
+    private void addAlbum(Album album) {
+        album.setOwner(this);
+        albums.add(album);
+        getAlbumIndex().put(album.getName(), album);
+    }
+    
+    /**
+     * Gets the photo table, building it from the albums the first time it's needed.
+     * @return The table
+     */
+    PhotoTable getPhotoTable() {
+        if (photoTable == null) {
+            photoTable = new PhotoTable(this);
+            for (Album album : albums) {
+                for (Photo photo : album.getPhotos()) {
+                    photoTable.add(photo);
+                }
+            }
+        }
+        return photoTable;
+    }
+    
+    /**
+     * Gets the name index, building it from the list if this user was just deserialized.
+     */
+    private Map<String, Album> getAlbumIndex() {
+        if (albumsByName == null) {
+            albumsByName = new HashMap<>();
+            for (Album album : albums) {
+                albumsByName.put(album.getName(), album);
+            }
+        }
+        return albumsByName;
+    }
+    
     /**
      * Gets all tag types this user has defined.
+     * Returns a read-only view that follows later changes.
      */
     public List<String> getTagTypes() {
-        return new ArrayList<>(tagTypes);
+        return Collections.unmodifiableList(tagTypes);
     }
     
     /**
@@ -117,8 +343,59 @@ public class User implements Serializable {
      */
     public boolean addTagType(String tagType) {
         if (!tagTypes.contains(tagType)) {
-            return tagTypes.add(tagType);
+            tagTypes.add(tagType);
+            markChanged();
+            return true;
         }
         return false;
     }
+    
+    /**
+     * Gets the dictionary this user's photos number their tags with.
+     * @return The dictionary
+     */
+    TagDictionary getTagDictionary() {
+        if (tagDictionary == null) {
+            tagDictionary = new TagDictionary(); // Not in the constructor since it's transient
+        }
+        return tagDictionary;
+    }
+    
+    /**
+     * Gets the table of folders this user's photos point into.
+     * @return The table
+     */
+    DirectoryTable getDirectoryTable() {
+        if (directoryTable == null) {
+            directoryTable = new DirectoryTable();
+        }
+        return directoryTable;
+    }
+    
+    /**
+     * Gets the change counter for this user.
+     * DataManager compares it with the value it had at the last save to tell whether the user needs writing.
+     * @return The number of changes made since this user was loaded
+     */
+    long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Bumps the change counter. Albums, photos and tags call this when they're edited.
+     */
+    void markChanged() {
+        version++;
+    }
+    
+    /**
+     * Restores the links from albums, photos and tags back to this user after loading,
+     * since those aren't saved.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        for (Album album : albums) {
+            album.setOwner(this);
+        }
+    }
 }
\ No newline at end of file
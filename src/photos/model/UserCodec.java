@@ -0,0 +1,242 @@
+package photos.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format for a user's .dat file.
+ * Much smaller and faster than Java serialization: no class descriptors, one long per photo date
+ * instead of a whole Calendar, and tag names, tag values and folder paths are stored once in a
+ * string table at the top of the file and referred to by number after that.
+ *
+ * Layout (all counts and lengths are varints):
+ *   magic "PHU" + version byte
+ *   string table: count, then each string
+ *   username, tag types (table ids)
+ *   photos: count, then for each one folder id, file name, caption, date (epoch ms), tags (name id, value id)
+ *   albums: count, then for each one name and the photo numbers it holds
+ *
+ * A photo that's in several albums is only written once, so it's still shared after loading.
+ * @author Klever and Shrij
+ */
+class UserCodec {
+    
+    private static final byte[] MAGIC = { 'P', 'H', 'U' };
+    private static final int VERSION = 1;
+    
+    private UserCodec() {
+        // Only static helpers in here
+    }
+    
+    /**
+     * Checks whether some bytes start like a file written by this codec.
+     * @param header At least the first 3 bytes of the file
+     * @return true if it's ours, false if it's something else (like an old Java-serialized file)
+     */
+    static boolean isCodecFormat(byte[] header) {
+        return header.length >= MAGIC.length
+            && header[0] == MAGIC[0] && header[1] == MAGIC[1] && header[2] == MAGIC[2];
+    }
+    
+    /**
+     * Writes a user out in the binary format.
+     * @param user The user
+     * @return The encoded bytes
+     */
+    static byte[] encode(User user) throws IOException {
+        // First pass: number every distinct photo and collect the shared strings
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> table = new ArrayList<>();
+        Map<Photo, Integer> photoIds = new IdentityHashMap<>();
+        List<Photo> photos = new ArrayList<>();
+        for (String tagType : user.getTagTypes()) {
+            intern(tagType, strings, table);
+        }
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                if (photoIds.containsKey(photo)) {
+                    continue;
+                }
+                photoIds.put(photo, photos.size());
+                photos.add(photo);
+                intern(photo.getDirectory(), strings, table);
+                for (Tag tag : photo.getTags()) {
+                    intern(tag.getName(), strings, table);
+                    intern(tag.getValue(), strings, table);
+                }
+            }
+        }
+        
+        // Second pass: write it all out
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + photos.size() * 48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        
+        writeVarInt(out, table.size());
+        for (String s : table) {
+            writeString(out, s);
+        }
+        
+        writeString(out, user.getUsername());
+        List<String> tagTypes = user.getTagTypes();
+        writeVarInt(out, tagTypes.size());
+        for (String tagType : tagTypes) {
+            writeVarInt(out, strings.get(tagType));
+        }
+        
+        writeVarInt(out, photos.size());
+        for (Photo photo : photos) {
+            writeVarInt(out, strings.get(photo.getDirectory()));
+            writeString(out, photo.getFileName());
+            writeString(out, photo.getCaption());
+            out.writeLong(photo.getTimeMillis());
+            List<Tag> tags = new ArrayList<>(photo.getTags());
+            writeVarInt(out, tags.size());
+            for (Tag tag : tags) {
+                writeVarInt(out, strings.get(tag.getName()));
+                writeVarInt(out, strings.get(tag.getValue()));
+            }
+        }
+        
+        List<Album> albums = user.getAlbums();
+        writeVarInt(out, albums.size());
+        for (Album album : albums) {
+            writeString(out, album.getName());
+            List<Photo> albumPhotos = album.getPhotos();
+            writeVarInt(out, albumPhotos.size());
+            for (Photo photo : albumPhotos) {
+                writeVarInt(out, photoIds.get(photo));
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Reads a user written by encode().
+     * @param input The file contents, starting at the magic bytes
+     * @return The user
+     * @throws IOException If the data is cut off, corrupt or from a newer version
+     */
+    static User decode(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!isCodecFormat(magic)) {
+            throw new IOException("Not a user data file");
+        }
+        int version = in.readUnsignedByte();
+        if (version > VERSION) {
+            throw new IOException("User data file version " + version + " is newer than this app");
+        }
+        
+        String[] table = new String[readVarInt(in)];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = readString(in);
+        }
+        
+        User user = new User(readString(in));
+        int tagTypeCount = readVarInt(in);
+        for (int i = 0; i < tagTypeCount; i++) {
+            user.addTagType(lookup(table, readVarInt(in)));
+        }
+        
+        Photo[] photos = new Photo[readVarInt(in)];
+        for (int i = 0; i < photos.length; i++) {
+            String directory = lookup(table, readVarInt(in));
+            String fileName = readString(in);
+            String caption = readString(in);
+            long timeMillis = in.readLong();
+            Photo photo = new Photo(directory, fileName, caption, timeMillis, user.getTagDictionary());
+            int tagCount = readVarInt(in);
+            for (int t = 0; t < tagCount; t++) {
+                photo.addTag(new Tag(lookup(table, readVarInt(in)), lookup(table, readVarInt(in))));
+            }
+            photos[i] = photo;
+        }
+        
+        int albumCount = readVarInt(in);
+        for (int i = 0; i < albumCount; i++) {
+            String name = readString(in);
+            int photoCount = readVarInt(in);
+            List<Photo> albumPhotos = new ArrayList<>(photoCount);
+            for (int p = 0; p < photoCount; p++) {
+                albumPhotos.add(lookup(photos, readVarInt(in)));
+            }
+            user.restoreAlbum(new Album(name, albumPhotos));
+        }
+        return user;
+    }
+    
+    /**
+     * Gets entry i of a table read from the file, treating a bad number as a corrupt file.
+     */
+    private static <T> T lookup(T[] table, int i) throws IOException {
+        if (i >= table.length) {
+            throw new IOException("Corrupt reference in user data file");
+        }
+        return table[i];
+    }
+    
+    private static void intern(String s, Map<String, Integer> strings, List<String> table) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, table.size());
+            table.add(s);
+        }
+    }
+    
+    /**
+     * Writes a string as its UTF-8 length and bytes. Unlike writeUTF() there's no 64 KB limit,
+     * so the journal and the paged store write their strings this way too.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, utf8.length);
+        out.write(utf8);
+    }
+    
+    /**
+     * Reads a string written by writeString().
+     */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] utf8 = new byte[readVarInt(in)];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Writes a non-negative int in 7-bit groups, low bits first, so small numbers take one byte.
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Corrupt length in user data file");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Corrupt length in user data file");
+    }
+}
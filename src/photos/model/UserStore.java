@@ -0,0 +1,57 @@
+package photos.model;
+
+import java.util.List;
+
+/**
+ * Where the admin and the users are kept between runs.
+ * DataManager reads through this, and the background writer writes through the
+ * PersistenceService.Target half (snapshots, change batches, deletes).
+ *
+ * Implementations:
+ *   FileStore  - a .dat file and change journal per user under data/users (the default)
+ *   PagedStore - everything in one paged file, data/photos.db
+ *   JdbcStore  - tables in an embedded SQL database (SQLite or H2)
+ * Use -Dphotos.storage=files|paged|jdbc to choose, and MigrateStorage to move data between them.
+ * @author Klever and Shrij
+ */
+interface UserStore extends PersistenceService.Target {
+    
+    /**
+     * Reads the admin.
+     * @return The admin, or null if nothing was ever saved
+     */
+    Admin readAdmin() throws Exception;
+    
+    /**
+     * Reads a whole user, with any changes they've had since their last snapshot already applied.
+     * Has to be safe to call from any thread.
+     * @param username The username
+     * @return The user, or null if there's nothing stored for them
+     */
+    User readUser(String username) throws Exception;
+    
+    /**
+     * Lists the users that have something stored, whether or not the admin knows about them.
+     * @return The usernames
+     */
+    List<String> listUsernames() throws Exception;
+    
+    /**
+     * Checks whether a user is stored in an old format that should be rewritten on the next save.
+     * @param username The username
+     * @return true if they need a full save
+     */
+    boolean needsUpgrade(String username);
+    
+    /**
+     * Checks whether a user's changes have piled up enough that they should be folded into a snapshot.
+     * @param username The username
+     * @return true if it's time to queue a compaction
+     */
+    boolean needsCompaction(String username);
+    
+    /**
+     * Releases whatever the store has open. Everything should be flushed before this.
+     */
+    void close() throws Exception;
+}
@@ -0,0 +1,112 @@
+package photos.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Puts and removes random records in a PageFile and checks every one against a HashMap,
+ * then reopens the file and checks them all again.
+ * Mostly small records, so pages fill up, get compacted and reuse their empty slots,
+ * with the odd one big enough to go into overflow pages.
+ * @author Klever and Shrij
+ */
+public class PageFileTest {
+    
+    private static final int KEYS = 500;
+    private static final int OPS = 20_000;
+    
+    /**
+     * Runs it with a few different seeds.
+     * @param args Not used
+     * @throws Exception If the page file can't be written, or with an AssertionError if it gives back the wrong record
+     */
+    public static void main(String[] args) throws Exception {
+        for (long seed = 1; seed <= 5; seed++) {
+            run(seed);
+        }
+        System.out.println("PageFileTest passed");
+    }
+    
+    private static void run(long seed) throws IOException {
+        File file = File.createTempFile("pagefile", ".db");
+        File log = new File(file.getPath() + ".log");
+        file.delete();
+        try {
+            Random random = new Random(seed);
+            Map<String, byte[]> expected = new HashMap<>();
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < KEYS; i++) {
+                keys.add("user" + i);
+            }
+            
+            PageFile pages = new PageFile(file);
+            for (int op = 0; op < OPS; op++) {
+                String key = keys.get(random.nextInt(keys.size()));
+                if (random.nextInt(2) == 0) {
+                    check(seed, op, pages.remove(key), expected.remove(key) != null);
+                } else {
+                    byte[] value = value(random);
+                    pages.put(key, value);
+                    expected.put(key, value);
+                }
+                if (op % 50 == 0) {
+                    pages.commit(false);
+                }
+                if (op % 1000 == 0) {
+                    checkAll(seed, op, pages, keys, expected);
+                }
+            }
+            pages.commit(false);
+            checkAll(seed, OPS, pages, keys, expected);
+            pages.close();
+            
+            pages = new PageFile(file);
+            checkAll(seed, -1, pages, keys, expected);
+            pages.close();
+        } finally {
+            file.delete();
+            log.delete();
+        }
+    }
+    
+    /**
+     * Makes a record: usually a few dozen bytes, sometimes a few hundred, now and then several pages.
+     */
+    private static byte[] value(Random random) {
+        int kind = random.nextInt(100);
+        int length = kind < 70 ? 1 + random.nextInt(60)
+                   : kind < 98 ? 100 + random.nextInt(700)
+                   : PageFile.PAGE_SIZE + random.nextInt(3 * PageFile.PAGE_SIZE);
+        byte[] value = new byte[length];
+        random.nextBytes(value);
+        return value;
+    }
+    
+    private static void checkAll(long seed, int op, PageFile pages, List<String> keys, Map<String, byte[]> expected)
+            throws IOException {
+        for (String key : keys) {
+            byte[] actual = pages.get(key);
+            byte[] wanted = expected.get(key);
+            if (!Arrays.equals(actual, wanted)) {
+                throw new AssertionError("Seed " + seed + ", op " + op + ": " + key + " has "
+                                         + describe(actual) + ", should be " + describe(wanted));
+            }
+        }
+    }
+    
+    private static void check(long seed, int op, boolean actual, boolean wanted) {
+        if (actual != wanted) {
+            throw new AssertionError("Seed " + seed + ", op " + op + ": remove returned " + actual);
+        }
+    }
+    
+    private static String describe(byte[] value) {
+        return value == null ? "nothing" : value.length + " bytes";
+    }
+}